@@ -0,0 +1,205 @@
+package gr.exmachina.gatewayxm;
+
+/**
+ * Health of one polled asset (modbus slave): response time estimate for an adaptive timeout,
+ * and a circuit breaker that stops polling the asset after repeated failures.
+ * The timeout follows the TCP retransmission timer (Jacobson/Karels): smoothed RTT plus four times
+ * the RTT variation, doubled on every timeout. An open breaker lets a single probe through once its
+ * backoff passed, and doubles the backoff each time the probe fails.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class AssetHealth
+{
+    /**
+     * Circuit breaker state
+     */
+    public enum State
+    {
+        /** Polled normally */
+        CLOSED,
+        /** Not polled until the backoff passes */
+        OPEN,
+        /** One probe poll in progress */
+        HALF_OPEN
+    }
+
+    /** Lower bound of the adaptive timeout */
+    static final int MIN_TIMEOUT_MS = 50;
+
+    /** Backoff after the breaker first opens */
+    private static final long MIN_BACKOFF_NANOS = 1000000000L;
+
+    /** Asset name */
+    private final String _name;
+
+    /** Smoothed round trip time, negative until the first sample */
+    private double _srttMs = -1;
+
+    /** Round trip time variation */
+    private double _rttvarMs;
+
+    /** Current timeout */
+    private int _timeoutMs;
+
+    /** Breaker state */
+    private State _state = State.CLOSED;
+
+    /** Consecutive failed polls */
+    private int _failures;
+
+    /** Current backoff, doubled on each failed probe */
+    private long _backoffNanos;
+
+    /** Next probe time (System.nanoTime) while open */
+    private long _retryAt;
+
+    /**
+     * Constructor
+     * @param timeoutMs Initial timeout
+     */
+    public AssetHealth(String name, int timeoutMs)
+    {
+        _name = name;
+        _timeoutMs = timeoutMs;
+    }
+
+    /**
+     * True if the asset should be polled now. Moves an open breaker whose backoff passed to half open.
+     */
+    public synchronized boolean allowRequest(long now)
+    {
+        switch (_state)
+        {
+            case OPEN:
+                if (now - _retryAt < 0)
+                    return false;
+                _state = State.HALF_OPEN;
+                return true;
+
+            case HALF_OPEN:
+                // Probe still running
+                return false;
+
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Forget a probe that will never be resolved, letting the next allowRequest probe again
+     */
+    public synchronized void abandonProbe(long now)
+    {
+        if (_state != State.HALF_OPEN)
+            return;
+
+        _state = State.OPEN;
+        _retryAt = now;
+    }
+
+    /**
+     * True if the asset will not be polled now, without changing state
+     */
+    public synchronized boolean isSuspended(long now)
+    {
+        return _state == State.HALF_OPEN || (_state == State.OPEN && now - _retryAt < 0);
+    }
+
+    /**
+     * Add a round trip time sample
+     * @param maxTimeoutMs Upper bound of the timeout
+     */
+    public synchronized void recordRtt(long rttNanos, int maxTimeoutMs)
+    {
+        double rttMs = rttNanos / 1e6;
+
+        if (_srttMs < 0)
+        {
+            _srttMs = rttMs;
+            _rttvarMs = rttMs / 2;
+        }
+        else
+        {
+            _rttvarMs = 0.75 * _rttvarMs + 0.25 * Math.abs(_srttMs - rttMs);
+            _srttMs = 0.875 * _srttMs + 0.125 * rttMs;
+        }
+
+        _timeoutMs = clamp((int) Math.ceil(_srttMs + 4 * _rttvarMs), maxTimeoutMs);
+    }
+
+    /**
+     * Record a successful poll
+     * @return True if the asset was offline and is back
+     */
+    public synchronized boolean recordSuccess()
+    {
+        boolean recovered = _state != State.CLOSED;
+
+        _state = State.CLOSED;
+        _failures = 0;
+        _backoffNanos = 0;
+        return recovered;
+    }
+
+    /**
+     * Record a failed poll, backing off the timeout
+     * @param threshold Consecutive failures that open the breaker
+     * @param maxBackoffNanos Upper bound of the breaker backoff
+     * @param maxTimeoutMs Upper bound of the timeout
+     * @return True if the breaker just opened, ie. the asset went offline
+     */
+    public synchronized boolean recordFailure(long now, int threshold, long maxBackoffNanos, int maxTimeoutMs)
+    {
+        _failures++;
+        _timeoutMs = clamp(_timeoutMs * 2, maxTimeoutMs);
+
+        if (_state == State.HALF_OPEN)
+        {
+            _backoffNanos = Math.min(_backoffNanos * 2, maxBackoffNanos);
+            _state = State.OPEN;
+            _retryAt = now + _backoffNanos;
+            return false;
+        }
+
+        if (_state == State.CLOSED && _failures >= threshold)
+        {
+            _backoffNanos = Math.min(MIN_BACKOFF_NANOS, maxBackoffNanos);
+            _state = State.OPEN;
+            _retryAt = now + _backoffNanos;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Current timeout
+     */
+    public synchronized int getTimeoutMs()
+    {
+        return _timeoutMs;
+    }
+
+    /**
+     * Current breaker state
+     */
+    public synchronized State getState()
+    {
+        return _state;
+    }
+
+    /**
+     * Asset name
+     */
+    public String getName()
+    {
+        return _name;
+    }
+
+    private static int clamp(int timeoutMs, int maxTimeoutMs)
+    {
+        return Math.max(Math.min(MIN_TIMEOUT_MS, maxTimeoutMs), Math.min(timeoutMs, maxTimeoutMs));
+    }
+}
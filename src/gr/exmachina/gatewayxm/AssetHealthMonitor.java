@@ -0,0 +1,144 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks AssetHealth of every polled asset for both acquisition engines, and reports assets going
+ * offline (circuit breaker opened) or coming back upstream. Offline assets are disconnected from
+ * thingsboard, which marks them inactive; the next published telemetry connects them again.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class AssetHealthMonitor
+{
+    /** Health per asset name */
+    private final Map<String, AssetHealth> _assets = new ConcurrentHashMap<>();
+
+    /** Consecutive failed polls that take an asset offline */
+    private volatile int _threshold = 3;
+
+    /** Max time between probes of an offline asset */
+    private volatile long _maxBackoffNanos = TimeUnit.MINUTES.toNanos(5);
+
+    /** Configured response timeout, upper bound of the adaptive timeout */
+    private volatile int _maxTimeoutMs = 1000;
+
+    /** Routes telemetry to the output and secondary sinks */
+    private final SinkDispatcher _dispatcher;
+
+    /**
+     * Constructor
+     * @param dispatcher Routes telemetry to the output and secondary sinks
+     */
+    public AssetHealthMonitor(SinkDispatcher dispatcher)
+    {
+        _dispatcher = dispatcher;
+    }
+
+    /**
+     * Apply settings. Probes of half open assets belong to the engine being replaced and are never
+     * resolved, so those assets are probed again right away.
+     * @param threshold Consecutive failed polls that take an asset offline
+     * @param maxBackoffSec Max time between probes of an offline asset
+     * @param maxTimeoutMs Upper bound of the adaptive timeout
+     */
+    public void configure(int threshold, int maxBackoffSec, int maxTimeoutMs)
+    {
+        _threshold = Math.max(1, threshold);
+        _maxBackoffNanos = TimeUnit.SECONDS.toNanos(Math.max(1, maxBackoffSec));
+        _maxTimeoutMs = maxTimeoutMs;
+
+        long now = System.nanoTime();
+        for (AssetHealth health : _assets.values())
+            health.abandonProbe(now);
+    }
+
+    /**
+     * Get health of asset, created on first use
+     */
+    public AssetHealth get(String name)
+    {
+        return _assets.computeIfAbsent(name, n -> new AssetHealth(n, _maxTimeoutMs));
+    }
+
+    /**
+     * True if the asset should be polled this cycle
+     */
+    public boolean allowPoll(String name)
+    {
+        return get(name).allowRequest(System.nanoTime());
+    }
+
+    /**
+     * Undo allowPoll for an asset that is not polled after all, eg. without bus budget, so a half
+     * open asset is probed again on the next cycle
+     */
+    public void abandonProbe(String name)
+    {
+        get(name).abandonProbe(System.nanoTime());
+    }
+
+    /**
+     * True if the asset is offline and not due for a probe
+     */
+    public boolean isSuspended(String name)
+    {
+        return get(name).isSuspended(System.nanoTime());
+    }
+
+    /**
+     * Current adaptive timeout of asset
+     */
+    public int getTimeoutMs(String name)
+    {
+        return Math.min(get(name).getTimeoutMs(), _maxTimeoutMs);
+    }
+
+    /**
+     * Add a response time sample
+     */
+    public void recordRtt(String name, long rttNanos)
+    {
+        get(name).recordRtt(rttNanos, _maxTimeoutMs);
+    }
+
+    /**
+     * Record a successful poll, reporting the asset online again if it was offline
+     */
+    public void recordSuccess(String name)
+    {
+        if (get(name).recordSuccess())
+            GatewayXM.logger.info("Asset " + name + " responding again.");
+    }
+
+    /**
+     * Record a failed poll, reporting the asset offline if its breaker opened.
+     * Must not be called from modbus I/O threads, reporting publishes upstream.
+     */
+    public void recordFailure(String name)
+    {
+        if (!get(name).recordFailure(System.nanoTime(), _threshold, _maxBackoffNanos, _maxTimeoutMs))
+            return;
+
+        GatewayXM.logger.info("Asset " + name + " not responding, polling suspended.");
+        _dispatcher.disconnectDevice(name);
+    }
+
+    /**
+     * Number of assets currently offline
+     */
+    public int getOfflineCount()
+    {
+        int offline = 0;
+        for (AssetHealth health : _assets.values())
+        {
+            if (health.getState() != AssetHealth.State.CLOSED)
+                offline++;
+        }
+
+        return offline;
+    }
+}
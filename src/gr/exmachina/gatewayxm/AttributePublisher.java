@@ -0,0 +1,125 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes rarely changing values (firmware version, serial number, configuration registers) as
+ * device attributes on v1/gateway/attributes instead of telemetry. The last value sent per device
+ * and key is cached and only changes are queued. Queued changes are batched over all devices of
+ * a gateway session and flushed every FLUSH_INTERVAL_MS as one message per session.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class AttributePublisher
+{
+    /** Batching interval */
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    /** Last value queued or sent, by device and key */
+    private final Map<String, Map<String, Object>> _sent = new HashMap<>();
+
+    /** Changes waiting for the next flush, by device and key */
+    private final Map<String, Map<String, Object>> _pending = new LinkedHashMap<>();
+
+    /** Flush scheduler */
+    private ScheduledExecutorService _scheduler;
+
+    /** Session attributes are published on */
+    private final ThingsboardMqtt _thingsboard;
+
+    /**
+     * Constructor
+     * @param thingsboard Session attributes are published on
+     */
+    public AttributePublisher(ThingsboardMqtt thingsboard)
+    {
+        _thingsboard = thingsboard;
+    }
+
+    /**
+     * Start periodic flushing
+     */
+    public synchronized void start()
+    {
+        stop();
+
+        _scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, AttributePublisher.class.toString());
+            t.setDaemon(true);
+            return t;
+        });
+        _scheduler.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop periodic flushing, pending changes are kept
+     */
+    public synchronized void stop()
+    {
+        if (_scheduler != null)
+        {
+            _scheduler.shutdownNow();
+            _scheduler = null;
+        }
+    }
+
+    /**
+     * Queue the values that differ from the last ones sent
+     * @param values Attribute values, Number or String
+     */
+    public synchronized void update(String deviceName, Map<String, Object> values)
+    {
+        Map<String, Object> sent = _sent.computeIfAbsent(deviceName, d -> new HashMap<>());
+
+        for (Map.Entry<String, Object> value : values.entrySet())
+        {
+            if (Objects.equals(sent.get(value.getKey()), value.getValue()))
+                continue;
+
+            sent.put(value.getKey(), value.getValue());
+            _pending.computeIfAbsent(deviceName, d -> new LinkedHashMap<>()).put(value.getKey(), value.getValue());
+        }
+    }
+
+    /**
+     * Hand pending changes to the publish scheduler, one batch per session
+     */
+    public void flush()
+    {
+        Map<String, Map<String, Object>> pending;
+        synchronized (this)
+        {
+            if (_pending.isEmpty())
+                return;
+
+            pending = new LinkedHashMap<>(_pending);
+            _pending.clear();
+        }
+
+        _thingsboard.publishAttributes(pending);
+    }
+
+    /**
+     * Batch not sent, queue it again unless newer values were queued meanwhile
+     */
+    public synchronized void failed(Map<String, Map<String, Object>> batch)
+    {
+        for (Map.Entry<String, Map<String, Object>> device : batch.entrySet())
+        {
+            Map<String, Object> sent = _sent.get(device.getKey());
+            for (Map.Entry<String, Object> value : device.getValue().entrySet())
+            {
+                if (sent != null && Objects.equals(sent.get(value.getKey()), value.getValue()))
+                    _pending.computeIfAbsent(device.getKey(), d -> new LinkedHashMap<>()).putIfAbsent(value.getKey(),
+                            value.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package gr.exmachina.gatewayxm;
+
+import java.io.IOException;
+
+/**
+ * Replays telemetry buffered in TelemetryBuffer to thingsboard in the background, device by device,
+ * paced by the backlog budget of PublishShaper so live telemetry keeps priority. Once the in-memory
+ * backlog is sent, the disk backlog (BacklogStore) follows, oldest segment first, either through
+ * thingsboard or as compressed batches through BatchUploader.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class BacklogReplay implements Runnable
+{
+    /** Max wait between replay attempts */
+    private static final long IDLE_WAIT_MS = 1000;
+
+    /** Max wait for the replay thread to exit on stop */
+    private static final long STOP_TIMEOUT_MS = 2000;
+
+    /** Replay thread */
+    private Thread _thread;
+
+    /** Keeps replay thread running */
+    private volatile boolean _isActive = false;
+
+    /** Wakes up the replay thread */
+    private final Object _signal = new Object();
+
+    /** Thingsboard connection */
+    private final ThingsboardMqtt _thingsboard;
+
+    /** Telemetry held while thingsboard is unreachable */
+    private final TelemetryBuffer _buffer;
+
+    /** Disk backlog */
+    private final BacklogStore _store;
+
+    /** Bulk backlog uploads */
+    private final BatchUploader _uploader;
+
+    /** Disk backlog segment queued for replay, deleted once sent */
+    private volatile BacklogStore.Segment _replaying;
+
+    /**
+     * Constructor
+     * @param thingsboard Thingsboard connection
+     * @param buffer Telemetry held while thingsboard is unreachable
+     * @param store Disk backlog
+     * @param uploader Bulk backlog uploads
+     */
+    public BacklogReplay(ThingsboardMqtt thingsboard, TelemetryBuffer buffer, BacklogStore store,
+            BatchUploader uploader)
+    {
+        _thingsboard = thingsboard;
+        _buffer = buffer;
+        _store = store;
+        _uploader = uploader;
+    }
+
+    /**
+     * Start replay thread
+     * @return True if started, false if already running
+     */
+    public synchronized boolean start()
+    {
+        if (_thread != null && _thread.isAlive())
+            return false;
+
+        _isActive = true;
+        _thread = new Thread(this);
+        _thread.setName(BacklogReplay.class.toString());
+        _thread.setDaemon(true);
+        _thread.start();
+
+        return true;
+    }
+
+    /**
+     * Stop replay thread and wait for it to exit, buffered telemetry stays buffered
+     */
+    public synchronized void stop()
+    {
+        _isActive = false;
+        if (_thread == null)
+            return;
+
+        _thread.interrupt();
+        try
+        {
+            _thread.join(STOP_TIMEOUT_MS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if (_thread.isAlive())
+            GatewayXM.logger.info("Backlog replay did not stop in time.");
+        _thread = null;
+    }
+
+    /**
+     * Replay now instead of at the next idle check
+     */
+    public void wakeup()
+    {
+        synchronized (_signal)
+        {
+            _signal.notifyAll();
+        }
+    }
+
+    /**
+     * Replay the oldest disk backlog segment. The segment is deleted once all its rows are sent, a
+     * failed or dropped replay leaves it on disk to be replayed in full later.
+     * @return True if sent or queued
+     */
+    private boolean replayStored()
+    {
+        BacklogStore.Segment segment = _store.oldest();
+        if (segment == null || segment == _replaying)
+            return false;
+
+        if (_uploader.isEnabled())
+            return _uploader.uploadNext();
+
+        if (!_thingsboard.isConnected())
+            return false;
+
+        TelemetrySeries series;
+        try
+        {
+            series = _store.decode(segment);
+        }
+        catch (IOException e)
+        {
+            GatewayXM.logger.info("Dropping unreadable backlog segment: " + e.getMessage());
+            _store.remove(segment, false);
+            return false;
+        }
+
+        _replaying = segment;
+        return _thingsboard.replay(series, sent -> {
+            if (sent)
+                _store.remove(segment, true);
+            _replaying = null;
+            wakeup();
+        });
+    }
+
+    @Override
+    public void run()
+    {
+        while (_isActive)
+        {
+            boolean sent = false;
+            for (String deviceName : _buffer.getDevices())
+            {
+                if (!_isActive || !_thingsboard.isConnected(deviceName))
+                    continue;
+
+                if (_thingsboard.replay(deviceName))
+                    sent = true;
+            }
+
+            // Disk backlog once the in-memory one is sent
+            if (!sent && _isActive)
+                sent = replayStored();
+
+            // Keep going while making progress, otherwise wait for a reconnect or the next check
+            if (sent)
+                continue;
+
+            synchronized (_signal)
+            {
+                try
+                {
+                    _signal.wait(IDLE_WAIT_MS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
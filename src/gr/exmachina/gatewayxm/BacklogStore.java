@@ -0,0 +1,350 @@
+package gr.exmachina.gatewayxm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.NoSuchElementException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * On-disk overflow of TelemetryBuffer: when the in-memory buffer is full, the largest device
+ * backlog is written to a segment file instead of being dropped. A segment holds one gateway
+ * telemetry JSON message ({"device": [{"ts": .., "values": {..}}, ..]}), deflate compressed unless
+ * compression is disabled; the repetitive keys and device names typically shrink 5-10x.
+ * Segments survive restarts and are replayed oldest first, after the in-memory backlog.
+ * Bounded by total size; when full the oldest segments are dropped.
+ * File name: {sequence}-{rows}.json[.deflate]
+ *
+ * @author Ex-Machina
+ *
+ */
+public class BacklogStore
+{
+    /** Extension of uncompressed segments */
+    public static final String JSON_EXTENSION = ".json";
+
+    /** Extension of compressed segments */
+    public static final String DEFLATE_EXTENSION = ".json.deflate";
+
+    /** Extension of segments being written */
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    /** Segment directory, null when disabled */
+    private File _dir;
+
+    /** Compress new segments */
+    private boolean _compress = true;
+
+    /** Max bytes over all segments */
+    private long _maxBytes = 64L * 1024 * 1024;
+
+    /** Segments, oldest first */
+    private final Deque<Segment> _segments = new ArrayDeque<>();
+
+    /** Bytes over all segments */
+    private long _bytes = 0;
+
+    /** Sequence number of the next segment */
+    private long _sequence = 0;
+
+    /** Reused compressor */
+    private final Deflater _deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+    /** Reused decompressor */
+    private final Inflater _inflater = new Inflater();
+
+    /** Gateway self-telemetry */
+    private final GatewayMetrics _metrics;
+
+    /** Rate limited hot path logging */
+    private final HotLog _log;
+
+    /**
+     * Constructor
+     * @param metrics Gateway self-telemetry
+     * @param log Rate limited hot path logging
+     */
+    public BacklogStore(GatewayMetrics metrics, HotLog log)
+    {
+        _metrics = metrics;
+        _log = log;
+    }
+
+    /**
+     * Set segment directory and limits, loading the segments already in the directory
+     * @param dir Segment directory, empty disables the disk backlog
+     * @param compress Deflate new segments
+     * @param maxMb Max size of all segments in MB
+     */
+    public synchronized void configure(String dir, boolean compress, int maxMb)
+    {
+        _compress = compress;
+        _maxBytes = Math.max(1, maxMb) * 1024L * 1024L;
+
+        File newDir = dir == null || dir.trim().isEmpty() ? null : new File(dir.trim());
+        if (newDir == null || !newDir.equals(_dir))
+        {
+            _dir = newDir;
+            load();
+        }
+
+        trim();
+    }
+
+    /**
+     * True if a segment directory is set
+     */
+    public synchronized boolean isEnabled()
+    {
+        return _dir != null;
+    }
+
+    /**
+     * Write series to a new segment
+     * @return True if written, false if disabled or on I/O error
+     */
+    public synchronized boolean store(TelemetrySeries series)
+    {
+        if (_dir == null || series.getRows() == 0)
+            return false;
+
+        String name = String.format("%019d-%d%s", _sequence++, series.getRows(),
+                _compress ? DEFLATE_EXTENSION : JSON_EXTENSION);
+        File file = new File(_dir, name);
+        File temp = new File(_dir, name + TEMP_EXTENSION);
+
+        try
+        {
+            byte[] data = new JsonPayloadCodec().telemetry(series, series.getRows());
+            if (_compress)
+                data = deflate(data);
+
+            Files.write(temp.toPath(), data);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+            Segment segment = new Segment(file, series.getRows(), data.length);
+            _segments.add(segment);
+            _bytes += segment.size;
+            trim();
+            return true;
+        }
+        catch (IOException e)
+        {
+            temp.delete();
+            _log.warn(HotLog.Category.PUBLISH_FAILURE, "Could not write backlog segment {}: {}", file,
+                    e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Oldest segment, null if none
+     */
+    public synchronized Segment oldest()
+    {
+        return _segments.peekFirst();
+    }
+
+    /**
+     * Segment file content, as stored
+     * @throws IOException if the segment cannot be read
+     */
+    public byte[] read(Segment segment) throws IOException
+    {
+        return Files.readAllBytes(segment.file.toPath());
+    }
+
+    /**
+     * Read segment back into a series
+     * @throws IOException if the segment cannot be read or decoded
+     */
+    public TelemetrySeries decode(Segment segment) throws IOException
+    {
+        byte[] data = read(segment);
+        if (segment.isCompressed())
+            data = inflate(data);
+
+        try
+        {
+            JSONObject root = new JSONObject(new String(data, StandardCharsets.UTF_8));
+            String deviceName = root.keys().next();
+            TelemetrySeries series = new TelemetrySeries(deviceName);
+
+            JSONArray rows = root.getJSONArray(deviceName);
+            for (int i = 0; i < rows.length(); i++)
+            {
+                JSONObject row = rows.getJSONObject(i);
+                long ts = row.getLong("ts");
+                JSONObject values = row.getJSONObject("values");
+                for (String key : values.keySet())
+                    series.add(ts, key, values.get(key).toString());
+            }
+
+            return series;
+        }
+        catch (JSONException | NoSuchElementException e)
+        {
+            throw new IOException("Malformed segment " + segment.file.getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Delete a replayed or unreadable segment
+     * @param sent False if its rows are lost, they are counted as dropped
+     */
+    public synchronized void remove(Segment segment, boolean sent)
+    {
+        if (!_segments.remove(segment))
+            return;
+
+        _bytes -= segment.size;
+        segment.file.delete();
+
+        if (!sent)
+            _metrics.bufferDropped.add(segment.rows);
+    }
+
+    /**
+     * Bytes over all segments
+     */
+    public synchronized long getBytes()
+    {
+        return _bytes;
+    }
+
+    /**
+     * Drop oldest segments until within bounds
+     */
+    private void trim()
+    {
+        while (_bytes > _maxBytes && !_segments.isEmpty())
+            remove(_segments.peekFirst(), false);
+    }
+
+    /**
+     * Index the segments of the directory, removing unfinished ones
+     */
+    private void load()
+    {
+        _segments.clear();
+        _bytes = 0;
+        _sequence = 0;
+
+        if (_dir == null)
+            return;
+
+        if (!_dir.isDirectory() && !_dir.mkdirs())
+        {
+            GatewayXM.logger.info("Could not create backlog directory " + _dir + ", disk backlog disabled.");
+            _dir = null;
+            return;
+        }
+
+        File[] files = _dir.listFiles();
+        if (files == null)
+            return;
+
+        Arrays.sort(files);
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (name.endsWith(TEMP_EXTENSION))
+            {
+                file.delete();
+                continue;
+            }
+
+            if (!name.endsWith(JSON_EXTENSION) && !name.endsWith(DEFLATE_EXTENSION))
+                continue;
+
+            try
+            {
+                String[] parts = name.substring(0, name.indexOf('.')).split("-");
+                _sequence = Math.max(_sequence, Long.parseLong(parts[0]) + 1);
+                Segment segment = new Segment(file, Integer.parseInt(parts[1]), file.length());
+                _segments.add(segment);
+                _bytes += segment.size;
+            }
+            catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+            {
+                GatewayXM.logger.info("Ignoring unknown file in backlog directory: " + name);
+            }
+        }
+
+        if (!_segments.isEmpty())
+            GatewayXM.logger.info("Disk backlog: " + _segments.size() + " segments, " + _bytes + " bytes to replay.");
+    }
+
+    /** Compress with the reused deflater */
+    private byte[] deflate(byte[] data) throws IOException
+    {
+        _deflater.reset();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (DeflaterOutputStream deflate = new DeflaterOutputStream(out, _deflater))
+        {
+            deflate.write(data);
+        }
+
+        return out.toByteArray();
+    }
+
+    /** Decompress with the reused inflater */
+    private synchronized byte[] inflate(byte[] data) throws IOException
+    {
+        _inflater.reset();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 8);
+        try (InputStream inflate = new InflaterInputStream(new ByteArrayInputStream(data), _inflater))
+        {
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = inflate.read(chunk)) > 0)
+                out.write(chunk, 0, read);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * A segment file
+     */
+    public static class Segment
+    {
+        final File file;
+        final int rows;
+        final long size;
+
+        Segment(File file, int rows, long size)
+        {
+            this.file = file;
+            this.rows = rows;
+            this.size = size;
+        }
+
+        /** True if deflate compressed */
+        public boolean isCompressed()
+        {
+            return file.getName().endsWith(DEFLATE_EXTENSION);
+        }
+
+        /** Rows in the segment */
+        public int getRows()
+        {
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package gr.exmachina.gatewayxm;
+
+import java.io.IOException;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * Optional upstream for the disk backlog: instead of being decoded and replayed through the
+ * thingsboard gateway API, BacklogStore segments are shipped as they are stored, compressed, to a
+ * batch receiver over MQTT. Topic: {BATCH_TOPIC}/{client id}/json or .../deflate; payload: the
+ * segment, one gateway telemetry JSON message, deflated for .../deflate. Any receiver that inflates
+ * the payload and posts it to v1/gateway/telemetry can stand in for the real one, eg. a small
+ * script on a local broker.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class BatchUploader
+{
+    /** Topic prefix of uploaded batches */
+    public static final String BATCH_TOPIC = "gatewayxm/batch";
+
+    /** Message QOS */
+    public static final int MQTT_QOS = 1;
+
+    /** Receiver broker uri, empty when disabled */
+    private String _brokerUrl = "";
+
+    /** MQTT client id, also part of the topic */
+    private String _clientId = "GatewayXM";
+
+    /** Paho mqtt client object, connected on first upload */
+    private MqttClient _mqttClient;
+
+    /** Disk backlog */
+    private final BacklogStore _store;
+
+    /** Publish rate limits */
+    private final PublishShaper _shaper;
+
+    /** Gateway self-telemetry */
+    private final GatewayMetrics _metrics;
+
+    /** Rate limited hot path logging */
+    private final HotLog _log;
+
+    /**
+     * Constructor
+     * @param store Disk backlog
+     * @param shaper Publish rate limits
+     * @param metrics Gateway self-telemetry
+     * @param log Rate limited hot path logging
+     */
+    public BatchUploader(BacklogStore store, PublishShaper shaper, GatewayMetrics metrics, HotLog log)
+    {
+        _store = store;
+        _shaper = shaper;
+        _metrics = metrics;
+        _log = log;
+    }
+
+    /**
+     * Set receiver, disconnecting from the previous one
+     * @param brokerUrl Receiver broker uri, eg. tcp://localhost:1883, empty disables
+     * @param clientId MQTT client id
+     */
+    public synchronized void configure(String brokerUrl, String clientId)
+    {
+        brokerUrl = brokerUrl == null ? "" : brokerUrl.trim();
+        if (brokerUrl.equals(_brokerUrl) && clientId.equals(_clientId))
+            return;
+
+        disconnect();
+        _brokerUrl = brokerUrl;
+        _clientId = clientId;
+    }
+
+    /**
+     * True if a receiver is set
+     */
+    public synchronized boolean isEnabled()
+    {
+        return _brokerUrl.length() > 0;
+    }
+
+    /**
+     * Upload the oldest disk backlog segment, removing it once delivered
+     * @return True if a segment was uploaded
+     */
+    public boolean uploadNext()
+    {
+        BacklogStore.Segment segment = _store.oldest();
+        if (segment == null)
+            return false;
+
+        byte[] data;
+        try
+        {
+            data = _store.read(segment);
+        }
+        catch (IOException e)
+        {
+            GatewayXM.logger.info("Dropping unreadable backlog segment: " + e.getMessage());
+            _store.remove(segment, false);
+            return false;
+        }
+
+        if (!_shaper.acquire(PublishShaper.Traffic.BACKLOG, data.length))
+            return false;
+
+        // Connect and publish outside the lock, so configure and disconnect never wait for the receiver
+        String brokerUrl, topic;
+        synchronized (this)
+        {
+            brokerUrl = _brokerUrl;
+            topic = BATCH_TOPIC + "/" + _clientId + (segment.isCompressed() ? "/deflate" : "/json");
+        }
+
+        MqttClient client = connect();
+        if (client == null)
+            return false;
+
+        MqttMessage message = new MqttMessage(data);
+        message.setQos(MQTT_QOS);
+
+        try
+        {
+            client.publish(topic, message);
+        }
+        catch (MqttException e)
+        {
+            _metrics.publishFailures.increment();
+            _log.warn(HotLog.Category.PUBLISH_FAILURE, "Could not upload batch to {}: {}", brokerUrl,
+                    e.getMessage());
+            return false;
+        }
+
+        _metrics.messagesOut.increment();
+        _store.remove(segment, true);
+        return true;
+    }
+
+    /**
+     * Disconnect from the receiver
+     */
+    public synchronized void disconnect()
+    {
+        if (_mqttClient == null)
+            return;
+
+        close(_mqttClient);
+        _mqttClient = null;
+    }
+
+    /**
+     * Connect to the receiver unless connected
+     * @return Connected client, null if the connection failed or the receiver changed meanwhile
+     */
+    private MqttClient connect()
+    {
+        MqttClient client;
+        String brokerUrl;
+        synchronized (this)
+        {
+            brokerUrl = _brokerUrl;
+            if (_mqttClient != null && _mqttClient.isConnected())
+                return _mqttClient;
+
+            try
+            {
+                if (_mqttClient == null)
+                    _mqttClient = new MqttClient(_brokerUrl, _clientId + "-batch", new MemoryPersistence());
+            }
+            catch (MqttException | IllegalArgumentException e)
+            {
+                _log.warn(HotLog.Category.PUBLISH_FAILURE, "Could not connect to batch receiver {}: {}", _brokerUrl,
+                        e.getMessage());
+                return null;
+            }
+            client = _mqttClient;
+        }
+
+        try
+        {
+            MqttConnectOptions connOpts = new MqttConnectOptions();
+            connOpts.setCleanSession(true);
+            connOpts.setConnectionTimeout(ThingsboardMqtt.CONNECT_TIMEOUT_S);
+            client.connect(connOpts);
+        }
+        catch (MqttException e)
+        {
+            _log.warn(HotLog.Category.PUBLISH_FAILURE, "Could not connect to batch receiver {}: {}",
+                    brokerUrl, e.getMessage());
+            return null;
+        }
+
+        synchronized (this)
+        {
+            // Reconfigured or disconnected while connecting
+            if (client != _mqttClient)
+            {
+                close(client);
+                return null;
+            }
+        }
+
+        GatewayXM.logger.info("Connected to batch receiver " + brokerUrl);
+        return client;
+    }
+
+    /**
+     * Disconnect and release a client
+     */
+    private static void close(MqttClient client)
+    {
+        try
+        {
+            if (client.isConnected())
+                client.disconnect();
+            client.close();
+        }
+        catch (MqttException e)
+        {
+            // Nothing to do
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package gr.exmachina.gatewayxm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Consistent hash ring mapping keys (device names) to one of N shards.
+ * Each shard owns several virtual nodes so keys spread evenly, and changing the number of shards
+ * only moves the keys of the shards added or removed.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class ConsistentHashRing
+{
+    /** Virtual nodes per shard */
+    private static final int VIRTUAL_NODES = 64;
+
+    /** Ring position -> shard index */
+    private final TreeMap<Integer, Integer> _ring = new TreeMap<>();
+
+    /** Resolved shard per key, keys repeat on every publish */
+    private final Map<String, Integer> _cache = new ConcurrentHashMap<>();
+
+    /** Number of shards */
+    private final int _shards;
+
+    /**
+     * Constructor
+     * @param shards Number of shards, at least 1
+     */
+    public ConsistentHashRing(int shards)
+    {
+        _shards = Math.max(1, shards);
+
+        for (int shard = 0; shard < _shards; shard++)
+        {
+            for (int v = 0; v < VIRTUAL_NODES; v++)
+                _ring.put(hash("shard-" + shard + "#" + v), shard);
+        }
+    }
+
+    /**
+     * Get shard index for key
+     */
+    public int shardOf(String key)
+    {
+        if (_shards == 1)
+            return 0;
+
+        Integer shard = _cache.get(key);
+        if (shard != null)
+            return shard;
+
+        Map.Entry<Integer, Integer> entry = _ring.ceilingEntry(hash(key));
+        if (entry == null)
+            entry = _ring.firstEntry();
+
+        _cache.put(key, entry.getValue());
+        return entry.getValue();
+    }
+
+    /**
+     * Number of shards
+     */
+    public int getShards()
+    {
+        return _shards;
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes, followed by a murmur3 finalizer for better avalanche
+     */
+    private static int hash(String key)
+    {
+        int h = 0x811c9dc5;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8))
+        {
+            h ^= b;
+            h *= 0x01000193;
+        }
+
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,130 @@
+package gr.exmachina.gatewayxm;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ * Secondary sink exporting telemetry to a local file, one JSON object per line:
+ * {"device": .., "ts": .., "values": {..}}. When the file reaches its max size it is renamed to
+ * {file}.1, replacing the previous one, and a new file is started.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class FileSink implements TelemetrySink
+{
+    /** Export file */
+    private final File _file;
+
+    /** Max file size in bytes */
+    private final long _maxBytes;
+
+    /** Open writer, null until the first batch */
+    private Writer _writer;
+
+    /** Bytes in the export file */
+    private long _bytes;
+
+    /** Rate limited hot path logging */
+    private final HotLog _log;
+
+    /**
+     * Constructor
+     * @param path Export file
+     * @param maxMb Max file size in MB before rotating
+     * @param log Rate limited hot path logging
+     */
+    public FileSink(String path, int maxMb, HotLog log)
+    {
+        _file = new File(path);
+        _maxBytes = Math.max(1, maxMb) * 1024L * 1024L;
+        _log = log;
+    }
+
+    @Override
+    public String getName()
+    {
+        return "file " + _file;
+    }
+
+    @Override
+    public boolean publishTelemetry(List<TelemetryPacket> packets)
+    {
+        try
+        {
+            if (_writer == null)
+                open();
+
+            for (TelemetryPacket packet : packets)
+            {
+                JSONObject line = new JSONObject();
+                line.put("device", packet.getDeviceName());
+                line.put("ts", packet.getTimestamp());
+                line.put("values", new JSONObject(packet.getData()));
+
+                String text = line.toString() + "\n";
+                _writer.write(text);
+                _bytes += text.length();
+            }
+            _writer.flush();
+
+            if (_bytes >= _maxBytes)
+                rotate();
+
+            return true;
+        }
+        catch (IOException e)
+        {
+            _log.warn(HotLog.Category.PUBLISH_FAILURE, "Could not export telemetry to {}: {}", _file, e.getMessage());
+            close();
+            return false;
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (_writer == null)
+            return;
+
+        try
+        {
+            _writer.close();
+        }
+        catch (IOException e)
+        {
+            // Nothing to do
+        }
+        _writer = null;
+    }
+
+    /** Open the export file for appending */
+    private void open() throws IOException
+    {
+        File dir = _file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Could not create " + dir);
+
+        _writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(_file, true), StandardCharsets.UTF_8));
+        _bytes = _file.length();
+    }
+
+    /** Move the full file aside, the next batch starts a new one */
+    private void rotate()
+    {
+        close();
+
+        File previous = new File(_file.getPath() + ".1");
+        previous.delete();
+        if (!_file.renameTo(previous))
+            _log.warn(HotLog.Category.PUBLISH_FAILURE, "Could not rotate {} to {}", _file, previous);
+    }
+}
@@ -0,0 +1,50 @@
+package gr.exmachina.gatewayxm;
+
+/**
+ * Wall clock time for telemetry timestamps that never runs backwards.
+ * Time advances with System.nanoTime from an anchor on the wall clock, so small wall clock
+ * adjustments do not reorder samples. When the wall clock was stepped (eg. NTP sync after boot)
+ * the anchor is moved, still without going back in time.
+ *
+ * @author Ex-Machina
+ *
+ */
+public final class GatewayClock
+{
+    /** Wall clock drift tolerated before re-anchoring */
+    private static final long MAX_DRIFT_MS = 1000;
+
+    /** Wall clock at anchor */
+    private static long _anchorMillis = System.currentTimeMillis();
+
+    /** System.nanoTime at anchor */
+    private static long _anchorNanos = System.nanoTime();
+
+    /** Last returned time */
+    private static long _last = 0;
+
+    /**
+     * Private constructor
+     */
+    private GatewayClock() {}
+
+    /**
+     * Current time in ms since epoch, never less than a previous result
+     */
+    public static synchronized long now()
+    {
+        long nanos = System.nanoTime();
+        long wall = System.currentTimeMillis();
+        long now = _anchorMillis + (nanos - _anchorNanos) / 1000000L;
+
+        if (Math.abs(wall - now) > MAX_DRIFT_MS)
+        {
+            _anchorMillis = wall;
+            _anchorNanos = nanos;
+            now = wall;
+        }
+
+        _last = Math.max(_last, now);
+        return _last;
+    }
+}
@@ -0,0 +1,112 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the bundle configuration. Kura's property map is copied once, so the
+ * snapshot can be handed to other threads and compared with the next one without locking.
+ *
+ * @author Ex-Machina
+ *
+ */
+public final class GatewayConfig
+{
+    /** Configuration without any property, the defaults apply */
+    public static final GatewayConfig EMPTY = new GatewayConfig(null);
+
+    /** Properties, unmodifiable */
+    private final Map<String, Object> _properties;
+
+    /**
+     * Constructor
+     * @param properties Bundle properties, copied; null for none
+     */
+    public GatewayConfig(Map<String, Object> properties)
+    {
+        _properties = properties == null ? Collections.emptyMap()
+                : Collections.unmodifiableMap(new HashMap<>(properties));
+    }
+
+    /**
+     * Property value, null if not set
+     */
+    public Object get(String key)
+    {
+        return _properties.get(key);
+    }
+
+    /**
+     * Integer property
+     * @param defaultValue Returned when property is not set
+     */
+    public int getInt(String key, int defaultValue)
+    {
+        Object value = get(key);
+        return value == null ? defaultValue : (int)value;
+    }
+
+    /**
+     * Boolean property
+     * @param defaultValue Returned when property is not set
+     */
+    public boolean getBoolean(String key, boolean defaultValue)
+    {
+        Object value = get(key);
+        return value == null ? defaultValue : (boolean)value;
+    }
+
+    /**
+     * Double property
+     * @param defaultValue Returned when property is not set
+     */
+    public double getDouble(String key, double defaultValue)
+    {
+        Object value = get(key);
+        return value == null ? defaultValue : ((Number)value).doubleValue();
+    }
+
+    /**
+     * String property, trimmed
+     * @param defaultValue Returned when property is not set
+     */
+    public String getString(String key, String defaultValue)
+    {
+        Object value = get(key);
+        return value == null ? defaultValue : value.toString().trim();
+    }
+
+    /**
+     * All properties
+     */
+    public Map<String, Object> getProperties()
+    {
+        return _properties;
+    }
+
+    /**
+     * Keys whose value was added, removed or changed in another configuration
+     */
+    public Set<String> changedKeys(GatewayConfig other)
+    {
+        Set<String> changed = new HashSet<>();
+
+        for (Entry<String, Object> entry : other._properties.entrySet())
+        {
+            if (!Objects.equals(entry.getValue(), _properties.get(entry.getKey())))
+                changed.add(entry.getKey());
+        }
+        for (String key : _properties.keySet())
+        {
+            if (!other._properties.containsKey(key))
+                changed.add(key);
+        }
+
+        return changed;
+    }
+}
@@ -0,0 +1,104 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Gateway self-telemetry. Counters are striped (LongAdder) so they can be updated from the poller,
+ * MQTT callback and publisher threads without contention.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class GatewayMetrics
+{
+    /** Duration of a full modbus poll cycle, excluding the poll interval wait */
+    public final LatencyHistogram pollCycle = new LatencyHistogram();
+
+    /** Duration of reading all channels of one asset */
+    public final LatencyHistogram assetRead = new LatencyHistogram();
+
+    /** Duration of a single publish to thingsboard */
+    public final LatencyHistogram publishLatency = new LatencyHistogram();
+
+    /** Duration from RPC request arrival to its channel writes being acknowledged */
+    public final LatencyHistogram rpcLatency = new LatencyHistogram();
+
+    /** Successful modbus channel reads */
+    public final LongAdder channelReads = new LongAdder();
+
+    /** Failed modbus channel reads */
+    public final LongAdder channelReadFailures = new LongAdder();
+
+    /** Messages received from sensor nodes */
+    public final LongAdder messagesIn = new LongAdder();
+
+    /** Messages published to thingsboard */
+    public final LongAdder messagesOut = new LongAdder();
+
+    /** Failed publishes to thingsboard */
+    public final LongAdder publishFailures = new LongAdder();
+
+    /** Publishes currently in progress */
+    public final LongAdder inFlight = new LongAdder();
+
+    /** Connections to thingsboard established after the first one */
+    public final LongAdder reconnects = new LongAdder();
+
+    /** Connections to thingsboard lost */
+    public final LongAdder connectionsLost = new LongAdder();
+
+    /** Live messages held back by the publish rate limits, buffered for replay */
+    public final LongAdder publishDeferred = new LongAdder();
+
+    /** Buffered telemetry rows dropped because the buffer was full */
+    public final LongAdder bufferDropped = new LongAdder();
+
+    /** RPC requests that failed or were rejected */
+    public final LongAdder rpcFailures = new LongAdder();
+
+    /** Pending channel writes replaced by a newer value before being written */
+    public final LongAdder writesCoalesced = new LongAdder();
+
+    /** Packets dropped by secondary telemetry sinks, queue full or removed */
+    public final LongAdder sinkDropped = new LongAdder();
+
+    /** Failed secondary telemetry sink batches, each retried */
+    public final LongAdder sinkFailures = new LongAdder();
+
+    /** Gauges sampled at report time (eg. buffer depth), by telemetry key */
+    private final Map<String, LongSupplier> _gauges = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     */
+    public GatewayMetrics() {}
+
+    /**
+     * Register a gauge, replacing any previous gauge with the same key
+     * @param key Telemetry key
+     * @param gauge Sampled on every report
+     */
+    public void registerGauge(String key, LongSupplier gauge)
+    {
+        _gauges.put(key, gauge);
+    }
+
+    /**
+     * Remove gauge
+     */
+    public void unregisterGauge(String key)
+    {
+        _gauges.remove(key);
+    }
+
+    /**
+     * Get all registered gauges
+     */
+    public Map<String, LongSupplier> getGauges()
+    {
+        return _gauges;
+    }
+}
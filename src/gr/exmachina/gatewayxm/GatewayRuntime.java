@@ -0,0 +1,610 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * One gateway pipeline: owns, starts, reconfigures and stops the acquisition, publishing and
+ * monitoring components for a configuration. Components are created by the runtime and handed
+ * their collaborators, no state is shared between runtimes, so several pipelines can run in one
+ * JVM. Configurations are immutable GatewayConfig snapshots, published to the component threads
+ * through a volatile field, so a component always sees a complete configuration. Lifecycle calls
+ * are serialized on the runtime.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class GatewayRuntime
+{
+    /** Properties that require reconnecting to thingsboard */
+    private static final List<String> TB_PROPS = Arrays.asList(GatewayXM.PROP_TB_GW_ACCESS_TOKEN,
+            GatewayXM.PROP_TB_GW_BROKER_URL, GatewayXM.PROP_TB_GW_BROKER_PORT, GatewayXM.PROP_MQTT_CLIENT_ID,
+            GatewayXM.PROP_TB_CONNECTIONS, GatewayXM.PROP_TB_PAYLOAD_FORMAT);
+
+    /** Properties that select and configure the sparkplug output */
+    private static final List<String> OUTPUT_PROPS = Arrays.asList(GatewayXM.PROP_OUTPUT_MODE,
+            GatewayXM.PROP_SPARKPLUG_BROKER_URL, GatewayXM.PROP_SPARKPLUG_USERNAME, GatewayXM.PROP_SPARKPLUG_GROUP_ID,
+            GatewayXM.PROP_SPARKPLUG_EDGE_NODE_ID);
+
+    /** Properties of the secondary telemetry sinks */
+    private static final List<String> SINK_PROPS = Arrays.asList(GatewayXM.PROP_SINK_MQTT_BROKER,
+            GatewayXM.PROP_SINK_MQTT_TOPIC, GatewayXM.PROP_SINK_FILE_PATH, GatewayXM.PROP_SINK_FILE_MAX_SIZE,
+            GatewayXM.PROP_SINK_QUEUE_SIZE, GatewayXM.PROP_MQTT_CLIENT_ID);
+
+    /** Properties that require reconnecting to the sensor node broker */
+    private static final List<String> SENSOR_PROPS = Arrays.asList(GatewayXM.PROP_ARTEMIS_MQTT_USERNAME,
+            GatewayXM.PROP_ARTEMIS_MQTT_PORT, GatewayXM.PROP_ARTEMIS_CLIENT_ID, GatewayXM.PROP_ARTEMIS_PERSISTENCE_DIR,
+            GatewayXM.PROP_MQTT_CLIENT_ID);
+
+    /** Properties that require rebuilding the modbus acquisition engine */
+    private static final List<String> POLLER_PROPS = Arrays.asList(GatewayXM.PROP_MODBUS_ENGINE,
+            GatewayXM.PROP_MODBUS_NATIVE_DEVICES, GatewayXM.PROP_MODBUS_MAX_REGISTER_GAP, GatewayXM.PROP_MODBUS_TIMEOUT,
+            GatewayXM.PROP_MODBUS_PIPELINE_WINDOW, GatewayXM.PROP_MODBUS_IO_THREADS,
+            GatewayXM.PROP_MODBUS_ENDPOINT_CONNECTIONS, GatewayXM.PROP_MODBUS_BREAKER_THRESHOLD,
+            GatewayXM.PROP_MODBUS_BREAKER_MAX_BACKOFF, GatewayXM.PROP_MODBUS_POLL_INTERVAL,
+            GatewayXM.PROP_MODBUS_ADAPTIVE_POLL, GatewayXM.PROP_MODBUS_MIN_POLL_INTERVAL,
+            GatewayXM.PROP_MODBUS_MAX_POLL_INTERVAL, GatewayXM.PROP_MODBUS_ADAPTIVE_DEADBAND,
+            GatewayXM.PROP_MODBUS_BUS_BUDGET, GatewayXM.PROP_MODBUS_WRITE_INTERVAL);
+
+    /** Telemetry publishing properties, applied without reconnecting thingsboard */
+    private static final List<String> PUBLISH_PROPS = Arrays.asList(GatewayXM.PROP_TB_BUFFER_ROWS,
+            GatewayXM.PROP_TB_LIVE_MSG_RATE, GatewayXM.PROP_TB_LIVE_BYTE_RATE, GatewayXM.PROP_TB_BACKLOG_MSG_RATE,
+            GatewayXM.PROP_TB_BACKLOG_BYTE_RATE, GatewayXM.PROP_TB_CRITICAL_KEYS, GatewayXM.PROP_TB_BULK_KEYS,
+            GatewayXM.PROP_TB_ATTRIBUTE_KEYS, GatewayXM.PROP_TB_BACKLOG_DIR, GatewayXM.PROP_TB_BACKLOG_MAX_SIZE,
+            GatewayXM.PROP_TB_BACKLOG_COMPRESSION, GatewayXM.PROP_TB_BATCH_BROKER, GatewayXM.PROP_MQTT_CLIENT_ID);
+
+    /** Metrics and logging properties, applied without touching any connection */
+    private static final List<String> MONITORING_PROPS = Arrays.asList(GatewayXM.PROP_METRICS_REPORT_INTERVAL,
+            GatewayXM.PROP_LOG_SUMMARY_INTERVAL, GatewayXM.PROP_LOG_RATE_LIMIT);
+
+    /** Name of the output connection attempt */
+    private static final String OUTPUT = "telemetry output";
+
+    /** Name of the sensor node connection attempt */
+    private static final String SENSOR_NODES = "sensor node connection";
+
+    /** Name of the poller start attempt, retried while a previous poller thread has not exited */
+    private static final String POLLER = "modbus poller";
+
+    /** First delay between connection attempts, doubled up to CONNECT_RETRY_MAX_MS */
+    private static final long CONNECT_RETRY_MIN_MS = 1000;
+
+    /** Max delay between connection attempts */
+    private static final long CONNECT_RETRY_MAX_MS = 60000;
+
+    /** Time given to cancelled connection attempts to return when stopping */
+    private static final long CONNECT_STOP_TIMEOUT_MS = 5000;
+
+    /** Current configuration */
+    private volatile GatewayConfig _config;
+
+    /** Runs connection attempts, null when stopped */
+    private volatile ExecutorService _connector;
+
+    /** Connection attempts in progress, by name */
+    private final Map<String, Connect> _connecting = new HashMap<>();
+
+    /** Gateway self-telemetry */
+    private final GatewayMetrics _metrics = new GatewayMetrics();
+
+    /** Rate limited hot path logging and its periodic summary */
+    private final HotLog _log = new HotLog(_metrics);
+
+    /** Publish rate limits */
+    private final PublishShaper _shaper = new PublishShaper();
+
+    /** Key lanes and attributes */
+    private final KeyClassifier _classifier = new KeyClassifier();
+
+    /** Disk backlog */
+    private final BacklogStore _store = new BacklogStore(_metrics, _log);
+
+    /** Telemetry held while thingsboard is unreachable */
+    private final TelemetryBuffer _buffer = new TelemetryBuffer(_store, _metrics);
+
+    /** Bulk backlog uploads */
+    private final BatchUploader _uploader = new BatchUploader(_store, _shaper, _metrics, _log);
+
+    /** Routes telemetry to the output and secondary sinks */
+    private final SinkDispatcher _dispatcher = new SinkDispatcher(_metrics);
+
+    /** Asset circuit breakers */
+    private final AssetHealthMonitor _health = new AssetHealthMonitor(_dispatcher);
+
+    /** Channel poll intervals */
+    private final PollScheduler _pollScheduler = new PollScheduler();
+
+    /** Modbus acquisition, along with its channel writes */
+    private final ModbusPoller _poller = new ModbusPoller(_dispatcher, _health, _pollScheduler, _metrics,
+            _log);
+
+    /** Thingsboard output */
+    private final ThingsboardMqtt _thingsboard = new ThingsboardMqtt(_buffer, _store, _uploader, _shaper,
+            _classifier, _poller.getWriteScheduler(), _metrics, _log);
+
+    /** Sparkplug B output */
+    private final SparkplugPublisher _sparkplug = new SparkplugPublisher(_poller.getWriteScheduler(), _metrics,
+            _log);
+
+    /** Sensor node broker */
+    private final SensorNodes _sensorNodes = new SensorNodes(_dispatcher, _metrics, _log);
+
+    /** Publishes the metrics upstream */
+    private final MetricsReporter _reporter = new MetricsReporter(_metrics, _thingsboard, _sparkplug);
+
+    /**
+     * Constructor
+     * @param config Initial configuration
+     */
+    public GatewayRuntime(GatewayConfig config)
+    {
+        _config = config;
+        selectOutput();
+    }
+
+    /**
+     * Current configuration
+     */
+    public GatewayConfig getConfig()
+    {
+        return _config;
+    }
+
+    /**
+     * Start all components. Modbus acquisition starts at once, buffering telemetry, while the
+     * upstream output and the sensor node broker are connected in the background, each retrying
+     * independently until it succeeds.
+     * @return True if started
+     */
+    public synchronized boolean start()
+    {
+    	applyPublishConfig();
+    	applySinkConfig();
+    	selectOutput();
+
+    	_connector = Executors.newCachedThreadPool(r -> {
+    	    Thread t = new Thread(r, GatewayRuntime.class.toString() + " connector");
+    	    t.setDaemon(true);
+    	    return t;
+    	});
+
+    	// Start modbus poller, telemetry is buffered until the output is connected
+    	if (!_poller.start(_config))
+    	{
+    	    GatewayXM.logger.info("Previous modbus poller has not exited, retrying in the background.");
+    	    connectInBackground(POLLER, () -> _poller.start(_config), _poller::stop);
+    	}
+
+    	// Init thingsboard or sparkplug mqtt, thingsboard sessions that drop are reconnected
+    	_thingsboard.setConnectionLostListener(this::outputLost);
+    	connectInBackground(OUTPUT, this::startOutput, this::stopOutput);
+
+    	// Init sensor nodes
+    	connectInBackground(SENSOR_NODES, this::startSensorNodes, _sensorNodes::disconnectMqtt);
+
+    	// Replay telemetry buffered while thingsboard was unreachable
+    	_thingsboard.getBacklogReplay().start();
+    	
+    	// Report gateway self-telemetry
+    	_metrics.registerGauge("buffer_depth", () -> _thingsboard.getPendingDeliveries());
+    	_metrics.registerGauge("assets_offline", () -> _health.getOfflineCount());
+    	_metrics.registerGauge("buffered_rows", () -> _buffer.getRows());
+    	_metrics.registerGauge("publish_queue", () -> _thingsboard.getPublishScheduler().getQueued());
+    	_metrics.registerGauge("backlog_disk_bytes", () -> _store.getBytes());
+    	_metrics.registerGauge("sink_queue", () -> _dispatcher.getQueued());
+    	applyMonitoringConfig();
+    	
+    	return true;
+    }
+    
+    /**
+     * Route telemetry and the metrics report to the configured output, connected or not
+     */
+    private void selectOutput()
+    {
+        if (isSparkplugOutput())
+            _dispatcher.setPrimary(_sparkplug);
+        else
+            _dispatcher.setPrimary(_thingsboard);
+        _reporter.setSparkplugOutput(isSparkplugOutput());
+    }
+
+    /**
+     * Connect the configured telemetry output
+     */
+    private boolean startOutput()
+    {
+        if (!isSparkplugOutput())
+            return startThingsboard();
+
+        Object brokerUrl = _config.get(GatewayXM.PROP_SPARKPLUG_BROKER_URL);
+        Object username = _config.get(GatewayXM.PROP_SPARKPLUG_USERNAME);
+        Object groupId = _config.get(GatewayXM.PROP_SPARKPLUG_GROUP_ID);
+        Object edgeNodeId = _config.get(GatewayXM.PROP_SPARKPLUG_EDGE_NODE_ID);
+        if (edgeNodeId == null || edgeNodeId.toString().trim().isEmpty())
+            edgeNodeId = _config.get(GatewayXM.PROP_MQTT_CLIENT_ID);
+
+        _sparkplug.configure(brokerUrl == null ? null : brokerUrl.toString(),
+                username == null ? null : username.toString(), groupId == null ? "GatewayXM" : groupId.toString(),
+                edgeNodeId.toString());
+
+        return _sparkplug.connect();
+    }
+
+    /**
+     * A thingsboard session dropped. Called from the mqtt client thread, reconnects from the connector
+     */
+    private void outputLost()
+    {
+        ExecutorService connector = _connector;
+        if (connector == null)
+            return;
+
+        try
+        {
+            connector.execute(this::reconnectOutput);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Stopping
+        }
+    }
+
+    /**
+     * Reconnect the thingsboard sessions that are down, the buffered telemetry is sent once all are up
+     */
+    private synchronized void reconnectOutput()
+    {
+        if (_connector == null || isSparkplugOutput())
+            return;
+
+        // An attempt in progress may have checked the session before it dropped
+        Connect task = _connecting.get(OUTPUT);
+        if (task != null)
+            task.again = true;
+        else
+            connectInBackground(OUTPUT, this::startOutput, this::stopOutput);
+    }
+
+    /**
+     * Disconnect whichever telemetry output is connected
+     */
+    private void stopOutput()
+    {
+        _sparkplug.disconnect();
+        _thingsboard.disconnect();
+    }
+
+    /**
+     * True if telemetry is published as sparkplug B instead of to thingsboard
+     */
+    private boolean isSparkplugOutput()
+    {
+        return GatewayXM.OUTPUT_SPARKPLUG.equals(String.valueOf(_config.get(GatewayXM.PROP_OUTPUT_MODE)));
+    }
+
+    /**
+     * Configure and connect thingsboard mqtt
+     */
+    private boolean startThingsboard()
+    {
+        _thingsboard.setGatewayDeviceToken(_config.get(GatewayXM.PROP_TB_GW_ACCESS_TOKEN).toString());
+        _thingsboard.setClientId(_config.get(GatewayXM.PROP_MQTT_CLIENT_ID).toString());
+        _thingsboard.setBrokerUrl(_config.get(GatewayXM.PROP_TB_GW_BROKER_URL).toString());
+        _thingsboard.setBrokerPort((int)_config.get(GatewayXM.PROP_TB_GW_BROKER_PORT));
+        _thingsboard.setConnectionCount(_config.getInt(GatewayXM.PROP_TB_CONNECTIONS, 1));
+        _thingsboard.setPayloadFormat(String.valueOf(_config.get(GatewayXM.PROP_TB_PAYLOAD_FORMAT)));
+
+        return _thingsboard.connect();
+    }
+
+    /**
+     * Configure and connect to the sensor node broker
+     */
+    private boolean startSensorNodes()
+    {
+        _sensorNodes.setMqttUsername(_config.get(GatewayXM.PROP_ARTEMIS_MQTT_USERNAME).toString());
+        _sensorNodes.setMqttPort((int)_config.get(GatewayXM.PROP_ARTEMIS_MQTT_PORT));
+
+        // Stable id, so the broker keeps the session and its queued messages across restarts
+        String clientId = _config.getString(GatewayXM.PROP_ARTEMIS_CLIENT_ID, "").trim();
+        if (clientId.isEmpty())
+            clientId = _config.getString(GatewayXM.PROP_MQTT_CLIENT_ID, "GatewayXM") + SensorNodes.CLIENT_ID_SUFFIX;
+        _sensorNodes.setClientId(clientId);
+        _sensorNodes.setPersistenceDir(_config.getString(GatewayXM.PROP_ARTEMIS_PERSISTENCE_DIR, ""));
+
+        return _sensorNodes.connectMqtt();
+    }
+
+    /**
+     * (Re)apply telemetry publishing settings
+     */
+    private void applyPublishConfig()
+    {
+        Object backlogDir = _config.get(GatewayXM.PROP_TB_BACKLOG_DIR);
+        _store.configure(backlogDir == null ? null : backlogDir.toString(),
+                _config.getBoolean(GatewayXM.PROP_TB_BACKLOG_COMPRESSION, true),
+                _config.getInt(GatewayXM.PROP_TB_BACKLOG_MAX_SIZE, 64));
+        Object batchBroker = _config.get(GatewayXM.PROP_TB_BATCH_BROKER);
+        _uploader.configure(batchBroker == null ? null : batchBroker.toString(),
+                String.valueOf(_config.get(GatewayXM.PROP_MQTT_CLIENT_ID)));
+        _buffer.setMaxRows(_config.getInt(GatewayXM.PROP_TB_BUFFER_ROWS, 10000));
+        _shaper.configure(_config.getInt(GatewayXM.PROP_TB_LIVE_MSG_RATE, 0),
+                _config.getInt(GatewayXM.PROP_TB_LIVE_BYTE_RATE, 0),
+                _config.getInt(GatewayXM.PROP_TB_BACKLOG_MSG_RATE, 10),
+                _config.getInt(GatewayXM.PROP_TB_BACKLOG_BYTE_RATE, 0));
+
+        Object critical = _config.get(GatewayXM.PROP_TB_CRITICAL_KEYS);
+        Object bulk = _config.get(GatewayXM.PROP_TB_BULK_KEYS);
+        Object attributes = _config.get(GatewayXM.PROP_TB_ATTRIBUTE_KEYS);
+        _classifier.configure(critical == null ? null : critical.toString(), bulk == null ? null : bulk.toString(),
+                attributes == null ? null : attributes.toString());
+    }
+
+    /**
+     * (Re)create the secondary telemetry sinks
+     */
+    private void applySinkConfig()
+    {
+        _dispatcher.removeSinks();
+
+        int queueSize = _config.getInt(GatewayXM.PROP_SINK_QUEUE_SIZE, 10000);
+        String broker = _config.getString(GatewayXM.PROP_SINK_MQTT_BROKER, "");
+        if (!broker.isEmpty())
+        {
+            String clientId = _config.getString(GatewayXM.PROP_MQTT_CLIENT_ID, "GatewayXM") + "-sink";
+            String topic = _config.getString(GatewayXM.PROP_SINK_MQTT_TOPIC, ThingsboardMqtt.TELEMETRY_TOPIC);
+            _dispatcher.addSink(new MqttSink(broker, clientId, topic, _log), queueSize);
+        }
+
+        String file = _config.getString(GatewayXM.PROP_SINK_FILE_PATH, "");
+        if (!file.isEmpty())
+            _dispatcher.addSink(new FileSink(file, _config.getInt(GatewayXM.PROP_SINK_FILE_MAX_SIZE, 16),
+                    _log), queueSize);
+    }
+
+    /**
+     * (Re)apply metrics reporting and hot path logging settings
+     */
+    private void applyMonitoringConfig()
+    {
+        _reporter.start(_config.getInt(GatewayXM.PROP_METRICS_REPORT_INTERVAL, 0));
+
+        // Summarize hot path activity instead of logging every read/message
+        _log.setRateLimit(_config.getInt(GatewayXM.PROP_LOG_RATE_LIMIT, 10));
+        _log.startSummary(_config.getInt(GatewayXM.PROP_LOG_SUMMARY_INTERVAL, 60));
+    }
+    
+    /**
+     * Stop all components, in bounded time: acquisition first, so no new telemetry arrives, then the
+     * secondary sinks and the publish queues are flushed, and what could not be sent is moved to the
+     * disk backlog
+     */
+    public void stop()
+    {
+    	long start = System.currentTimeMillis();
+
+    	// Abandon pending connection attempts, and wait for them outside the lock they finish under
+    	ExecutorService connector;
+    	synchronized (this)
+    	{
+    	    cancelConnect(OUTPUT);
+    	    cancelConnect(SENSOR_NODES);
+    	    cancelConnect(POLLER);
+    	    connector = _connector;
+    	    _connector = null;
+    	}
+
+    	if (connector != null)
+    	{
+    	    connector.shutdownNow();
+    	    try
+    	    {
+    	        if (!connector.awaitTermination(CONNECT_STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+    	            GatewayXM.logger.info("Connection attempts did not stop in time, undoing them when they return.");
+    	    }
+    	    catch (InterruptedException e)
+    	    {
+    	        Thread.currentThread().interrupt();
+    	    }
+    	}
+
+    	synchronized (this)
+    	{
+    	    stopComponents(start);
+    	}
+    }
+
+    /**
+     * Stop the components once no connection attempt can start them again
+     */
+    private void stopComponents(long start)
+    {
+    	_reporter.stop();
+    	_log.stopSummary();
+    	_sensorNodes.disconnectMqtt();
+    	_poller.stop();
+    	_dispatcher.removeSinks();
+    	_thingsboard.getBacklogReplay().stop();
+    	_uploader.disconnect();
+    	stopOutput();
+
+    	int persisted = _buffer.persist();
+    	GatewayXM.logger.info("Gateway stopped in " + (System.currentTimeMillis() - start) + " ms, " + persisted
+    	        + " buffered rows moved to the disk backlog.");
+    }
+
+    /**
+     * Apply a new configuration to the running gateway, restarting only the components whose settings changed.
+     */
+    public synchronized void update(GatewayConfig config)
+    {
+        Set<String> changed = _config.changedKeys(config);
+        GatewayXM.logger.info("Changed properties: " + changed);
+        _config = config;
+
+        if (!Collections.disjoint(changed, OUTPUT_PROPS)
+                || (!isSparkplugOutput() && !Collections.disjoint(changed, TB_PROPS)))
+        {
+            GatewayXM.logger.info("Output settings changed, reconnecting "
+                    + (isSparkplugOutput() ? "sparkplug" : "thingsboard") + " MQTT.");
+            cancelConnect(OUTPUT);
+            stopOutput();
+            selectOutput();
+            connectInBackground(OUTPUT, this::startOutput, this::stopOutput);
+        }
+
+        if (!Collections.disjoint(changed, SENSOR_PROPS))
+        {
+            GatewayXM.logger.info("Artemis settings changed, reconnecting sensor node MQTT.");
+            cancelConnect(SENSOR_NODES);
+            _sensorNodes.disconnectMqtt();
+            connectInBackground(SENSOR_NODES, this::startSensorNodes, _sensorNodes::disconnectMqtt);
+        }
+
+        if (!Collections.disjoint(changed, POLLER_PROPS))
+        {
+            GatewayXM.logger.info("Modbus engine settings changed, rebuilding before the next poll cycle.");
+            _poller.reconfigure(_config);
+        }
+
+        if (!Collections.disjoint(changed, PUBLISH_PROPS))
+            applyPublishConfig();
+
+        if (!Collections.disjoint(changed, SINK_PROPS))
+            applySinkConfig();
+
+        if (!Collections.disjoint(changed, MONITORING_PROPS))
+            applyMonitoringConfig();
+    }
+
+    /**
+     * Connect or start in the background, retrying with backoff until it succeeds or is cancelled.
+     * Replaces an attempt of the same name.
+     * @param name Connection or component, for logs
+     * @param connect Attempt, true if connected or started
+     * @param undo Disconnects or stops again, if the attempt succeeds after the runtime stopped
+     */
+    private void connectInBackground(String name, BooleanSupplier connect, Runnable undo)
+    {
+        cancelConnect(name);
+        if (_connector == null)
+            return;
+
+        Connect task = new Connect(name, connect, undo);
+        _connecting.put(name, task);
+        _connector.execute(task);
+    }
+
+    /**
+     * Cancel a connection attempt, interrupting its retry wait
+     */
+    private void cancelConnect(String name)
+    {
+        Connect task = _connecting.remove(name);
+        if (task != null)
+            task.cancel();
+    }
+
+    /**
+     * Connection or start attempt with retries
+     */
+    private class Connect implements Runnable
+    {
+        final String name;
+        final BooleanSupplier connect;
+        final Runnable undo;
+        volatile boolean cancelled = false;
+        boolean again = false;
+        volatile Thread thread;
+
+        Connect(String name, BooleanSupplier connect, Runnable undo)
+        {
+            this.name = name;
+            this.connect = connect;
+            this.undo = undo;
+        }
+
+        void cancel()
+        {
+            cancelled = true;
+            Thread t = thread;
+            if (t != null)
+                t.interrupt();
+        }
+
+        @Override
+        public void run()
+        {
+            thread = Thread.currentThread();
+            long delay = CONNECT_RETRY_MIN_MS;
+
+            while (!cancelled)
+            {
+                try
+                {
+                    if (connect.getAsBoolean())
+                    {
+                        if (connected())
+                            return;
+                        continue;
+                    }
+                }
+                catch (RuntimeException e)
+                {
+                    GatewayXM.logger.info("Could not start " + name + ": " + e);
+                }
+
+                if (cancelled)
+                    return;
+
+                GatewayXM.logger.info("Could not start " + name + ", retrying in " + delay + " ms.");
+                try
+                {
+                    Thread.sleep(delay);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                delay = Math.min(delay * 2, CONNECT_RETRY_MAX_MS);
+            }
+        }
+
+        /**
+         * Keep the result, unless the runtime was stopped while connecting
+         * @return False if the connection dropped meanwhile and must be attempted again
+         */
+        private boolean connected()
+        {
+            synchronized (GatewayRuntime.this)
+            {
+                if (cancelled && _connector == null)
+                {
+                    GatewayXM.logger.info("Gateway stopped while starting " + name + ", stopping it again.");
+                    undo.run();
+                    return true;
+                }
+
+                if (again && !cancelled)
+                {
+                    again = false;
+                    return false;
+                }
+
+                if (_connecting.get(name) == this)
+                    _connecting.remove(name);
+                return true;
+            }
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package gr.exmachina.gatewayxm;
 
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -31,16 +30,107 @@ public class GatewayXM implements ConfigurableComponent
     public static final String PROP_TB_GW_BROKER_PORT = "tb.broker_port";
     /** Modbus poll interval in ms */
     public static final String PROP_MQTT_CLIENT_ID = "mqtt.client_id";
+    /** Number of gateway MQTT connections devices are sharded over */
+    public static final String PROP_TB_CONNECTIONS = "tb.connections";
+    /** Gateway API payload format, "json" or "protobuf" */
+    public static final String PROP_TB_PAYLOAD_FORMAT = "tb.payload_format";
+    /** Max telemetry rows buffered while thingsboard is unreachable, 0 disables */
+    public static final String PROP_TB_BUFFER_ROWS = "tb.buffer_rows";
+    /** Directory of the on-disk telemetry backlog, empty disables it */
+    public static final String PROP_TB_BACKLOG_DIR = "tb.backlog_dir";
+    /** Max size of the on-disk backlog in MB */
+    public static final String PROP_TB_BACKLOG_MAX_SIZE = "tb.backlog_max_size";
+    /** Deflate on-disk backlog segments */
+    public static final String PROP_TB_BACKLOG_COMPRESSION = "tb.backlog_compression";
+    /** Broker uri of the compressed batch receiver for the on-disk backlog, empty replays through thingsboard */
+    public static final String PROP_TB_BATCH_BROKER = "tb.batch_broker";
+    /** Max live messages per second to thingsboard, 0 for no limit */
+    public static final String PROP_TB_LIVE_MSG_RATE = "tb.live_msg_rate";
+    /** Max live bytes per second to thingsboard, 0 for no limit */
+    public static final String PROP_TB_LIVE_BYTE_RATE = "tb.live_byte_rate";
+    /** Max backlog replay messages per second to thingsboard, 0 for no limit */
+    public static final String PROP_TB_BACKLOG_MSG_RATE = "tb.backlog_msg_rate";
+    /** Max backlog replay bytes per second to thingsboard, 0 for no limit */
+    public static final String PROP_TB_BACKLOG_BYTE_RATE = "tb.backlog_byte_rate";
+    /** Comma separated patterns of telemetry keys published on the critical lane */
+    public static final String PROP_TB_CRITICAL_KEYS = "tb.critical_keys";
+    /** Comma separated patterns of telemetry keys published on the bulk lane */
+    public static final String PROP_TB_BULK_KEYS = "tb.bulk_keys";
+    /** Comma separated patterns of keys published as device attributes, on change only */
+    public static final String PROP_TB_ATTRIBUTE_KEYS = "tb.attribute_keys";
     /** Modbus poll interval in ms */
     public static final String PROP_MODBUS_POLL_INTERVAL = "modbus.poll_interval";
+    /** Modbus acquisition engine, "kura" (assets) or "native" (modbus TCP) */
+    public static final String PROP_MODBUS_ENGINE = "modbus.engine";
+    /** Native engine device definitions, JSON array */
+    public static final String PROP_MODBUS_NATIVE_DEVICES = "modbus.native_devices";
+    /** Max unused registers merged into a single read by the native engine */
+    public static final String PROP_MODBUS_MAX_REGISTER_GAP = "modbus.max_register_gap";
+    /** Native engine response timeout in ms */
+    public static final String PROP_MODBUS_TIMEOUT = "modbus.timeout";
+    /** Native engine max outstanding requests per modbus TCP endpoint */
+    public static final String PROP_MODBUS_PIPELINE_WINDOW = "modbus.pipeline_window";
+    /** Native engine selector threads shared by all modbus TCP endpoints */
+    public static final String PROP_MODBUS_IO_THREADS = "modbus.io_threads";
+    /** Native engine connections per modbus TCP endpoint */
+    public static final String PROP_MODBUS_ENDPOINT_CONNECTIONS = "modbus.endpoint_connections";
+    /** Consecutive failed polls after which an asset is considered offline */
+    public static final String PROP_MODBUS_BREAKER_THRESHOLD = "modbus.breaker_threshold";
+    /** Max seconds between polls of an offline asset */
+    public static final String PROP_MODBUS_BREAKER_MAX_BACKOFF = "modbus.breaker_max_backoff";
+    /** Adapt the poll interval of each channel to how fast its value changes */
+    public static final String PROP_MODBUS_ADAPTIVE_POLL = "modbus.adaptive_poll";
+    /** Shortest channel poll interval in ms, when adaptive */
+    public static final String PROP_MODBUS_MIN_POLL_INTERVAL = "modbus.min_poll_interval";
+    /** Longest channel poll interval in ms, when adaptive */
+    public static final String PROP_MODBUS_MAX_POLL_INTERVAL = "modbus.max_poll_interval";
+    /** Relative change in percent below which a channel value counts as stable */
+    public static final String PROP_MODBUS_ADAPTIVE_DEADBAND = "modbus.adaptive_deadband";
+    /** Max modbus transactions per second per bus, 0 for no limit */
+    public static final String PROP_MODBUS_BUS_BUDGET = "modbus.bus_budget";
+    /** Min ms between two channel writes on one bus, newer values replace pending ones meanwhile */
+    public static final String PROP_MODBUS_WRITE_INTERVAL = "modbus.write_interval";
+    /** Telemetry output, thingsboard or sparkplug */
+    public static final String PROP_OUTPUT_MODE = "output.mode";
+    /** Sparkplug broker uri */
+    public static final String PROP_SPARKPLUG_BROKER_URL = "sparkplug.broker_url";
+    /** Sparkplug broker username */
+    public static final String PROP_SPARKPLUG_USERNAME = "sparkplug.username";
+    /** Sparkplug group id */
+    public static final String PROP_SPARKPLUG_GROUP_ID = "sparkplug.group_id";
+    /** Sparkplug edge node id, the mqtt client id when empty */
+    public static final String PROP_SPARKPLUG_EDGE_NODE_ID = "sparkplug.edge_node_id";
+    /** Secondary sink broker uri, empty disables */
+    public static final String PROP_SINK_MQTT_BROKER = "sink.mqtt_broker";
+    /** Secondary sink broker topic */
+    public static final String PROP_SINK_MQTT_TOPIC = "sink.mqtt_topic";
+    /** Telemetry export file, empty disables */
+    public static final String PROP_SINK_FILE_PATH = "sink.file_path";
+    /** Telemetry export file size in MB before rotating */
+    public static final String PROP_SINK_FILE_MAX_SIZE = "sink.file_max_size";
+    /** Max packets queued per secondary sink */
+    public static final String PROP_SINK_QUEUE_SIZE = "sink.queue_size";
     /** Artemis MQTT username */
     public static final String PROP_ARTEMIS_MQTT_USERNAME = "artemis.username";
     /** Artemis MQTT port */
     public static final String PROP_ARTEMIS_MQTT_PORT = "artemis.port";
+    /** Artemis MQTT client id, empty derives it from the gateway client id */
+    public static final String PROP_ARTEMIS_CLIENT_ID = "artemis.client_id";
+    /** Artemis MQTT session state directory, empty keeps it in memory */
+    public static final String PROP_ARTEMIS_PERSISTENCE_DIR = "artemis.persistence_dir";
+    /** Gateway metrics report interval in seconds, 0 disables */
+    public static final String PROP_METRICS_REPORT_INTERVAL = "metrics.report_interval";
+    /** Activity summary log interval in seconds, 0 disables */
+    public static final String PROP_LOG_SUMMARY_INTERVAL = "log.summary_interval";
+    /** Max hot path warnings logged per category per minute */
+    public static final String PROP_LOG_RATE_LIMIT = "log.rate_limit";
 
     /**
      * Other constants
      */
+    /** Sparkplug B output mode */
+    public static final String OUTPUT_SPARKPLUG = "sparkplug";
+
     /** Modbus driver name, used to identify assets which belong to modbus driver instances */
     public static final String MODBUS_DRIVER_NAME = "org.eclipse.kura.internal.driver.modbus.ModbusDriver";
 
@@ -51,57 +141,16 @@ public class GatewayXM implements ConfigurableComponent
     public static Logger logger = LoggerFactory.getLogger(GatewayXM.class);
 
     /** Kura Asset service, for accessing all asset related functions */
-    private static AssetService m_assetService;
+    private static volatile AssetService m_assetService;
 
     /** Kura Asset service, for accessing all driver related functions */
-    private static DriverService m_driverService;
+    private static volatile DriverService m_driverService;
 
-    /** Bundle properties map, updated on activate() and update(); */
-    private static Map<String, Object> m_properties;
+    /** Gateway pipeline of this component, replaced when a configuration cannot be applied incrementally */
+    private GatewayRuntime m_runtime;
 
-    /** Polls for data on ModBus */
-//    private static ModbusPoller m_modbusPoller;
-    
-    /**
-     * Start GatewayXM
-     */
-    private boolean startGateway()
-    {
-    	// Init thingsboard mqtt
-    	ThingsboardMqtt tb = ThingsboardMqtt.inst();
-    	
-    	tb.setGatewayDeviceToken(getConfigProperty(PROP_TB_GW_ACCESS_TOKEN).toString());
-    	tb.setClientId(getConfigProperty(PROP_MQTT_CLIENT_ID).toString());
-    	tb.setBrokerUrl(getConfigProperty(PROP_TB_GW_BROKER_URL).toString());
-    	tb.setBrokerPort((int)getConfigProperty(PROP_TB_GW_BROKER_PORT));
-    	
-    	if(!tb.connect())
-    		return false;
-    	
-    	// Init sensor nodes
-    	SensorNodes sensor = SensorNodes.inst();
-    	
-    	sensor.setMqttUsername(getConfigProperty(PROP_ARTEMIS_MQTT_USERNAME).toString());
-    	sensor.setMqttPort((int)getConfigProperty(PROP_ARTEMIS_MQTT_PORT));
-    	
-    	if(!sensor.connectMqtt())
-    		return false;
-    	
-    	// Start modbus poller
-    	ModbusPoller.inst().start();
-    	
-    	return true;
-    }
-    
-    /**
-     * Stop GatewayXM
-     */
-    private void stopGateway()
-    {
-    	ThingsboardMqtt.inst().disconnect();
-    	SensorNodes.inst().disconnectMqtt();
-    	ModbusPoller.inst().stop();
-    }
+    /** True while m_runtime is started, config updates are then applied incrementally */
+    private boolean m_running = false;
 
     /**
      * Called by Kura on bundle activate.
@@ -135,11 +184,13 @@ public class GatewayXM implements ConfigurableComponent
      * 
      * @param componentContext
      */
-    protected void deactivate(ComponentContext componentContext)
+    protected synchronized void deactivate(ComponentContext componentContext)
     {
 //        m_modbusPoller.stop();
 //        m_tbForwarder.stop();
-    	stopGateway();
+    	if (m_runtime != null)
+    		m_runtime.stop();
+    	m_running = false;
 
         logger.info("Gateway Deactivated.");
     }
@@ -149,31 +200,32 @@ public class GatewayXM implements ConfigurableComponent
      * 
      * @param properties New bundle config
      */
-    public void updated(Map<String, Object> properties)
+    public synchronized void updated(Map<String, Object> properties)
     {
         logger.info("Gateway configuration updated.");
 
-        // Stop modbus and forwarder before updating configuration
-//        m_modbusPoller.stop();
-//        m_tbForwarder.stop();
-        stopGateway();
-
-        m_properties = properties;
+        GatewayConfig config = new GatewayConfig(properties);
+        for (Entry<String, Object> entry : config.getProperties().entrySet())
+        {
+            logger.info("New property - " + entry.getKey() + " = " + entry.getValue() + " of type "
+                    + entry.getValue().getClass().toString());
+        }
 
-        if (properties != null && !properties.isEmpty())
+        // Already running, apply only what changed
+        if (m_runtime != null && m_running)
         {
-            Iterator<Entry<String, Object>> it = properties.entrySet().iterator();
-            while (it.hasNext())
-            {
-                Entry<String, Object> entry = it.next();
-                logger.info("New property - " + entry.getKey() + " = " + entry.getValue() + " of type "
-                        + entry.getValue().getClass().toString());
-            }
+            m_runtime.update(config);
+            return;
         }
-        
-        if(startGateway() == false)
+
+        if (m_runtime != null)
+            m_runtime.stop();
+
+        m_runtime = new GatewayRuntime(config);
+        m_running = m_runtime.start();
+        if(m_running == false)
         {
-        	stopGateway(); // Clean up if failed
+        	m_runtime.stop(); // Clean up if failed
         	logger.info("Could not start GatewayXM");
         }
 
@@ -182,17 +234,6 @@ public class GatewayXM implements ConfigurableComponent
 //            m_modbusPoller.start();
     }
 
-    /**
-     * Get property from bundle's config (set from kura web ui)
-     * 
-     * @param Property id
-     * @return
-     */
-    public static Object getConfigProperty(String key)
-    {
-        return m_properties.get(key);
-    }
-
     /** Called by Kura to set the DriverService */
     public void setDriverService(DriverService driverService)
     {
@@ -0,0 +1,190 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+/**
+ * Logging for hot paths (per channel read, per message, per publish).
+ * Debug lines are level-guarded and parameterized so nothing is formatted unless enabled.
+ * Info/warn lines are rate limited per category, with the number of suppressed lines reported
+ * once logging resumes. A periodic summary line replaces per-message logging at INFO.
+ * Rate limits and the summary belong to one gateway runtime, debug lines need no state.
+ *
+ * @author Ex-Machina
+ *
+ */
+public final class HotLog
+{
+    /**
+     * Rate limited log categories
+     */
+    public enum Category
+    {
+        MODBUS_READ_FAILURE, MODBUS_ASSET_FAILURE, SENSOR_MESSAGE_FAILURE, PUBLISH_FAILURE, RPC_FAILURE
+    }
+
+    /** Rate limit window */
+    private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    /** Limiters, by category ordinal */
+    private final Limiter[] _limiters = new Limiter[Category.values().length];
+
+    /** Max lines per category per window */
+    private volatile int _maxPerWindow = 10;
+
+    /** Counters summarized */
+    private final GatewayMetrics _metrics;
+
+    /** Summary scheduler */
+    private ScheduledExecutorService _scheduler;
+
+    /** Counter values at the previous summary */
+    private long _lastReads, _lastFailures, _lastIn, _lastOut, _lastPublishFailures;
+
+    /**
+     * Constructor
+     * @param metrics Counters summarized
+     */
+    public HotLog(GatewayMetrics metrics)
+    {
+        _metrics = metrics;
+        for (int i = 0; i < _limiters.length; i++)
+            _limiters[i] = new Limiter();
+    }
+
+    /**
+     * Guarded, parameterized debug log
+     */
+    public static void debug(String format, Object arg)
+    {
+        Logger logger = GatewayXM.logger;
+        if (logger.isDebugEnabled())
+            logger.debug(format, arg);
+    }
+
+    /**
+     * Guarded, parameterized debug log
+     */
+    public static void debug(String format, Object arg1, Object arg2)
+    {
+        Logger logger = GatewayXM.logger;
+        if (logger.isDebugEnabled())
+            logger.debug(format, arg1, arg2);
+    }
+
+    /**
+     * Rate limited, parameterized warning
+     */
+    public void warn(Category category, String format, Object arg1, Object arg2)
+    {
+        Logger logger = GatewayXM.logger;
+        if (!logger.isWarnEnabled())
+            return;
+
+        long suppressed = _limiters[category.ordinal()].tryAcquire(_maxPerWindow);
+        if (suppressed < 0)
+            return;
+
+        logger.warn(format, arg1, arg2);
+        if (suppressed > 0)
+            logger.warn("{} similar {} messages suppressed.", suppressed, category);
+    }
+
+    /**
+     * Set max lines logged per category per minute
+     */
+    public void setRateLimit(int maxPerMinute)
+    {
+        _maxPerWindow = maxPerMinute;
+    }
+
+    /**
+     * Start periodic summary logging
+     * @param intervalSec Summary interval in seconds, 0 disables the summary
+     */
+    public synchronized void startSummary(int intervalSec)
+    {
+        stopSummary();
+
+        if (intervalSec <= 0)
+            return;
+
+        _scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, HotLog.class.toString());
+            t.setDaemon(true);
+            return t;
+        });
+        _scheduler.scheduleAtFixedRate(() -> logSummary(intervalSec), intervalSec, intervalSec, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop periodic summary logging
+     */
+    public synchronized void stopSummary()
+    {
+        if (_scheduler != null)
+        {
+            _scheduler.shutdownNow();
+            _scheduler = null;
+        }
+    }
+
+    /**
+     * Log counter increases since the previous summary
+     */
+    private void logSummary(int intervalSec)
+    {
+        long reads = _metrics.channelReads.sum();
+        long failures = _metrics.channelReadFailures.sum();
+        long in = _metrics.messagesIn.sum();
+        long out = _metrics.messagesOut.sum();
+        long publishFailures = _metrics.publishFailures.sum();
+
+        GatewayXM.logger.info("{} reads, {} failures, {} sensor messages, {} published, {} publish failures in last {} s",
+                reads - _lastReads, failures - _lastFailures, in - _lastIn, out - _lastOut,
+                publishFailures - _lastPublishFailures, intervalSec);
+
+        _lastReads = reads;
+        _lastFailures = failures;
+        _lastIn = in;
+        _lastOut = out;
+        _lastPublishFailures = publishFailures;
+    }
+
+    /**
+     * Fixed window line counter for one category
+     */
+    private static class Limiter
+    {
+        private long _windowStart = System.nanoTime();
+        private int _count;
+        private long _suppressed;
+
+        /**
+         * @return -1 if the line must be dropped, otherwise the number of lines dropped since the last one logged
+         */
+        synchronized long tryAcquire(int maxPerWindow)
+        {
+            long now = System.nanoTime();
+            if (now - _windowStart > WINDOW_NANOS)
+            {
+                _windowStart = now;
+                _count = 0;
+            }
+
+            if (_count >= maxPerWindow)
+            {
+                _suppressed++;
+                return -1;
+            }
+
+            _count++;
+            long suppressed = _suppressed;
+            _suppressed = 0;
+            return suppressed;
+        }
+    }
+}
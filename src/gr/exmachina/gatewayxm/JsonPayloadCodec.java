@@ -0,0 +1,121 @@
+package gr.exmachina.gatewayxm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * JSON gateway API messages, thingsboard's default payload type
+ *
+ * @author Ex-Machina
+ *
+ */
+public class JsonPayloadCodec implements PayloadCodec
+{
+    /**
+     * {"device": [{"ts": .., "values": {..}}, ..]}
+     */
+    @Override
+    public byte[] telemetry(TelemetrySeries series, int rows)
+    {
+        JSONArray jsonDeviceTelemetries = new JSONArray();
+
+        for (int row = 0; row < rows; row++)
+        {
+            JSONObject jsonTelemetryValues = new JSONObject();
+            for (int column = 0; column < series.getColumns(); column++)
+            {
+                if (!series.hasValue(row, column))
+                    continue;
+
+                if (series.isIntegral(row, column))
+                    jsonTelemetryValues.put(series.getKey(column), series.getLong(row, column));
+                else if (series.isNumeric(row, column))
+                    jsonTelemetryValues.put(series.getKey(column), series.getNumber(row, column));
+                else
+                    jsonTelemetryValues.put(series.getKey(column), series.getText(row, column));
+            }
+
+            JSONObject jsonSingleTelemetry = new JSONObject();
+            jsonSingleTelemetry.put("ts", series.getTimestamp(row));
+            jsonSingleTelemetry.put("values", jsonTelemetryValues);
+
+            jsonDeviceTelemetries.put(jsonSingleTelemetry);
+        }
+
+        JSONObject jsonRoot = new JSONObject();
+        jsonRoot.put(series.getDeviceName(), jsonDeviceTelemetries);
+
+        return toBytes(jsonRoot);
+    }
+
+    /**
+     * {"device": ..}
+     */
+    @Override
+    public byte[] connect(String deviceName)
+    {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("device", deviceName);
+
+        return toBytes(jsonObject);
+    }
+
+    /**
+     * {"device": ..}
+     */
+    @Override
+    public byte[] disconnect(String deviceName)
+    {
+        return connect(deviceName);
+    }
+
+    /**
+     * {"device": {"key": value, ..}, ..}
+     */
+    @Override
+    public byte[] attributes(Map<String, Map<String, Object>> batch)
+    {
+        JSONObject jsonRoot = new JSONObject();
+        for (Map.Entry<String, Map<String, Object>> device : batch.entrySet())
+            jsonRoot.put(device.getKey(), new JSONObject(device.getValue()));
+
+        return toBytes(jsonRoot);
+    }
+
+    /**
+     * {"device": .., "id": .., "data": {..}}
+     */
+    @Override
+    public byte[] rpcResponse(String deviceName, Object id, JSONObject data)
+    {
+        JSONObject jsonRoot = new JSONObject();
+        jsonRoot.put("device", deviceName);
+        jsonRoot.put("id", id);
+        jsonRoot.put("data", data);
+
+        return toBytes(jsonRoot);
+    }
+
+    @Override
+    public JSONObject rpcRequest(byte[] payload)
+    {
+        try
+        {
+            return new JSONObject(new String(payload, StandardCharsets.UTF_8));
+        }
+        catch (JSONException e)
+        {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    /** UTF-8 encoded JSON */
+    private static byte[] toBytes(JSONObject json)
+    {
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
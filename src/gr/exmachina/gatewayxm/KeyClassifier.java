@@ -0,0 +1,149 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Tags telemetry keys (modbus channels and sensor node keys) with a publish lane, from comma separated
+ * glob patterns in the configuration. A pattern is matched against "device/key" and against the key
+ * alone, eg. "alarm_*", "boiler-1/*" or "*pressure*". Keys matching no pattern are NORMAL.
+ * Keys matching an attribute pattern are published as device attributes instead of telemetry.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class KeyClassifier
+{
+    /** Critical key patterns */
+    private volatile List<Pattern> _critical = new ArrayList<>();
+
+    /** Bulk key patterns */
+    private volatile List<Pattern> _bulk = new ArrayList<>();
+
+    /** Attribute key patterns */
+    private volatile List<Pattern> _attributes = new ArrayList<>();
+
+    /** Resolved attribute keys, by device + "/" + key */
+    private final Map<String, Boolean> _attributeCache = new ConcurrentHashMap<>();
+
+    /** Resolved lanes, by device + "/" + key */
+    private final Map<String, PublishScheduler.Lane> _cache = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     */
+    public KeyClassifier() {}
+
+    /**
+     * Set patterns
+     * @param critical Comma separated patterns of critical keys, may be null
+     * @param bulk Comma separated patterns of bulk keys, may be null
+     * @param attributes Comma separated patterns of attribute keys, may be null
+     */
+    public void configure(String critical, String bulk, String attributes)
+    {
+        _critical = compile(critical);
+        _bulk = compile(bulk);
+        _attributes = compile(attributes);
+        _cache.clear();
+        _attributeCache.clear();
+    }
+
+    /**
+     * True if every key is NORMAL, ie. there is nothing to classify
+     */
+    public boolean isEmpty()
+    {
+        return _critical.isEmpty() && _bulk.isEmpty();
+    }
+
+    /**
+     * True if some keys are attributes
+     */
+    public boolean hasAttributes()
+    {
+        return !_attributes.isEmpty();
+    }
+
+    /**
+     * True if the device key is published as an attribute
+     */
+    public boolean isAttribute(String device, String key)
+    {
+        if (_attributes.isEmpty())
+            return false;
+
+        String path = device + "/" + key;
+        Boolean attribute = _attributeCache.get(path);
+        if (attribute == null)
+        {
+            attribute = matches(_attributes, path, key);
+            _attributeCache.put(path, attribute);
+        }
+
+        return attribute;
+    }
+
+    /**
+     * Get lane of a device key
+     */
+    public PublishScheduler.Lane classify(String device, String key)
+    {
+        if (isEmpty())
+            return PublishScheduler.Lane.NORMAL;
+
+        String path = device + "/" + key;
+        PublishScheduler.Lane lane = _cache.get(path);
+        if (lane != null)
+            return lane;
+
+        if (matches(_critical, path, key))
+            lane = PublishScheduler.Lane.CRITICAL;
+        else if (matches(_bulk, path, key))
+            lane = PublishScheduler.Lane.BULK;
+        else
+            lane = PublishScheduler.Lane.NORMAL;
+
+        _cache.put(path, lane);
+        return lane;
+    }
+
+    private static boolean matches(List<Pattern> patterns, String path, String key)
+    {
+        for (Pattern pattern : patterns)
+        {
+            if (pattern.matcher(path).matches() || pattern.matcher(key).matches())
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Compile comma separated globs, "*" matching any characters
+     */
+    private static List<Pattern> compile(String globs)
+    {
+        List<Pattern> patterns = new ArrayList<>();
+        if (globs == null)
+            return patterns;
+
+        for (String glob : globs.split(","))
+        {
+            glob = glob.trim();
+            if (glob.isEmpty())
+                continue;
+
+            List<String> parts = new ArrayList<>();
+            for (String part : glob.split("\\*", -1))
+                parts.add(Pattern.quote(part));
+
+            patterns.add(Pattern.compile(String.join(".*", parts)));
+        }
+
+        return patterns;
+    }
+}
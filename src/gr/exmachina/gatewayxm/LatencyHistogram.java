@@ -0,0 +1,185 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear (HDR-style) buckets.
+ * Every power of two is split in SUB_BUCKETS linear steps, which keeps the relative
+ * error of any reported percentile under 1 / SUB_BUCKETS while using a fixed, small array.
+ * Values are recorded in microseconds.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class LatencyHistogram
+{
+    /** Linear sub-buckets per power of two (must be a power of two) */
+    private static final int SUB_BUCKETS = 16;
+
+    /** log2(SUB_BUCKETS) */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    /** Number of octaves tracked, enough for ~25 days in uS */
+    private static final int OCTAVES = 37;
+
+    /** Bucket counters */
+    private final AtomicLongArray _counts = new AtomicLongArray((OCTAVES + 1) * SUB_BUCKETS);
+
+    /** Total recorded values */
+    private final LongAdder _count = new LongAdder();
+
+    /** Sum of recorded values (uS) */
+    private final LongAdder _sum = new LongAdder();
+
+    /** Max value since last interval snapshot (uS) */
+    private final AtomicLong _intervalMax = new AtomicLong();
+
+    /** Bucket counters at the time of the last interval snapshot, owned by the reader */
+    private long[] _lastCounts = new long[(OCTAVES + 1) * SUB_BUCKETS];
+
+    /** Total count / sum at the time of the last interval snapshot */
+    private long _lastCount, _lastSum;
+
+    /**
+     * Record a duration given in nanoseconds
+     */
+    public void recordNanos(long nanos)
+    {
+        recordMicros(nanos / 1000);
+    }
+
+    /**
+     * Record a duration given in microseconds
+     */
+    public void recordMicros(long micros)
+    {
+        if (micros < 0)
+            micros = 0;
+
+        _counts.incrementAndGet(bucketIndex(micros));
+        _count.increment();
+        _sum.add(micros);
+
+        long max = _intervalMax.get();
+        while (micros > max && !_intervalMax.compareAndSet(max, micros))
+            max = _intervalMax.get();
+    }
+
+    /**
+     * Take a snapshot of the values recorded since the previous call.
+     * Must be called from a single reader thread.
+     */
+    public synchronized Snapshot intervalSnapshot()
+    {
+        long[] counts = new long[_counts.length()];
+        long[] delta = new long[counts.length];
+
+        for (int i = 0; i < counts.length; i++)
+        {
+            counts[i] = _counts.get(i);
+            delta[i] = counts[i] - _lastCounts[i];
+        }
+        _lastCounts = counts;
+
+        long count = _count.sum();
+        long sum = _sum.sum();
+        Snapshot snapshot = new Snapshot(delta, count - _lastCount, sum - _lastSum, _intervalMax.getAndSet(0));
+        _lastCount = count;
+        _lastSum = sum;
+
+        return snapshot;
+    }
+
+    /**
+     * Bucket index of a value: octave * SUB_BUCKETS + linear position inside the octave
+     */
+    private static int bucketIndex(long value)
+    {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int octave = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        if (octave > OCTAVES)
+            return (OCTAVES + 1) * SUB_BUCKETS - 1;
+
+        int sub = (int) (value >>> (octave - 1)) - SUB_BUCKETS;
+        return octave * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Highest value that falls into a bucket
+     */
+    private static long bucketUpperBound(int index)
+    {
+        int octave = index / SUB_BUCKETS;
+        int sub = index % SUB_BUCKETS;
+
+        if (octave == 0)
+            return sub;
+
+        return ((long) (SUB_BUCKETS + sub + 1) << (octave - 1)) - 1;
+    }
+
+    /**
+     * Immutable view of the histogram over one reporting interval
+     */
+    public static class Snapshot
+    {
+        private final long[] _counts;
+        private final long _count;
+        private final long _sum;
+        private final long _max;
+
+        Snapshot(long[] counts, long count, long sum, long max)
+        {
+            _counts = counts;
+            _count = count;
+            _sum = sum;
+            _max = max;
+        }
+
+        /** Number of values recorded in the interval */
+        public long getCount()
+        {
+            return _count;
+        }
+
+        /** Max value in the interval (uS) */
+        public long getMax()
+        {
+            return _max;
+        }
+
+        /** Mean value in the interval (uS) */
+        public long getMean()
+        {
+            return _count == 0 ? 0 : _sum / _count;
+        }
+
+        /**
+         * Value at given percentile (uS)
+         * @param percentile 0 - 100
+         */
+        public long getPercentile(double percentile)
+        {
+            if (_count == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(_count * percentile / 100.0);
+            if (rank < 1)
+                rank = 1;
+
+            long seen = 0;
+            for (int i = 0; i < _counts.length; i++)
+            {
+                seen += _counts[i];
+                if (seen >= rank)
+                    return Math.min(bucketUpperBound(i), _max);
+            }
+
+            return _max;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Periodically publishes GatewayMetrics as telemetry of the gateway device itself, so gateways
+ * can be monitored from thingsboard like any other device. In sparkplug output mode the report is
+ * published as the metrics of a SPARKPLUG_DEVICE device of the edge node instead.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class MetricsReporter implements Runnable
+{
+    /** Sparkplug device the report is published as */
+    public static final String SPARKPLUG_DEVICE = "gateway-metrics";
+
+    /** Report scheduler */
+    private ScheduledExecutorService _scheduler;
+
+    /** Counter values at the previous report, counters are reported as per-interval deltas */
+    private long _lastReads, _lastFailures, _lastIn, _lastOut, _lastPublishFailures;
+
+    /** Gateway self-telemetry */
+    private final GatewayMetrics _metrics;
+
+    /** Thingsboard output, the report is published on it unless sparkplug is the output */
+    private final ThingsboardMqtt _thingsboard;
+
+    /** Sparkplug output */
+    private final SparkplugPublisher _sparkplug;
+
+    /** Publish on the sparkplug output instead of thingsboard */
+    private volatile boolean _toSparkplug;
+
+    /**
+     * Constructor
+     * @param metrics Gateway self-telemetry
+     * @param thingsboard Thingsboard output
+     * @param sparkplug Sparkplug output
+     */
+    public MetricsReporter(GatewayMetrics metrics, ThingsboardMqtt thingsboard, SparkplugPublisher sparkplug)
+    {
+        _metrics = metrics;
+        _thingsboard = thingsboard;
+        _sparkplug = sparkplug;
+    }
+
+    /**
+     * Follow the telemetry output
+     * @param sparkplug True to publish on the sparkplug output, false for thingsboard
+     */
+    public void setSparkplugOutput(boolean sparkplug)
+    {
+        _toSparkplug = sparkplug;
+    }
+
+    /**
+     * Start reporting
+     * @param intervalSec Report interval in seconds, 0 disables reporting
+     * @return True if reporting was started
+     */
+    public synchronized boolean start(int intervalSec)
+    {
+        stop();
+
+        if (intervalSec <= 0)
+            return false;
+
+        _scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, MetricsReporter.class.toString());
+            t.setDaemon(true);
+            return t;
+        });
+        _scheduler.scheduleAtFixedRate(this, intervalSec, intervalSec, TimeUnit.SECONDS);
+
+        GatewayXM.logger.info("Metrics reporting every " + intervalSec + "s.");
+
+        return true;
+    }
+
+    /**
+     * Stop reporting
+     */
+    public synchronized void stop()
+    {
+        if (_scheduler != null)
+        {
+            _scheduler.shutdownNow();
+            _scheduler = null;
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            TelemetryPacket packet = buildPacket();
+            if (_toSparkplug)
+            {
+                packet.setDeviceName(SPARKPLUG_DEVICE);
+                _sparkplug.publishTelemetry(packet);
+            }
+            else
+            {
+                _thingsboard.publishGatewayTelemetry(packet);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // Never let an exception cancel the periodic task
+            GatewayXM.logger.info("Could not report metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sample all metrics into a telemetry packet
+     */
+    TelemetryPacket buildPacket()
+    {
+        TelemetryPacket packet = new TelemetryPacket();
+
+        packet.setTimestamp(System.currentTimeMillis());
+
+        addHistogram(packet, "poll_cycle", _metrics.pollCycle.intervalSnapshot());
+        addHistogram(packet, "asset_read", _metrics.assetRead.intervalSnapshot());
+        addHistogram(packet, "publish", _metrics.publishLatency.intervalSnapshot());
+        addHistogram(packet, "rpc", _metrics.rpcLatency.intervalSnapshot());
+
+        _lastReads = addDelta(packet, "channel_reads", _metrics.channelReads, _lastReads);
+        _lastFailures = addDelta(packet, "channel_read_failures", _metrics.channelReadFailures, _lastFailures);
+        _lastIn = addDelta(packet, "messages_in", _metrics.messagesIn, _lastIn);
+        _lastOut = addDelta(packet, "messages_out", _metrics.messagesOut, _lastOut);
+        _lastPublishFailures = addDelta(packet, "publish_failures", _metrics.publishFailures, _lastPublishFailures);
+
+        packet.addData("in_flight", String.valueOf(_metrics.inFlight.sum()));
+        packet.addData("reconnects", String.valueOf(_metrics.reconnects.sum()));
+        packet.addData("connections_lost", String.valueOf(_metrics.connectionsLost.sum()));
+        packet.addData("buffer_dropped", String.valueOf(_metrics.bufferDropped.sum()));
+        packet.addData("publish_deferred", String.valueOf(_metrics.publishDeferred.sum()));
+        packet.addData("rpc_failures", String.valueOf(_metrics.rpcFailures.sum()));
+        packet.addData("writes_coalesced", String.valueOf(_metrics.writesCoalesced.sum()));
+        packet.addData("sink_dropped", String.valueOf(_metrics.sinkDropped.sum()));
+        packet.addData("sink_failures", String.valueOf(_metrics.sinkFailures.sum()));
+
+        for (Map.Entry<String, LongSupplier> gauge : _metrics.getGauges().entrySet())
+            packet.addData(gauge.getKey(), String.valueOf(gauge.getValue().getAsLong()));
+
+        return packet;
+    }
+
+    /**
+     * Add count, p50, p99 and max (mS) of a histogram snapshot
+     */
+    private static void addHistogram(TelemetryPacket packet, String name, LatencyHistogram.Snapshot s)
+    {
+        packet.addData(name + "_count", String.valueOf(s.getCount()));
+        packet.addData(name + "_p50_ms", toMillis(s.getPercentile(50)));
+        packet.addData(name + "_p99_ms", toMillis(s.getPercentile(99)));
+        packet.addData(name + "_max_ms", toMillis(s.getMax()));
+    }
+
+    /**
+     * Add the increase of a counter since the last report
+     * @return Current counter value
+     */
+    private static long addDelta(TelemetryPacket packet, String name, LongAdder counter, long last)
+    {
+        long now = counter.sum();
+        packet.addData(name, String.valueOf(now - last));
+        return now;
+    }
+
+    /**
+     * uS to mS string with 3 decimals
+     */
+    private static String toMillis(long micros)
+    {
+        return String.format("%d.%03d", micros / 1000, micros % 1000);
+    }
+}
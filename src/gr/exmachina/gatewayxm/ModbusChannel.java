@@ -0,0 +1,106 @@
+package gr.exmachina.gatewayxm;
+
+import org.json.JSONObject;
+
+/**
+ * A register-backed value of a native modbus device, published as one telemetry key
+ *
+ * @author Ex-Machina
+ *
+ */
+public class ModbusChannel
+{
+    /**
+     * Register tables that can be polled
+     */
+    public enum Table
+    {
+        /** Read with function code 3 */
+        HOLDING(3),
+        /** Read with function code 4 */
+        INPUT(4);
+
+        private final int _readFunctionCode;
+
+        Table(int readFunctionCode)
+        {
+            _readFunctionCode = readFunctionCode;
+        }
+
+        /** Function code used to read registers of this table */
+        public int getReadFunctionCode()
+        {
+            return _readFunctionCode;
+        }
+    }
+
+    /** Channel name, used as telemetry key */
+    private final String _name;
+
+    /** Register table */
+    private final Table _table;
+
+    /** Zero based address of the first register */
+    private final int _address;
+
+    /** Register encoding */
+    private final ModbusDataType _type;
+
+    /**
+     * Constructor
+     */
+    public ModbusChannel(String name, Table table, int address, ModbusDataType type)
+    {
+        _name = name;
+        _table = table;
+        _address = address;
+        _type = type;
+    }
+
+    /**
+     * Build from JSON config, eg. {"name":"voltage","table":"holding","address":0,"type":"float32"}
+     * @throws IllegalArgumentException on invalid config
+     */
+    public static ModbusChannel fromJson(JSONObject json)
+    {
+        String name = json.getString("name");
+        Table table = Table.valueOf(json.optString("table", "holding").toUpperCase());
+        int address = json.getInt("address");
+        ModbusDataType type = ModbusDataType.valueOf(json.optString("type", "uint16").toUpperCase());
+
+        if (address < 0 || address + type.getRegisters() > 0x10000)
+            throw new IllegalArgumentException("Invalid register address for channel " + name);
+
+        return new ModbusChannel(name, table, address, type);
+    }
+
+    /** Get channel name */
+    public String getName()
+    {
+        return _name;
+    }
+
+    /** Get register table */
+    public Table getTable()
+    {
+        return _table;
+    }
+
+    /** Get zero based address of the first register */
+    public int getAddress()
+    {
+        return _address;
+    }
+
+    /** Address after the last register of the channel */
+    public int getEndAddress()
+    {
+        return _address + _type.getRegisters();
+    }
+
+    /** Get register encoding */
+    public ModbusDataType getType()
+    {
+        return _type;
+    }
+}
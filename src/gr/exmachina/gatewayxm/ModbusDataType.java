@@ -0,0 +1,144 @@
+package gr.exmachina.gatewayxm;
+
+/**
+ * Register encodings supported by the native modbus engine.
+ * Multi-register values are big-endian (high word first) unless marked SWAPPED (low word first),
+ * which is common on energy meters.
+ *
+ * @author Ex-Machina
+ *
+ */
+public enum ModbusDataType
+{
+    INT16(1), UINT16(1), INT32(2), UINT32(2), FLOAT32(2), INT32_SWAPPED(2), UINT32_SWAPPED(2), FLOAT32_SWAPPED(2),
+    INT64(4), FLOAT64(4);
+
+    /** Number of 16 bit registers the value occupies */
+    private final int _registers;
+
+    ModbusDataType(int registers)
+    {
+        _registers = registers;
+    }
+
+    /**
+     * Number of 16 bit registers the value occupies
+     */
+    public int getRegisters()
+    {
+        return _registers;
+    }
+
+    /**
+     * Decode value from register data
+     * @param data Register data, 2 bytes per register, big-endian
+     * @param offset Byte offset of the first register of the value
+     * @return Numeric value
+     */
+    public Number decode(byte[] data, int offset)
+    {
+        switch (this)
+        {
+            case INT16:
+                return (short) word(data, offset);
+            case UINT16:
+                return word(data, offset);
+            case INT32:
+                return (word(data, offset) << 16) | word(data, offset + 2);
+            case UINT32:
+                return ((long) word(data, offset) << 16) | word(data, offset + 2);
+            case FLOAT32:
+                return Float.intBitsToFloat((word(data, offset) << 16) | word(data, offset + 2));
+            case INT32_SWAPPED:
+                return (word(data, offset + 2) << 16) | word(data, offset);
+            case UINT32_SWAPPED:
+                return ((long) word(data, offset + 2) << 16) | word(data, offset);
+            case FLOAT32_SWAPPED:
+                return Float.intBitsToFloat((word(data, offset + 2) << 16) | word(data, offset));
+            case INT64:
+                return long64(data, offset);
+            case FLOAT64:
+                return Double.longBitsToDouble(long64(data, offset));
+            default:
+                throw new IllegalStateException("Unknown modbus data type " + this);
+        }
+    }
+
+    /**
+     * Encode value to register data, the inverse of decode()
+     * @param value Value to encode
+     * @param data Register data, 2 bytes per register, big-endian
+     * @param offset Byte offset of the first register of the value
+     */
+    public void encode(Number value, byte[] data, int offset)
+    {
+        switch (this)
+        {
+            case INT16:
+            case UINT16:
+                putWord(data, offset, value.intValue());
+                break;
+            case INT32:
+            case UINT32:
+                putWord(data, offset, (int) (value.longValue() >>> 16));
+                putWord(data, offset + 2, (int) value.longValue());
+                break;
+            case FLOAT32:
+                int bits = Float.floatToIntBits(value.floatValue());
+                putWord(data, offset, bits >>> 16);
+                putWord(data, offset + 2, bits);
+                break;
+            case INT32_SWAPPED:
+            case UINT32_SWAPPED:
+                putWord(data, offset + 2, (int) (value.longValue() >>> 16));
+                putWord(data, offset, (int) value.longValue());
+                break;
+            case FLOAT32_SWAPPED:
+                int swappedBits = Float.floatToIntBits(value.floatValue());
+                putWord(data, offset + 2, swappedBits >>> 16);
+                putWord(data, offset, swappedBits);
+                break;
+            case INT64:
+                putLong64(data, offset, value.longValue());
+                break;
+            case FLOAT64:
+                putLong64(data, offset, Double.doubleToLongBits(value.doubleValue()));
+                break;
+            default:
+                throw new IllegalStateException("Unknown modbus data type " + this);
+        }
+    }
+
+    /** Unsigned 16 bit register at offset */
+    private static int word(byte[] data, int offset)
+    {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    /** 64 bit value over 4 registers, high word first */
+    private static long long64(byte[] data, int offset)
+    {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (data[offset + i] & 0xFF);
+
+        return value;
+    }
+
+    /** Write 16 bit register at offset */
+    private static void putWord(byte[] data, int offset, int value)
+    {
+        data[offset] = (byte) (value >>> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    /** Write 64 bit value over 4 registers, high word first */
+    private static void putLong64(byte[] data, int offset, long value)
+    {
+        for (int i = 7; i >= 0; i--)
+        {
+            data[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A modbus TCP slave polled by the native engine, published as one thingsboard device.
+ * Configured from the modbus.native_devices JSON array, eg.
+ * [{"name":"meter1","host":"192.168.1.10","port":502,"unit":1,"channels":[...]}]
+ *
+ * @author Ex-Machina
+ *
+ */
+public class ModbusDevice
+{
+    /** Default modbus TCP port */
+    public static final int DEFAULT_PORT = 502;
+
+    /** Thingsboard device name */
+    private final String _name;
+
+    /** Slave host */
+    private final String _host;
+
+    /** Slave port */
+    private final int _port;
+
+    /** Modbus unit id */
+    private final int _unitId;
+
+    /** Polled channels */
+    private final List<ModbusChannel> _channels;
+
+    /**
+     * Constructor
+     */
+    public ModbusDevice(String name, String host, int port, int unitId, List<ModbusChannel> channels)
+    {
+        _name = name;
+        _host = host;
+        _port = port;
+        _unitId = unitId;
+        _channels = Collections.unmodifiableList(new ArrayList<>(channels));
+    }
+
+    /**
+     * Parse device list from JSON config
+     * @throws IllegalArgumentException on invalid config
+     */
+    public static List<ModbusDevice> parseAll(String json)
+    {
+        List<ModbusDevice> devices = new ArrayList<>();
+        if (json == null || json.trim().isEmpty())
+            return devices;
+
+        try
+        {
+            JSONArray jsonDevices = new JSONArray(json);
+            for (int i = 0; i < jsonDevices.length(); i++)
+            {
+                JSONObject jsonDevice = jsonDevices.getJSONObject(i);
+                JSONArray jsonChannels = jsonDevice.getJSONArray("channels");
+
+                List<ModbusChannel> channels = new ArrayList<>();
+                for (int c = 0; c < jsonChannels.length(); c++)
+                    channels.add(ModbusChannel.fromJson(jsonChannels.getJSONObject(c)));
+
+                devices.add(new ModbusDevice(jsonDevice.getString("name"), jsonDevice.getString("host"),
+                        jsonDevice.optInt("port", DEFAULT_PORT), jsonDevice.optInt("unit", 1), channels));
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // JSONException and enum lookups
+            throw new IllegalArgumentException("Invalid native modbus device config: " + e.getMessage(), e);
+        }
+
+        return devices;
+    }
+
+    /** Get thingsboard device name */
+    public String getName()
+    {
+        return _name;
+    }
+
+    /** Get slave host */
+    public String getHost()
+    {
+        return _host;
+    }
+
+    /** Get slave port */
+    public int getPort()
+    {
+        return _port;
+    }
+
+    /** Endpoint key, devices with the same endpoint share a connection */
+    public String getEndpoint()
+    {
+        return _host + ":" + _port;
+    }
+
+    /** Get modbus unit id */
+    public int getUnitId()
+    {
+        return _unitId;
+    }
+
+    /** Get polled channels */
+    public List<ModbusChannel> getChannels()
+    {
+        return _channels;
+    }
+}
@@ -0,0 +1,46 @@
+package gr.exmachina.gatewayxm;
+
+/**
+ * Pool of connections to one modbus TCP endpoint (host:port), shared by every unit behind it.
+ * Requests are spread round robin, each connection pipelining up to its window.
+ * Most slaves accept a handful of concurrent connections; a pool of 1 is the safe default.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class ModbusEndpoint
+{
+    /** Pooled connections */
+    private final ModbusTcpConnection[] _connections;
+
+    /** Next connection to use */
+    private int _next = 0;
+
+    /**
+     * Constructor
+     * @param poolSize Number of connections to the endpoint
+     * @param reactor I/O threads the connections are spread over
+     */
+    public ModbusEndpoint(String host, int port, int poolSize, int window, int timeoutMs, int idleTimeoutMs,
+            ModbusReactor reactor)
+    {
+        _connections = new ModbusTcpConnection[Math.max(1, poolSize)];
+        for (int i = 0; i < _connections.length; i++)
+            _connections[i] = new ModbusTcpConnection(host, port, window, timeoutMs, idleTimeoutMs, reactor.assign());
+    }
+
+    /**
+     * Submit request on the next pooled connection. Thread safe.
+     */
+    public void submit(ModbusRequest request)
+    {
+        ModbusTcpConnection connection;
+        synchronized (this)
+        {
+            connection = _connections[_next];
+            _next = (_next + 1) % _connections.length;
+        }
+
+        connection.submit(request);
+    }
+}
@@ -0,0 +1,34 @@
+package gr.exmachina.gatewayxm;
+
+import java.io.IOException;
+
+/**
+ * Modbus exception response returned by a slave
+ *
+ * @author Ex-Machina
+ *
+ */
+public class ModbusException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    /** Modbus exception code */
+    private final int _exceptionCode;
+
+    /**
+     * Constructor
+     * @param functionCode Function code of the failed request
+     * @param exceptionCode Exception code returned by the slave
+     */
+    public ModbusException(int functionCode, int exceptionCode)
+    {
+        super(String.format("Modbus exception %d on function code %d", exceptionCode, functionCode));
+        _exceptionCode = exceptionCode;
+    }
+
+    /** Get modbus exception code */
+    public int getExceptionCode()
+    {
+        return _exceptionCode;
+    }
+}
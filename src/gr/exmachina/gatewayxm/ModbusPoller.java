@@ -1,6 +1,12 @@
 package gr.exmachina.gatewayxm;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 import org.eclipse.kura.KuraException;
 import org.eclipse.kura.asset.Asset;
@@ -8,65 +14,142 @@ import org.eclipse.kura.channel.ChannelFlag;
 import org.eclipse.kura.channel.ChannelRecord;
 import org.eclipse.kura.driver.Driver;
 
+import gr.exmachina.gatewayxm.jfr.Flight;
+import gr.exmachina.gatewayxm.jfr.Recorder;
+
 /**
  * Polls AssetService for assets, posts read requests on their channels and forwards
  * returned data to TbForwarder.
+ * When modbus.engine is "native", modbus TCP devices are polled directly by NativeModbusEngine instead.
  *
  * @author Ex-Machina
  *
  */
 public class ModbusPoller implements Runnable
 {
-	/** Singleton instance */
-	private static ModbusPoller _inst = null;
-	
     /** Poller thread */
     Thread _thread;
 
-    /** Keeps poller thread running */
-    private boolean _isActive = false;
-	
-	/**
-	 * Private constructor
-	 */
-	private ModbusPoller() {}
+    /** Max wait for the poller thread to exit, covers a blocking Kura read */
+    private static final long STOP_TIMEOUT_MS = 5000;
+
+    /** Keeps poller thread running, written by the runtime and read by the poller thread */
+    private volatile boolean _isActive = false;
+
+    /** modbus.engine value selecting the native modbus TCP engine */
+    public static final String ENGINE_NATIVE = "native";
+
+    /** Native modbus engine, null when polling through Kura assets */
+    private volatile NativeModbusEngine _engine;
+
+    /** Set when the engine must be rebuilt from config before the next cycle */
+    private volatile boolean _reconfigure = true;
+
+    /** Configuration the engine is built from, replaced by reconfigure */
+    private volatile GatewayConfig _config = GatewayConfig.EMPTY;
+
+    /** Routes acquired telemetry to the sinks */
+    private final SinkDispatcher _dispatcher;
+
+    /** Asset circuit breakers */
+    private final AssetHealthMonitor _health;
+
+    /** Channel poll intervals */
+    private final PollScheduler _pollScheduler;
+
+    /** Channel writes, interleaved with the polls */
+    private final WriteScheduler _writeScheduler;
+
+    /** Gateway self-telemetry */
+    private final GatewayMetrics _metrics;
 	
+	/** Rate limited hot path logging */
+	private final HotLog _log;
+
 	/**
-	 * Get singleton instance
+	 * Constructor
+	 * @param dispatcher Routes acquired telemetry to the sinks
+	 * @param health Asset circuit breakers
+	 * @param pollScheduler Channel poll intervals
+	 * @param metrics Gateway self-telemetry
+	 * @param log Rate limited hot path logging
 	 */
-	public static ModbusPoller inst()
+	public ModbusPoller(SinkDispatcher dispatcher, AssetHealthMonitor health, PollScheduler pollScheduler,
+			GatewayMetrics metrics, HotLog log)
 	{
-		if(_inst == null)
-			_inst = new ModbusPoller();
-		
-		return _inst;
+		_dispatcher = dispatcher;
+		_health = health;
+		_pollScheduler = pollScheduler;
+		_metrics = metrics;
+		_writeScheduler = new WriteScheduler(this, metrics);
+		_log = log;
 	}
 	
     /**
      * Init polling thread and start polling for data on assets
      *
+     * @param config Configuration to build the acquisition engine from
      * @return True on success
      */
-    public boolean start()
+    public synchronized boolean start(GatewayConfig config)
     {
-        // Thread already running
+        // Thread already running, or a stopped one did not exit yet; never poll the bus twice
         if (_thread != null && _thread.isAlive())
-            return false;
+        {
+            if (_isActive || !join())
+                return false;
+        }
 
+        _config = config;
+        _reconfigure = true;
+        _writeScheduler.start();
+        // Set before the thread starts, it would exit at once otherwise
+        _isActive = true;
         _thread = new Thread(this);
         _thread.setName(ModbusPoller.class.toString());
         _thread.start();
-        _isActive = true;
 
         return true;
     }
     
     /**
-     * Stop polling
+     * Stop polling, interrupting the cycle wait, and wait up to STOP_TIMEOUT_MS for the poller
+     * thread to exit
      */
-    public void stop()
+    public synchronized void stop()
     {
         _isActive = false;
+        _writeScheduler.stop();
+
+        if (_thread != null)
+        {
+            _thread.interrupt();
+            join();
+        }
+    }
+
+    /**
+     * Wait for the poller thread to exit
+     * @return True if it exited
+     */
+    private boolean join()
+    {
+        try
+        {
+            _thread.join(STOP_TIMEOUT_MS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if (_thread.isAlive())
+        {
+            GatewayXM.logger.info("Poller did not stop within " + STOP_TIMEOUT_MS + " ms.");
+            return false;
+        }
+
+        return true;
     }
 
 	@Override
@@ -76,72 +159,270 @@ public class ModbusPoller implements Runnable
 
         while (_isActive)
         {
-            GatewayXM.logger.info("Waiting to read modbus...");
+            HotLog.debug("Waiting {} ms to read modbus...", _pollScheduler.getTickMs());
             // Wait X seconds before reading modbus again
             try
             {
-                int pollInterval = Integer
-                        .parseInt(GatewayXM.getConfigProperty(GatewayXM.PROP_MODBUS_POLL_INTERVAL).toString());
-                Thread.sleep(pollInterval);
+                Thread.sleep(_pollScheduler.getTickMs());
             }
             catch (InterruptedException e)
             {
-                Thread.currentThread().interrupt();
+                // Stopping
+                continue;
+            }
+
+            if (_reconfigure)
+            {
+                _reconfigure = false;
+                configureEngine();
             }
 
             // Asset service not yet set. Drivers and Services may take a while to appear after Kura starts, abort for
             // now
-            if (GatewayXM.getDriverService() == null || GatewayXM.getAssetService() == null)
+            if (_engine == null && (GatewayXM.getDriverService() == null || GatewayXM.getAssetService() == null))
                 continue;
 
-            // Iterate through all assets, ignore those that do not belong to the modbus driver
-            for (Asset asset : GatewayXM.getAssetService().listAssets())
+            long cycleStart = System.nanoTime();
+            // Sampling time shared by all values of the cycle that carry no driver timestamp
+            long cycleTimestamp = GatewayClock.now();
+            long readsBefore = _metrics.channelReads.sum();
+            long failuresBefore = _metrics.channelReadFailures.sum();
+            Recorder.PollCycle cycleEvent = Flight.RECORDER.pollCycle();
+
+            int assets;
+            if (_engine != null)
+            {
+                _engine.poll(cycleTimestamp);
+                assets = _engine.getDeviceCount();
+            }
+            else
             {
-                String driverPid = asset.getAssetConfiguration().getDriverPid();
+                assets = pollAssets(cycleTimestamp);
+            }
 
-                // Get driver by asset's driver_pid. This is needed ONLY to check if asset is under a modbus driver
-                Driver driver = GatewayXM.getDriverService().getDriver(driverPid);
+            _metrics.pollCycle.recordNanos(System.nanoTime() - cycleStart);
+            long failures = _metrics.channelReadFailures.sum() - failuresBefore;
+            cycleEvent.end(assets, (int) (_metrics.channelReads.sum() - readsBefore + failures), (int) failures);
+        }
 
-                // Assets that were created for a driver that no longer exists return null
-                if (driver == null)
-                    continue;
+        if (_engine != null)
+        {
+            _engine.close();
+            _engine = null;
+        }
+	}
 
-                // Asset must belong to the modbus driver
-                if (driver.getClass().getName() != GatewayXM.MODBUS_DRIVER_NAME)
-                    continue;
+    /**
+     * Native modbus engine, null when polling through Kura assets
+     */
+    public NativeModbusEngine getEngine()
+    {
+        return _engine;
+    }
 
-                List<ChannelRecord> channelRecords = null;
-                try
-                {
-                    channelRecords = asset.readAllChannels();
-                }
-                catch (KuraException e)
-                {
-                    GatewayXM.logger.info("Error while reading channels: " + e.getMessage());
-                }
+    /**
+     * Channel writes, routed to the native engine or the Kura assets polled here
+     */
+    public WriteScheduler getWriteScheduler()
+    {
+        return _writeScheduler;
+    }
 
-                if (channelRecords == null)
-                    continue;
+    /**
+     * Request the acquisition engine to be rebuilt from a new configuration before the next cycle
+     */
+    public void reconfigure(GatewayConfig config)
+    {
+        _config = config;
+        _reconfigure = true;
+    }
 
-                for (ChannelRecord rec : channelRecords)
+    /**
+     * Build the native modbus engine if selected in config, otherwise poll through Kura assets
+     */
+    private void configureEngine()
+    {
+        GatewayConfig config = _config;
+        _health.configure(config.getInt(GatewayXM.PROP_MODBUS_BREAKER_THRESHOLD, 3),
+                config.getInt(GatewayXM.PROP_MODBUS_BREAKER_MAX_BACKOFF, 300),
+                config.getInt(GatewayXM.PROP_MODBUS_TIMEOUT, 1000));
+        _pollScheduler.configure(config.getBoolean(GatewayXM.PROP_MODBUS_ADAPTIVE_POLL, false),
+                config.getInt(GatewayXM.PROP_MODBUS_POLL_INTERVAL, 2000),
+                config.getInt(GatewayXM.PROP_MODBUS_MIN_POLL_INTERVAL, 500),
+                config.getInt(GatewayXM.PROP_MODBUS_MAX_POLL_INTERVAL, 30000),
+                config.getDouble(GatewayXM.PROP_MODBUS_ADAPTIVE_DEADBAND, 1.0),
+                config.getInt(GatewayXM.PROP_MODBUS_BUS_BUDGET, 0));
+        _writeScheduler.configure(config.getInt(GatewayXM.PROP_MODBUS_WRITE_INTERVAL, 100));
+
+        if (_engine != null)
+        {
+            _engine.close();
+            _engine = null;
+        }
+
+        Object engine = config.get(GatewayXM.PROP_MODBUS_ENGINE);
+        if (!ENGINE_NATIVE.equals(engine))
+            return;
+
+        Object devices = config.get(GatewayXM.PROP_MODBUS_NATIVE_DEVICES);
+        try
+        {
+            _engine = new NativeModbusEngine(ModbusDevice.parseAll(devices == null ? null : devices.toString()),
+                    config.getInt(GatewayXM.PROP_MODBUS_MAX_REGISTER_GAP, 10),
+                    config.getInt(GatewayXM.PROP_MODBUS_TIMEOUT, 1000),
+                    config.getInt(GatewayXM.PROP_MODBUS_PIPELINE_WINDOW, 1),
+                    config.getInt(GatewayXM.PROP_MODBUS_IO_THREADS, 1),
+                    config.getInt(GatewayXM.PROP_MODBUS_ENDPOINT_CONNECTIONS, 1), _health, _pollScheduler,
+                    _dispatcher, _metrics, _log);
+        }
+        catch (IllegalArgumentException e)
+        {
+            GatewayXM.logger.info("Native modbus engine not started: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Channels of an asset due this cycle, within the transaction budget of its driver. Budget is only
+     * taken for assets the circuit breaker lets through.
+     * The Kura driver may coalesce channels into fewer transactions, each channel is counted as one.
+     * @return Channels to read, empty if the asset is not polled this cycle
+     */
+    private List<String> dueChannels(String deviceName, Set<String> channels, String driverPid)
+    {
+        long now = System.nanoTime();
+
+        List<String> due = new ArrayList<>();
+        for (String channel : channels)
+        {
+            if (_pollScheduler.overdue(deviceName, channel, now) >= 0)
+                due.add(channel);
+        }
+
+        if (due.isEmpty() || !_health.allowPoll(deviceName))
+            return Collections.emptyList();
+
+        int allowed = _pollScheduler.acquire(driverPid, due.size(), now);
+        if (allowed == 0)
+        {
+            _health.abandonProbe(deviceName);
+            return Collections.emptyList();
+        }
+
+        if (allowed < due.size())
+        {
+            due.sort((a, b) -> Long.compare(_pollScheduler.overdue(deviceName, b, now),
+                    _pollScheduler.overdue(deviceName, a, now)));
+            due = due.subList(0, allowed);
+        }
+
+        return due;
+    }
+
+    /**
+     * Read all channels of all modbus assets through Kura's asset layer.
+     * The read timeout belongs to the Kura driver, so here only the circuit breaker applies.
+     * Values are stamped with the driver's record timestamp, and published as one message per asset
+     * with one entry per distinct timestamp.
+     * @param cycleTimestamp Timestamp for records without one
+     * @return Number of assets polled
+     */
+    private int pollAssets(long cycleTimestamp)
+    {
+        int cycleAssets = 0;
+
+        // Iterate through all assets, ignore those that do not belong to the modbus driver
+        for (Asset asset : GatewayXM.getAssetService().listAssets())
+        {
+            // Stopping, leave the rest of the cycle
+            if (!_isActive)
+                break;
+
+            String driverPid = asset.getAssetConfiguration().getDriverPid();
+
+            // Get driver by asset's driver_pid. This is needed ONLY to check if asset is under a modbus driver
+            Driver driver = GatewayXM.getDriverService().getDriver(driverPid);
+
+            // Assets that were created for a driver that no longer exists return null
+            if (driver == null)
+                continue;
+
+            // Asset must belong to the modbus driver
+            if (driver.getClass().getName() != GatewayXM.MODBUS_DRIVER_NAME)
+                continue;
+
+            String deviceName = GatewayXM.getAssetService().getAssetPid(asset);
+
+            // Let pending RPC writes through before taking the driver again
+            _writeScheduler.yieldToWrites();
+
+            // Asset offline, skip until its backoff passed instead of waiting for the driver timeout
+            if (_health.isSuspended(deviceName))
+                continue;
+
+            Set<String> channels = asset.getAssetConfiguration().getAssetChannels().keySet();
+            List<String> due = dueChannels(deviceName, channels, driverPid);
+            if (due.isEmpty())
+                continue;
+
+            Recorder.AssetRead readEvent = Flight.RECORDER.assetRead(deviceName);
+            int assetFailures = 0;
+            cycleAssets++;
+
+            List<ChannelRecord> channelRecords = null;
+            long readStart = System.nanoTime();
+            try
+            {
+                channelRecords = due.size() == channels.size() ? asset.readAllChannels()
+                        : asset.read(new HashSet<>(due));
+            }
+            catch (KuraException e)
+            {
+                _log.warn(HotLog.Category.MODBUS_ASSET_FAILURE, "Error while reading channels of {}: {}", deviceName,
+                        e.getMessage());
+            }
+            long readNanos = System.nanoTime() - readStart;
+            _metrics.assetRead.recordNanos(readNanos);
+
+            if (channelRecords == null)
+            {
+                _health.recordFailure(deviceName);
+                readEvent.end(0, 0);
+                continue;
+            }
+
+            long now = System.nanoTime();
+            Map<Long, TelemetryPacket> packets = new TreeMap<>();
+            for (ChannelRecord rec : channelRecords)
+            {
+                // Read failed on channel, ignore
+                if (rec.getChannelStatus().getChannelFlag() != ChannelFlag.SUCCESS)
                 {
-                    // Read failed on channel, ignore
-                    if (rec.getChannelStatus().getChannelFlag() != ChannelFlag.SUCCESS)
-                    {
-                        GatewayXM.logger.info("Could not read value for ModBus channel: " + rec.getChannelName());
-                        continue;
-                    }
+                    _pollScheduler.failed(deviceName, rec.getChannelName(), now);
+                    _metrics.channelReadFailures.increment();
+                    assetFailures++;
+                    Flight.RECORDER.channelFailure(deviceName, rec.getChannelName(),
+                            rec.getChannelStatus().getExceptionMessage());
+                    _log.warn(HotLog.Category.MODBUS_READ_FAILURE, "Could not read value for ModBus channel: {} of {}",
+                            rec.getChannelName(), deviceName);
+                    continue;
+                }
 
-                    GatewayXM.logger
-                            .info("Read: " + rec.getValue().getValue() + " from Channel " + rec.getChannelName());
+                _metrics.channelReads.increment();
+                _pollScheduler.polled(deviceName, rec.getChannelName(), rec.getValue().getValue().toString(), now);
 
-                    // Populate new DataPacket obj and queue
-                    TelemetryPacket packet = new TelemetryPacket();
-                    packet.setDeviceName(GatewayXM.getAssetService().getAssetPid(asset));
-                    packet.setTimestamp(System.currentTimeMillis());
-                    packet.addData(rec.getChannelName(), rec.getValue().getValue().toString());
+                HotLog.debug("Read: {} from Channel {}", rec.getValue().getValue(), rec.getChannelName());
 
-                    ThingsboardMqtt.inst().publishTelemetry(packet);
+                // Add to the packet of the record's sampling time
+                long timestamp = rec.getTimestamp() > 0 ? rec.getTimestamp() : cycleTimestamp;
+                TelemetryPacket packet = packets.get(timestamp);
+                if (packet == null)
+                {
+                    packet = new TelemetryPacket();
+                    packet.setDeviceName(deviceName);
+                    packet.setTimestamp(timestamp);
+                    packets.put(timestamp, packet);
+                }
+                packet.addData(rec.getChannelName(), rec.getValue().getValue().toString());
 
 //	                    DataPacket packet = new DataPacket();
 //	                    packet.assetName = GatewayXM.getAssetService().getAssetPid(asset);
@@ -151,10 +432,26 @@ public class ModbusPoller implements Runnable
 //	                    packet.timestamp = System.currentTimeMillis();
 
 //	                    GatewayXM.getTbForwarder().pushPacket(packet);
-                }
             }
+
+            if (!packets.isEmpty())
+                _dispatcher.publishTelemetry(new ArrayList<>(packets.values()));
+
+            if (assetFailures < channelRecords.size() || channelRecords.isEmpty())
+            {
+                _health.recordRtt(deviceName, readNanos);
+                _health.recordSuccess(deviceName);
+            }
+            else
+            {
+                _health.recordFailure(deviceName);
+            }
+
+            readEvent.end(channelRecords.size(), assetFailures);
         }
-	}
+
+        return cycleAssets;
+    }
 	
 	
 }
\ No newline at end of file
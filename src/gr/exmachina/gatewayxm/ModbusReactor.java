@@ -0,0 +1,244 @@
+package gr.exmachina.gatewayxm;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A small, fixed set of selector threads that perform all modbus TCP I/O, so the number of threads
+ * stays the same no matter how many endpoints are polled. Each connection is bound to one I/O thread
+ * for its whole life and is only touched from that thread.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class ModbusReactor
+{
+    /** Max time between timeout checks */
+    private static final long SELECT_TIMEOUT_MS = 10;
+
+    /** I/O threads */
+    private final IoThread[] _threads;
+
+    /** Next thread to assign, round robin */
+    private int _next = 0;
+
+    /**
+     * Constructor, starts the I/O threads
+     * @param threads Number of I/O threads
+     * @throws IOException if a selector cannot be opened
+     */
+    public ModbusReactor(int threads) throws IOException
+    {
+        _threads = new IoThread[Math.max(1, threads)];
+
+        try
+        {
+            for (int i = 0; i < _threads.length; i++)
+                _threads[i] = new IoThread(i);
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+
+        for (IoThread thread : _threads)
+            thread.start();
+    }
+
+    /**
+     * Pick the I/O thread for a new connection
+     */
+    public synchronized IoThread assign()
+    {
+        IoThread thread = _threads[_next];
+        _next = (_next + 1) % _threads.length;
+        return thread;
+    }
+
+    /**
+     * Stop all I/O threads, closing their connections
+     */
+    public void close()
+    {
+        for (IoThread thread : _threads)
+        {
+            if (thread != null)
+                thread.shutdown();
+        }
+    }
+
+    /**
+     * Selector thread
+     */
+    public static class IoThread extends Thread
+    {
+        /** Selector of all connections bound to this thread */
+        private final Selector _selector;
+
+        /** Work submitted from other threads */
+        private final Queue<Runnable> _tasks = new ConcurrentLinkedQueue<>();
+
+        /** Connections bound to this thread, checked for timeouts */
+        private final List<ModbusTcpConnection> _connections = new ArrayList<>();
+
+        /** Keeps thread running */
+        private volatile boolean _running = true;
+
+        IoThread(int index) throws IOException
+        {
+            super(ModbusReactor.class.getName() + "-" + index);
+            setDaemon(true);
+            _selector = Selector.open();
+        }
+
+        /**
+         * Run task on this thread
+         */
+        public void execute(Runnable task)
+        {
+            _tasks.add(task);
+            _selector.wakeup();
+        }
+
+        /**
+         * Selector of this thread, only to be used from this thread
+         */
+        Selector selector()
+        {
+            return _selector;
+        }
+
+        /**
+         * Bind connection to this thread, called from this thread
+         */
+        void bind(ModbusTcpConnection connection)
+        {
+            if (!_connections.contains(connection))
+                _connections.add(connection);
+        }
+
+        /**
+         * Stop thread and close its connections
+         */
+        void shutdown()
+        {
+            _running = false;
+            _selector.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            while (_running)
+            {
+                try
+                {
+                    _selector.select(SELECT_TIMEOUT_MS);
+                }
+                catch (IOException e)
+                {
+                    GatewayXM.logger.info("Modbus selector failed: " + e.getMessage());
+                    break;
+                }
+
+                Runnable task;
+                while ((task = _tasks.poll()) != null)
+                    runSafely(task);
+
+                Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+                while (it.hasNext())
+                {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    ModbusTcpConnection connection = (ModbusTcpConnection) key.attachment();
+                    try
+                    {
+                        connection.handle(key);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        closeFailed(connection, e);
+                    }
+                }
+
+                long now = System.nanoTime();
+                for (ModbusTcpConnection connection : _connections)
+                {
+                    try
+                    {
+                        connection.checkTimeouts(now);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        closeFailed(connection, e);
+                    }
+                }
+            }
+
+            IOException closed = new IOException("Modbus I/O stopped");
+            for (ModbusTcpConnection connection : _connections)
+            {
+                try
+                {
+                    connection.shutdown(closed);
+                }
+                catch (RuntimeException e)
+                {
+                    GatewayXM.logger.info("Modbus connection shutdown failed: " + e);
+                }
+            }
+
+            Runnable task;
+            while ((task = _tasks.poll()) != null)
+                runSafely(task);
+
+            try
+            {
+                _selector.close();
+            }
+            catch (IOException e)
+            {
+                // Nothing to do
+            }
+        }
+
+        /**
+         * Close a connection that failed unexpectedly, failing its requests, and keep serving the others
+         */
+        private static void closeFailed(ModbusTcpConnection connection, RuntimeException e)
+        {
+            GatewayXM.logger.info("Modbus connection failed: " + e);
+            try
+            {
+                connection.close(new IOException("Modbus I/O failed: " + e, e));
+            }
+            catch (RuntimeException e2)
+            {
+                GatewayXM.logger.info("Modbus connection close failed: " + e2);
+            }
+        }
+
+        /**
+         * Run task, a failing callback must not stop I/O for every other endpoint
+         */
+        private static void runSafely(Runnable task)
+        {
+            try
+            {
+                task.run();
+            }
+            catch (RuntimeException e)
+            {
+                GatewayXM.logger.info("Modbus I/O task failed: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One read request (function code 3 or 4) covering a contiguous register range,
+ * and the channels decoded from its response.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class ModbusReadBlock
+{
+    /** Function code */
+    private final int _functionCode;
+
+    /** First register address */
+    private final int _start;
+
+    /** Number of registers */
+    private final int _count;
+
+    /** Channels inside the range */
+    private final List<ModbusChannel> _channels;
+
+    /**
+     * Constructor
+     */
+    public ModbusReadBlock(int functionCode, int start, int count, List<ModbusChannel> channels)
+    {
+        _functionCode = functionCode;
+        _start = start;
+        _count = count;
+        _channels = Collections.unmodifiableList(new ArrayList<>(channels));
+    }
+
+    /**
+     * Decode all channels of the block from the response register data into the packet
+     * @param data Register data, 2 bytes per register starting at getStart()
+     * @param packet Packet to add channel values to
+     */
+    public void decode(byte[] data, TelemetryPacket packet)
+    {
+        for (ModbusChannel channel : _channels)
+        {
+            Number value = channel.getType().decode(data, (channel.getAddress() - _start) * 2);
+            packet.addData(channel.getName(), value.toString());
+        }
+    }
+
+    /** Get function code */
+    public int getFunctionCode()
+    {
+        return _functionCode;
+    }
+
+    /** Get first register address */
+    public int getStart()
+    {
+        return _start;
+    }
+
+    /** Get number of registers */
+    public int getCount()
+    {
+        return _count;
+    }
+
+    /** Get channels inside the range */
+    public List<ModbusChannel> getChannels()
+    {
+        return _channels;
+    }
+}
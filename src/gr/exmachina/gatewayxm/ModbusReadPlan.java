@@ -0,0 +1,88 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Groups the channels of a modbus device into as few read requests as possible.
+ * Channels of the same table are sorted by address and merged into one block while the gap to the
+ * previous channel is at most maxGap registers and the block stays within the 125 register limit
+ * of a single read. Registers inside gaps are read and discarded, which is far cheaper than another
+ * bus transaction.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class ModbusReadPlan
+{
+    /** Max registers per read request (modbus spec) */
+    public static final int MAX_READ_REGISTERS = 125;
+
+    /** Read requests, in poll order */
+    private final List<ModbusReadBlock> _blocks;
+
+    /**
+     * Private constructor
+     */
+    private ModbusReadPlan(List<ModbusReadBlock> blocks)
+    {
+        _blocks = blocks;
+    }
+
+    /**
+     * Build read plan for a device
+     * @param channels Device channels
+     * @param maxGap Max unused registers allowed between two merged channels
+     */
+    public static ModbusReadPlan build(List<ModbusChannel> channels, int maxGap)
+    {
+        List<ModbusReadBlock> blocks = new ArrayList<>();
+
+        for (ModbusChannel.Table table : ModbusChannel.Table.values())
+        {
+            List<ModbusChannel> sorted = new ArrayList<>();
+            for (ModbusChannel channel : channels)
+            {
+                if (channel.getTable() == table)
+                    sorted.add(channel);
+            }
+            sorted.sort(Comparator.comparingInt(ModbusChannel::getAddress));
+
+            List<ModbusChannel> current = new ArrayList<>();
+            int start = 0, end = 0;
+
+            for (ModbusChannel channel : sorted)
+            {
+                boolean fits = !current.isEmpty() && channel.getAddress() - end <= maxGap
+                        && Math.max(end, channel.getEndAddress()) - start <= MAX_READ_REGISTERS;
+
+                if (!fits)
+                {
+                    if (!current.isEmpty())
+                        blocks.add(new ModbusReadBlock(table.getReadFunctionCode(), start, end - start, current));
+
+                    current = new ArrayList<>();
+                    start = channel.getAddress();
+                    end = channel.getEndAddress();
+                }
+
+                current.add(channel);
+                end = Math.max(end, channel.getEndAddress());
+            }
+
+            if (!current.isEmpty())
+                blocks.add(new ModbusReadBlock(table.getReadFunctionCode(), start, end - start, current));
+        }
+
+        return new ModbusReadPlan(blocks);
+    }
+
+    /**
+     * Get read requests
+     */
+    public List<ModbusReadBlock> getBlocks()
+    {
+        return _blocks;
+    }
+}
@@ -0,0 +1,207 @@
+package gr.exmachina.gatewayxm;
+
+import java.io.IOException;
+
+/**
+ * A modbus request PDU queued on a ModbusTcpConnection, completed through its callback once the
+ * response with the matching transaction id arrives, or failed on timeout or connection loss.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class ModbusRequest
+{
+    /**
+     * Request completion callback, invoked on the I/O thread
+     */
+    public interface Callback
+    {
+        /**
+         * Response received
+         * @param request Completed request
+         * @param response Response PDU, starting with the function code
+         */
+        void completed(ModbusRequest request, byte[] response);
+
+        /**
+         * Request failed, timed out or got a modbus exception response
+         */
+        void failed(ModbusRequest request, IOException e);
+    }
+
+    /** Modbus unit id */
+    private final int _unitId;
+
+    /** Request PDU, starting with the function code */
+    private final byte[] _pdu;
+
+    /** Response timeout, counted from the moment the request is sent */
+    private final int _timeoutMs;
+
+    /** Completion callback */
+    private final Callback _callback;
+
+    /** Caller context, eg. the read block the request was built from */
+    private final Object _context;
+
+    /** Transaction id, assigned when sent */
+    int transactionId;
+
+    /** Response deadline (System.nanoTime), assigned when sent */
+    long deadline;
+
+    /** Send time (System.nanoTime) */
+    long sentAt;
+
+    /** Set once completed or failed, callbacks run only once */
+    private boolean _done;
+
+    /** Priority requests are sent ahead of queued ones, eg. writes */
+    private boolean _priority;
+
+    /**
+     * Constructor
+     */
+    public ModbusRequest(int unitId, byte[] pdu, int timeoutMs, Object context, Callback callback)
+    {
+        _unitId = unitId;
+        _pdu = pdu;
+        _timeoutMs = timeoutMs;
+        _context = context;
+        _callback = callback;
+    }
+
+    /**
+     * Build a read holding/input registers request for a read block
+     */
+    public static ModbusRequest readRegisters(int unitId, ModbusReadBlock block, int timeoutMs, Callback callback)
+    {
+        byte[] pdu = new byte[] { (byte) block.getFunctionCode(), (byte) (block.getStart() >>> 8),
+                (byte) block.getStart(), (byte) (block.getCount() >>> 8), (byte) block.getCount() };
+
+        return new ModbusRequest(unitId, pdu, timeoutMs, block, callback);
+    }
+
+    /**
+     * Build a write multiple registers (FC16) request
+     * @param data Register data, 2 bytes per register, big-endian
+     */
+    public static ModbusRequest writeRegisters(int unitId, int address, byte[] data, int timeoutMs, Object context,
+            Callback callback)
+    {
+        int count = data.length / 2;
+        byte[] pdu = new byte[6 + data.length];
+        pdu[0] = 16;
+        pdu[1] = (byte) (address >>> 8);
+        pdu[2] = (byte) address;
+        pdu[3] = (byte) (count >>> 8);
+        pdu[4] = (byte) count;
+        pdu[5] = (byte) data.length;
+        System.arraycopy(data, 0, pdu, 6, data.length);
+
+        return new ModbusRequest(unitId, pdu, timeoutMs, context, callback);
+    }
+
+    /**
+     * Register data of a read registers response
+     * @throws IOException if the byte count does not match the request
+     */
+    public static byte[] registerData(ModbusReadBlock block, byte[] response) throws IOException
+    {
+        int byteCount = response.length > 1 ? response[1] & 0xFF : -1;
+        if (byteCount != block.getCount() * 2 || response.length < 2 + byteCount)
+            throw new IOException("Unexpected modbus response length " + byteCount);
+
+        byte[] data = new byte[byteCount];
+        System.arraycopy(response, 2, data, 0, byteCount);
+        return data;
+    }
+
+    /**
+     * Deliver response, exception responses fail the request
+     */
+    void complete(byte[] response)
+    {
+        if (_done)
+            return;
+
+        if ((response[0] & 0x80) != 0)
+        {
+            fail(new ModbusException(_pdu[0], response.length > 1 ? response[1] & 0xFF : 0));
+            return;
+        }
+
+        _done = true;
+        try
+        {
+            _callback.completed(this, response);
+        }
+        catch (RuntimeException e)
+        {
+            // Must not break the I/O thread or the connection's state
+            GatewayXM.logger.info("Modbus request callback failed: " + e);
+        }
+    }
+
+    /**
+     * Fail request
+     */
+    void fail(IOException e)
+    {
+        if (_done)
+            return;
+
+        _done = true;
+        try
+        {
+            _callback.failed(this, e);
+        }
+        catch (RuntimeException e2)
+        {
+            GatewayXM.logger.info("Modbus request callback failed: " + e2);
+        }
+    }
+
+    /** Get unit id */
+    public int getUnitId()
+    {
+        return _unitId;
+    }
+
+    /** Get request PDU */
+    public byte[] getPdu()
+    {
+        return _pdu;
+    }
+
+    /** Get response timeout */
+    public int getTimeoutMs()
+    {
+        return _timeoutMs;
+    }
+
+    /** Send ahead of queued requests */
+    public ModbusRequest setPriority(boolean priority)
+    {
+        _priority = priority;
+        return this;
+    }
+
+    /** True if sent ahead of queued requests */
+    public boolean isPriority()
+    {
+        return _priority;
+    }
+
+    /** Get caller context */
+    public Object getContext()
+    {
+        return _context;
+    }
+
+    /** Round trip time in nanoseconds, valid in the completion callback */
+    public long getRoundTripNanos()
+    {
+        return System.nanoTime() - sentAt;
+    }
+}
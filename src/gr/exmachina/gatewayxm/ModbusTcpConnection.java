@@ -0,0 +1,442 @@
+package gr.exmachina.gatewayxm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Non-blocking modbus TCP master connection to one endpoint.
+ * Keeps up to "window" requests outstanding on the socket and matches responses to requests by
+ * MBAP transaction id, so a poll cycle over a high latency link costs about one round trip instead
+ * of one per request. Each request times out on its own.
+ * The connection is bound to one ModbusReactor I/O thread; submit() may be called from any thread,
+ * everything else runs on the I/O thread. The socket is kept open between poll cycles and closed
+ * after idleTimeoutMs without traffic. After a failed connect, requests fail fast until the
+ * reconnect backoff has passed.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class ModbusTcpConnection
+{
+    /** MBAP header length */
+    private static final int MBAP_LENGTH = 7;
+
+    /** Max modbus TCP frame length */
+    private static final int MAX_FRAME_LENGTH = 260;
+
+    /** Initial reconnect backoff after a failed connect */
+    private static final long MIN_BACKOFF_NANOS = 500 * 1000000L;
+
+    /** Max reconnect backoff */
+    private static final long MAX_BACKOFF_NANOS = 30 * 1000000000L;
+
+    /** Endpoint host */
+    private final String _host;
+
+    /** Endpoint port */
+    private final int _port;
+
+    /** Max requests outstanding on the socket */
+    private final int _window;
+
+    /** Connect timeout */
+    private final int _connectTimeoutMs;
+
+    /** Idle time after which the socket is closed */
+    private final long _idleTimeoutNanos;
+
+    /** I/O thread this connection is bound to */
+    private final ModbusReactor.IoThread _io;
+
+    /** Socket, null when closed */
+    private SocketChannel _channel;
+
+    /** Selection key of the socket */
+    private SelectionKey _key;
+
+    /** Connection established */
+    private boolean _connected;
+
+    /** Connect deadline (System.nanoTime) */
+    private long _connectDeadline;
+
+    /** Last send or receive (System.nanoTime) */
+    private long _lastActivity;
+
+    /** Current reconnect backoff, 0 after a successful connect */
+    private long _backoffNanos = 0;
+
+    /** No connect attempts before this time (System.nanoTime) */
+    private long _retryAt;
+
+    /** Set when the I/O thread stopped, requests then fail immediately */
+    private boolean _shutdown;
+
+    /** Requests waiting for a free window slot */
+    private final ArrayDeque<ModbusRequest> _queue = new ArrayDeque<>();
+
+    /** Requests sent and awaiting response, by transaction id */
+    private final Map<Integer, ModbusRequest> _inFlight = new HashMap<>();
+
+    /** Incoming bytes, in write mode */
+    private final ByteBuffer _readBuffer = ByteBuffer.allocateDirect(MAX_FRAME_LENGTH * 4);
+
+    /** Outgoing bytes, in write mode */
+    private final ByteBuffer _writeBuffer;
+
+    /** Next transaction id */
+    private int _nextTransactionId = 0;
+
+    /**
+     * Constructor
+     * @param window Max requests outstanding, 1 disables pipelining
+     * @param io I/O thread to bind the connection to
+     */
+    public ModbusTcpConnection(String host, int port, int window, int connectTimeoutMs, int idleTimeoutMs,
+            ModbusReactor.IoThread io)
+    {
+        _host = host;
+        _port = port;
+        _window = Math.max(1, window);
+        _connectTimeoutMs = connectTimeoutMs;
+        _idleTimeoutNanos = idleTimeoutMs * 1000000L;
+        _io = io;
+        _writeBuffer = ByteBuffer.allocateDirect(MAX_FRAME_LENGTH * _window);
+    }
+
+    /**
+     * Queue request, connecting first if needed. Thread safe.
+     */
+    public void submit(ModbusRequest request)
+    {
+        _io.execute(() -> doSubmit(request));
+    }
+
+    /**
+     * Queue request on the I/O thread
+     */
+    private void doSubmit(ModbusRequest request)
+    {
+        if (_shutdown)
+        {
+            request.fail(new IOException("Modbus I/O stopped"));
+            return;
+        }
+
+        _io.bind(this);
+
+        if (_channel == null && System.nanoTime() - _retryAt < 0)
+        {
+            request.fail(new IOException("Waiting to reconnect to " + _host + ":" + _port));
+            return;
+        }
+
+        // Writes go ahead of the reads of a running cycle
+        if (request.isPriority())
+            _queue.addFirst(request);
+        else
+            _queue.add(request);
+
+        if (_channel == null)
+            open();
+        else
+            sendQueued();
+    }
+
+    /**
+     * Handle selector readiness
+     */
+    public void handle(SelectionKey key)
+    {
+        try
+        {
+            if (key.isConnectable())
+            {
+                _channel.finishConnect();
+                connected();
+            }
+            if (key.isValid() && key.isReadable())
+                read();
+            if (key.isValid() && key.isWritable())
+                flush();
+        }
+        catch (IOException e)
+        {
+            close(e);
+        }
+    }
+
+    /**
+     * Fail requests whose response is overdue, the whole connection if connecting takes too long,
+     * and close the socket once idle
+     * @param now System.nanoTime()
+     */
+    public void checkTimeouts(long now)
+    {
+        if (_channel == null)
+            return;
+
+        if (!_connected)
+        {
+            if (now - _connectDeadline > 0)
+                close(new IOException("Connect timeout to " + _host + ":" + _port));
+            return;
+        }
+
+        if (_inFlight.isEmpty())
+        {
+            if (_queue.isEmpty() && now - _lastActivity > _idleTimeoutNanos)
+                disconnect();
+            return;
+        }
+
+        List<ModbusRequest> expired = new ArrayList<>();
+        Iterator<ModbusRequest> it = _inFlight.values().iterator();
+        while (it.hasNext())
+        {
+            ModbusRequest request = it.next();
+            if (now - request.deadline > 0)
+            {
+                it.remove();
+                expired.add(request);
+            }
+        }
+
+        if (expired.isEmpty())
+            return;
+
+        // Requests still unsent when they expire mean the peer stopped reading, their bytes would
+        // stay in the write buffer for good
+        if (_writeBuffer.position() > 0)
+        {
+            IOException stalled = new IOException(
+                    "Modbus endpoint " + _host + ":" + _port + " stopped reading requests");
+            close(stalled);
+            for (ModbusRequest request : expired)
+                request.fail(stalled);
+            return;
+        }
+
+        // Late responses to these are discarded as unknown transaction ids
+        for (ModbusRequest request : expired)
+            request.fail(new IOException("Modbus response timeout from " + _host + ":" + _port));
+
+        sendQueued();
+    }
+
+    /**
+     * Close connection and fail all outstanding requests. A failed connect also starts the reconnect backoff.
+     */
+    public void close(IOException cause)
+    {
+        if (_channel != null && !_connected)
+        {
+            _backoffNanos = _backoffNanos == 0 ? MIN_BACKOFF_NANOS : Math.min(_backoffNanos * 2, MAX_BACKOFF_NANOS);
+            _retryAt = System.nanoTime() + _backoffNanos;
+        }
+
+        disconnect();
+
+        List<ModbusRequest> failed = new ArrayList<>(_inFlight.values());
+        failed.addAll(_queue);
+        _inFlight.clear();
+        _queue.clear();
+
+        for (ModbusRequest request : failed)
+            request.fail(cause);
+    }
+
+    /**
+     * Close for good, called by the I/O thread when it stops
+     */
+    void shutdown(IOException cause)
+    {
+        _shutdown = true;
+        close(cause);
+    }
+
+    /**
+     * Close socket, keeping queued requests
+     */
+    private void disconnect()
+    {
+        if (_key != null)
+            _key.cancel();
+
+        if (_channel != null)
+        {
+            try
+            {
+                _channel.close();
+            }
+            catch (IOException e)
+            {
+                // Nothing to do
+            }
+        }
+
+        _channel = null;
+        _key = null;
+        _connected = false;
+        _readBuffer.clear();
+        _writeBuffer.clear();
+    }
+
+    /**
+     * Start non-blocking connect
+     */
+    private void open()
+    {
+        try
+        {
+            _channel = SocketChannel.open();
+            _channel.configureBlocking(false);
+            _channel.socket().setTcpNoDelay(true);
+            _channel.socket().setKeepAlive(true);
+            _connectDeadline = System.nanoTime() + _connectTimeoutMs * 1000000L;
+
+            if (_channel.connect(new InetSocketAddress(_host, _port)))
+            {
+                _key = _channel.register(_io.selector(), SelectionKey.OP_READ, this);
+                connected();
+            }
+            else
+            {
+                _key = _channel.register(_io.selector(), SelectionKey.OP_CONNECT, this);
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            close(e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e));
+        }
+    }
+
+    /**
+     * Connection established, start sending
+     */
+    private void connected()
+    {
+        _connected = true;
+        _backoffNanos = 0;
+        _lastActivity = System.nanoTime();
+        _key.interestOps(SelectionKey.OP_READ);
+        sendQueued();
+    }
+
+    /**
+     * Move queued requests into free window slots
+     */
+    private void sendQueued()
+    {
+        if (!_connected)
+            return;
+
+        long now = System.nanoTime();
+        boolean sent = false;
+        while (_inFlight.size() < _window && !_queue.isEmpty())
+        {
+            // Unsent bytes of earlier requests still take up the buffer
+            if (_writeBuffer.remaining() < MBAP_LENGTH + _queue.peek().getPdu().length)
+                break;
+
+            ModbusRequest request = _queue.poll();
+            byte[] pdu = request.getPdu();
+
+            int transactionId = _nextTransactionId;
+            _nextTransactionId = (_nextTransactionId + 1) & 0xFFFF;
+
+            request.transactionId = transactionId;
+            request.sentAt = now;
+            request.deadline = now + request.getTimeoutMs() * 1000000L;
+
+            _writeBuffer.putShort((short) transactionId);
+            _writeBuffer.putShort((short) 0);
+            _writeBuffer.putShort((short) (pdu.length + 1));
+            _writeBuffer.put((byte) request.getUnitId());
+            _writeBuffer.put(pdu);
+
+            _inFlight.put(transactionId, request);
+            sent = true;
+        }
+
+        if (!sent)
+            return;
+
+        _lastActivity = now;
+        try
+        {
+            flush();
+        }
+        catch (IOException e)
+        {
+            close(e);
+        }
+    }
+
+    /**
+     * Write pending bytes, waiting for OP_WRITE if the socket buffer is full
+     */
+    private void flush() throws IOException
+    {
+        _writeBuffer.flip();
+        _channel.write(_writeBuffer);
+        boolean remaining = _writeBuffer.hasRemaining();
+        _writeBuffer.compact();
+
+        _key.interestOps(remaining ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Read available bytes and dispatch every complete response frame
+     */
+    private void read() throws IOException
+    {
+        if (_channel.read(_readBuffer) < 0)
+            throw new IOException("Connection closed by " + _host + ":" + _port);
+
+        _lastActivity = System.nanoTime();
+        _readBuffer.flip();
+        boolean completed = false;
+
+        while (_readBuffer.remaining() >= MBAP_LENGTH)
+        {
+            int frameStart = _readBuffer.position();
+            int transactionId = _readBuffer.getShort(frameStart) & 0xFFFF;
+            int length = _readBuffer.getShort(frameStart + 4) & 0xFFFF;
+
+            if (length < 2 || length > MAX_FRAME_LENGTH - 6)
+            {
+                _readBuffer.clear();
+                throw new IOException("Invalid MBAP length " + length + " from " + _host + ":" + _port);
+            }
+
+            if (_readBuffer.remaining() < 6 + length)
+                break;
+
+            byte[] pdu = new byte[length - 1];
+            _readBuffer.position(frameStart + MBAP_LENGTH);
+            _readBuffer.get(pdu);
+
+            ModbusRequest request = _inFlight.remove(transactionId);
+            if (request != null)
+            {
+                request.complete(pdu);
+                completed = true;
+            }
+        }
+
+        _readBuffer.compact();
+
+        if (completed)
+            sendQueued();
+    }
+}
@@ -0,0 +1,142 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * Secondary sink mirroring telemetry to a second broker, as JSON gateway telemetry messages
+ * ({"device": [{"ts": .., "values": {..}}, ..]}), one per device and batch.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class MqttSink implements TelemetrySink
+{
+    /** Message QOS */
+    public static final int MQTT_QOS = 1;
+
+    /** Broker uri */
+    private final String _brokerUrl;
+
+    /** MQTT client id */
+    private final String _clientId;
+
+    /** Telemetry topic */
+    private final String _topic;
+
+    /** Message encoder */
+    private final JsonPayloadCodec _codec = new JsonPayloadCodec();
+
+    /** Paho mqtt client object, connected on first publish */
+    private MqttClient _mqttClient;
+
+    /** Rate limited hot path logging */
+    private final HotLog _log;
+
+    /**
+     * Constructor
+     * @param brokerUrl Broker uri, eg. tcp://host:1883
+     * @param clientId MQTT client id
+     * @param topic Telemetry topic
+     * @param log Rate limited hot path logging
+     */
+    public MqttSink(String brokerUrl, String clientId, String topic, HotLog log)
+    {
+        _brokerUrl = brokerUrl;
+        _clientId = clientId;
+        _topic = topic;
+        _log = log;
+    }
+
+    @Override
+    public String getName()
+    {
+        return "mqtt " + _brokerUrl;
+    }
+
+    @Override
+    public boolean publishTelemetry(List<TelemetryPacket> packets)
+    {
+        Map<String, TelemetrySeries> devices = new LinkedHashMap<>();
+        for (TelemetryPacket packet : packets)
+            devices.computeIfAbsent(packet.getDeviceName(), TelemetrySeries::new).add(packet);
+
+        if (!connect())
+            return false;
+
+        try
+        {
+            for (TelemetrySeries series : devices.values())
+            {
+                while (series.getRows() > 0)
+                {
+                    int rows = Math.min(series.getRows(), ThingsboardMqtt.MAX_ROWS_PER_MESSAGE);
+                    MqttMessage message = new MqttMessage(_codec.telemetry(series, rows));
+                    message.setQos(MQTT_QOS);
+                    _mqttClient.publish(_topic, message);
+                    series.dropFirst(rows);
+                }
+            }
+        }
+        catch (MqttException e)
+        {
+            _log.warn(HotLog.Category.PUBLISH_FAILURE, "Could not publish to {}: {}", _brokerUrl, e.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public void close()
+    {
+        if (_mqttClient == null)
+            return;
+
+        try
+        {
+            if (_mqttClient.isConnected())
+                _mqttClient.disconnect();
+            _mqttClient.close();
+        }
+        catch (MqttException e)
+        {
+            // Nothing to do
+        }
+        _mqttClient = null;
+    }
+
+    /**
+     * Connect unless connected
+     */
+    private boolean connect()
+    {
+        if (_mqttClient != null && _mqttClient.isConnected())
+            return true;
+
+        try
+        {
+            if (_mqttClient == null)
+                _mqttClient = new MqttClient(_brokerUrl, _clientId, new MemoryPersistence());
+
+            MqttConnectOptions connOpts = new MqttConnectOptions();
+            connOpts.setCleanSession(true);
+            _mqttClient.connect(connOpts);
+
+            GatewayXM.logger.info("Connected to telemetry sink broker " + _brokerUrl);
+            return true;
+        }
+        catch (MqttException | IllegalArgumentException e)
+        {
+            _log.warn(HotLog.Category.PUBLISH_FAILURE, "Could not connect to {}: {}", _brokerUrl, e.getMessage());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,519 @@
+package gr.exmachina.gatewayxm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import gr.exmachina.gatewayxm.jfr.Flight;
+import gr.exmachina.gatewayxm.jfr.Recorder;
+
+/**
+ * Modbus TCP acquisition without Kura's asset layer. Each device gets a read plan that coalesces
+ * its channels into as few register reads as possible, and channels are decoded straight from the
+ * response buffers. Used by ModbusPoller when modbus.engine is "native".
+ * All reads of a cycle are submitted at once and pipelined per endpoint. The socket I/O runs on a
+ * small, fixed set of selector threads (ModbusReactor); decoded device packets are handed back to
+ * the poller thread, which publishes them as they arrive.
+ * Devices are read with their AssetHealthMonitor adaptive timeout and skipped while offline.
+ * Only the channels PollScheduler finds due are read, within the transaction budget of each endpoint.
+ * Channel writes (WriteScheduler) are sent ahead of queued reads, so they do not wait for a running cycle.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class NativeModbusEngine
+{
+    /** Polled devices */
+    private final List<ModbusDevice> _devices;
+
+    /** Read plan per device, by device name */
+    private final Map<String, ModbusReadPlan> _plans = new HashMap<>();
+
+    /** Connection pool per endpoint (host:port), shared by all units behind it */
+    private final Map<String, ModbusEndpoint> _endpoints = new HashMap<>();
+
+    /** Selector threads performing all socket I/O */
+    private final ModbusReactor _reactor;
+
+    /** Max unused registers merged into a read */
+    private final int _maxGap;
+
+    /** Upper bound for a whole cycle, enough for every read of the busiest endpoint to time out in turn */
+    private final long _cycleTimeoutNanos;
+
+    /** Max registers of a write multiple registers request */
+    private static final int MAX_WRITE_REGISTERS = 123;
+
+    /** Idle connections are closed after this long */
+    private static final int IDLE_TIMEOUT_MS = 60000;
+
+    /** Asset circuit breakers and adaptive timeouts */
+    private final AssetHealthMonitor _health;
+
+    /** Channel poll intervals */
+    private final PollScheduler _pollScheduler;
+
+    /** Routes device packets to the sinks */
+    private final SinkDispatcher _dispatcher;
+
+    /** Gateway self-telemetry */
+    private final GatewayMetrics _metrics;
+
+    /** Rate limited hot path logging */
+    private final HotLog _log;
+
+    /**
+     * Constructor
+     * @param devices Devices to poll
+     * @param maxGap Max unused registers merged into a read
+     * @param timeoutMs Response timeout
+     * @param window Max requests outstanding per connection
+     * @param ioThreads Number of selector threads
+     * @param poolSize Number of connections per endpoint
+     * @param health Asset circuit breakers and adaptive timeouts
+     * @param pollScheduler Channel poll intervals
+     * @param dispatcher Routes device packets to the sinks
+     * @param metrics Gateway self-telemetry
+     * @throws IllegalArgumentException if the selectors cannot be opened
+     * @param log Rate limited hot path logging
+     */
+    public NativeModbusEngine(List<ModbusDevice> devices, int maxGap, int timeoutMs, int window, int ioThreads,
+            int poolSize, AssetHealthMonitor health, PollScheduler pollScheduler, SinkDispatcher dispatcher,
+            GatewayMetrics metrics, HotLog log)
+    {
+        _devices = new ArrayList<>(devices);
+        _maxGap = maxGap;
+        _health = health;
+        _pollScheduler = pollScheduler;
+        _dispatcher = dispatcher;
+        _metrics = metrics;
+
+        try
+        {
+            _reactor = new ModbusReactor(ioThreads);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Could not open selector: " + e.getMessage(), e);
+        }
+
+        int requests = 0, channels = 0;
+        Map<String, Integer> requestsPerEndpoint = new HashMap<>();
+        for (ModbusDevice device : _devices)
+        {
+            ModbusReadPlan plan = ModbusReadPlan.build(device.getChannels(), maxGap);
+            _plans.put(device.getName(), plan);
+            requests += plan.getBlocks().size();
+            channels += device.getChannels().size();
+            requestsPerEndpoint.merge(device.getEndpoint(), plan.getBlocks().size(), Integer::sum);
+
+            if (!_endpoints.containsKey(device.getEndpoint()))
+                _endpoints.put(device.getEndpoint(), new ModbusEndpoint(device.getHost(), device.getPort(), poolSize,
+                        window, timeoutMs, IDLE_TIMEOUT_MS, _reactor));
+        }
+
+        int busiest = 0;
+        for (int endpointRequests : requestsPerEndpoint.values())
+            busiest = Math.max(busiest, endpointRequests);
+        _cycleTimeoutNanos = (busiest + 1) * (long) timeoutMs * 1000000L;
+
+        GatewayXM.logger.info("Native modbus engine: " + _devices.size() + " devices on " + _endpoints.size()
+                + " endpoints, " + channels + " channels in " + requests + " read requests per cycle, window " + window
+                + ", " + Math.max(1, ioThreads) + " I/O threads.");
+        _log = log;
+    }
+
+    /**
+     * Run one poll cycle over all devices, publishing one packet per device
+     * @param timestamp Sampling time of the cycle
+     */
+    public void poll(long timestamp)
+    {
+        // New queue per cycle, reads finishing after the cycle deadline are dropped with it
+        BlockingQueue<DeviceRead> done = new LinkedBlockingQueue<>();
+        List<DeviceRead> reads = new ArrayList<>();
+
+        for (Map.Entry<ModbusDevice, List<ModbusReadBlock>> entry : scheduleBlocks().entrySet())
+        {
+            ModbusDevice device = entry.getKey();
+            DeviceRead read = new DeviceRead(device, entry.getValue().size(), timestamp, done);
+            reads.add(read);
+
+            int timeoutMs = _health.getTimeoutMs(device.getName());
+            ModbusEndpoint endpoint = _endpoints.get(device.getEndpoint());
+            for (ModbusReadBlock block : entry.getValue())
+                endpoint.submit(ModbusRequest.readRegisters(device.getUnitId(), block, timeoutMs, read));
+        }
+
+        int pending = reads.size();
+
+        long deadline = System.nanoTime() + _cycleTimeoutNanos;
+        while (pending > 0)
+        {
+            DeviceRead read;
+            try
+            {
+                read = done.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                // Stopping, still resolve the probes of half open devices
+                Thread.currentThread().interrupt();
+                failUnpublished(reads);
+                return;
+            }
+
+            if (read == null)
+            {
+                _log.warn(HotLog.Category.MODBUS_READ_FAILURE, "Poll cycle timeout, {} of {} devices not read",
+                        pending, reads.size());
+                failUnpublished(reads);
+                return;
+            }
+
+            pending--;
+            read.publish();
+        }
+    }
+
+    /**
+     * Record a failed poll for the devices of a cycle that were not read in time. Every device let
+     * through by allowPoll must be resolved, else a half open breaker never probes again.
+     */
+    private void failUnpublished(List<DeviceRead> reads)
+    {
+        for (DeviceRead unfinished : reads)
+        {
+            if (!unfinished.isPublished())
+                _health.recordFailure(unfinished.getDeviceName());
+        }
+    }
+
+    /**
+     * Pick the blocks to read this cycle: reads of the channels that are due, of devices the circuit
+     * breaker lets through, limited per endpoint to its transaction budget, most overdue first
+     * @return Blocks to read by device, each let through by allowPoll
+     */
+    private Map<ModbusDevice, List<ModbusReadBlock>> scheduleBlocks()
+    {
+        long now = System.nanoTime();
+
+        Map<String, List<ScheduledBlock>> byEndpoint = new LinkedHashMap<>();
+        for (ModbusDevice device : _devices)
+        {
+            if (_health.isSuspended(device.getName()))
+                continue;
+
+            List<ModbusChannel> due = new ArrayList<>();
+            for (ModbusChannel channel : device.getChannels())
+            {
+                if (_pollScheduler.overdue(device.getName(), channel.getName(), now) >= 0)
+                    due.add(channel);
+            }
+
+            if (due.isEmpty() || !_health.allowPoll(device.getName()))
+                continue;
+
+            // Full plan is prebuilt, partial ones are coalesced again from the due channels
+            List<ModbusReadBlock> blocks = due.size() == device.getChannels().size()
+                    ? _plans.get(device.getName()).getBlocks()
+                    : ModbusReadPlan.build(due, _maxGap).getBlocks();
+
+            List<ScheduledBlock> endpointBlocks = byEndpoint.computeIfAbsent(device.getEndpoint(), e -> new ArrayList<>());
+            for (ModbusReadBlock block : blocks)
+            {
+                long overdue = Long.MIN_VALUE;
+                for (ModbusChannel channel : block.getChannels())
+                    overdue = Math.max(overdue, _pollScheduler.overdue(device.getName(), channel.getName(), now));
+
+                endpointBlocks.add(new ScheduledBlock(device, block, overdue));
+            }
+        }
+
+        Map<ModbusDevice, List<ModbusReadBlock>> scheduled = new LinkedHashMap<>();
+        for (Map.Entry<String, List<ScheduledBlock>> entry : byEndpoint.entrySet())
+        {
+            List<ScheduledBlock> blocks = entry.getValue();
+            int allowed = _pollScheduler.acquire(entry.getKey(), blocks.size(), now);
+            if (allowed < blocks.size())
+            {
+                // Skipped channels stay due and are more overdue on the next cycle
+                blocks.sort((a, b) -> Long.compare(b.overdue, a.overdue));
+                for (ScheduledBlock skipped : blocks.subList(allowed, blocks.size()))
+                    scheduled.putIfAbsent(skipped.device, new ArrayList<>());
+                blocks = blocks.subList(0, allowed);
+            }
+
+            for (ScheduledBlock block : blocks)
+                scheduled.computeIfAbsent(block.device, d -> new ArrayList<>()).add(block.block);
+        }
+
+        // Devices left without budget are not polled, their probes are taken again next cycle
+        scheduled.entrySet().removeIf(device -> {
+            if (!device.getValue().isEmpty())
+                return false;
+            _health.abandonProbe(device.getKey().getName());
+            return true;
+        });
+
+        return scheduled;
+    }
+
+    /**
+     * Write values to holding register channels of a device, ahead of any queued reads of its endpoint.
+     * Channels on contiguous registers are merged into a single write multiple registers request.
+     * @param deviceName Device name
+     * @param values Values by channel name, encoded with the channels' data types
+     * @return Completed once the slave acknowledged all writes
+     * @throws IllegalArgumentException if a channel does not exist or is not writable
+     */
+    public CompletableFuture<Void> write(String deviceName, Map<String, Number> values)
+    {
+        ModbusDevice device = getDevice(deviceName);
+
+        List<ModbusChannel> channels = new ArrayList<>();
+        for (String channelName : values.keySet())
+        {
+            ModbusChannel channel = null;
+            for (ModbusChannel candidate : device.getChannels())
+            {
+                if (candidate.getName().equals(channelName))
+                    channel = candidate;
+            }
+            if (channel == null)
+                throw new IllegalArgumentException("Unknown channel " + channelName + " of " + deviceName);
+            if (channel.getTable() != ModbusChannel.Table.HOLDING)
+                throw new IllegalArgumentException("Channel " + channelName + " of " + deviceName + " is not writable");
+
+            channels.add(channel);
+        }
+        channels.sort((a, b) -> Integer.compare(a.getAddress(), b.getAddress()));
+
+        // Split into runs of contiguous registers
+        List<List<ModbusChannel>> runs = new ArrayList<>();
+        List<ModbusChannel> run = null;
+        for (ModbusChannel channel : channels)
+        {
+            if (run == null || run.get(run.size() - 1).getEndAddress() != channel.getAddress()
+                    || channel.getEndAddress() - run.get(0).getAddress() > MAX_WRITE_REGISTERS)
+            {
+                run = new ArrayList<>();
+                runs.add(run);
+            }
+            run.add(channel);
+        }
+
+        ModbusEndpoint endpoint = _endpoints.get(device.getEndpoint());
+        int timeoutMs = _health.getTimeoutMs(deviceName);
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (List<ModbusChannel> registers : runs)
+        {
+            int start = registers.get(0).getAddress();
+            byte[] data = new byte[(registers.get(registers.size() - 1).getEndAddress() - start) * 2];
+            for (ModbusChannel channel : registers)
+                channel.getType().encode(values.get(channel.getName()), data, (channel.getAddress() - start) * 2);
+
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            writes.add(result);
+            endpoint.submit(ModbusRequest.writeRegisters(device.getUnitId(), start, data, timeoutMs, registers,
+                    new ModbusRequest.Callback()
+                    {
+                        @Override
+                        public void completed(ModbusRequest request, byte[] response)
+                        {
+                            _health.recordRtt(deviceName, request.getRoundTripNanos());
+                            result.complete(null);
+                        }
+
+                        @Override
+                        public void failed(ModbusRequest request, IOException e)
+                        {
+                            result.completeExceptionally(e);
+                        }
+                    }).setPriority(true));
+        }
+
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Modbus TCP endpoint (host:port) of a device, the bus its reads and writes share
+     * @throws IllegalArgumentException if the device does not exist
+     */
+    public String getEndpoint(String deviceName)
+    {
+        return getDevice(deviceName).getEndpoint();
+    }
+
+    /**
+     * Get device by name
+     * @throws IllegalArgumentException if the device does not exist
+     */
+    private ModbusDevice getDevice(String deviceName)
+    {
+        for (ModbusDevice device : _devices)
+        {
+            if (device.getName().equals(deviceName))
+                return device;
+        }
+
+        throw new IllegalArgumentException("Unknown device " + deviceName);
+    }
+
+    /**
+     * Number of devices polled
+     */
+    public int getDeviceCount()
+    {
+        return _devices.size();
+    }
+
+    /**
+     * Close all connections and stop the I/O threads
+     */
+    public void close()
+    {
+        _reactor.close();
+    }
+
+    /**
+     * Collects the read blocks of one device during a cycle, on the I/O threads, and queues itself
+     * for publishing once all of them completed
+     */
+    private class DeviceRead implements ModbusRequest.Callback
+    {
+        private final ModbusDevice _device;
+        private final TelemetryPacket _packet = new TelemetryPacket();
+        private final long _start = System.nanoTime();
+        private final Recorder.AssetRead _event;
+        private final BlockingQueue<DeviceRead> _done;
+        private int _remaining;
+        private int _channels, _failures;
+        private boolean _responded;
+        private volatile boolean _published;
+
+        DeviceRead(ModbusDevice device, int blocks, long timestamp, BlockingQueue<DeviceRead> done)
+        {
+            _packet.setTimestamp(timestamp);
+            _device = device;
+            _remaining = blocks;
+            _done = done;
+            _event = Flight.RECORDER.assetRead(device.getName());
+            _packet.setDeviceName(device.getName());
+        }
+
+        @Override
+        public synchronized void completed(ModbusRequest request, byte[] response)
+        {
+            ModbusReadBlock block = (ModbusReadBlock) request.getContext();
+            _responded = true;
+            _health.recordRtt(_device.getName(), request.getRoundTripNanos());
+            try
+            {
+                block.decode(ModbusRequest.registerData(block, response), _packet);
+                _channels += block.getChannels().size();
+
+                long now = System.nanoTime();
+                for (ModbusChannel channel : block.getChannels())
+                    _pollScheduler.polled(_device.getName(), channel.getName(),
+                            _packet.getData().get(channel.getName()), now);
+                blockDone();
+            }
+            catch (IOException e)
+            {
+                failed(request, e);
+            }
+        }
+
+        @Override
+        public synchronized void failed(ModbusRequest request, IOException e)
+        {
+            ModbusReadBlock block = (ModbusReadBlock) request.getContext();
+            _failures += block.getChannels().size();
+
+            // An exception response still proves the slave alive
+            if (e instanceof ModbusException)
+                _responded = true;
+
+            long now = System.nanoTime();
+            for (ModbusChannel channel : block.getChannels())
+            {
+                _pollScheduler.failed(_device.getName(), channel.getName(), now);
+                Flight.RECORDER.channelFailure(_device.getName(), channel.getName(), e.getMessage());
+            }
+            _log.warn(HotLog.Category.MODBUS_READ_FAILURE, "Could not read registers of {}: {}", _device.getName(),
+                    e.getMessage());
+
+            blockDone();
+        }
+
+        /**
+         * Queue for publishing once the last block of the device is done
+         */
+        private void blockDone()
+        {
+            if (--_remaining > 0)
+                return;
+
+            _metrics.assetRead.recordNanos(System.nanoTime() - _start);
+            _metrics.channelReads.add(_channels);
+            _metrics.channelReadFailures.add(_failures);
+
+            _event.end(_channels, _failures);
+
+            _done.add(this);
+        }
+
+        /**
+         * Record device health and publish device packet, on the poller thread
+         */
+        synchronized void publish()
+        {
+            _published = true;
+
+            if (_responded)
+                _health.recordSuccess(_device.getName());
+            else
+                _health.recordFailure(_device.getName());
+
+            if (_packet.getData().isEmpty())
+                return;
+
+            _dispatcher.publishTelemetry(_packet);
+        }
+
+        boolean isPublished()
+        {
+            return _published;
+        }
+
+        String getDeviceName()
+        {
+            return _device.getName();
+        }
+    }
+
+    /**
+     * A read block waiting for its turn on the endpoint
+     */
+    private static class ScheduledBlock
+    {
+        final ModbusDevice device;
+        final ModbusReadBlock block;
+        final long overdue;
+
+        ScheduledBlock(ModbusDevice device, ModbusReadBlock block, long overdue)
+        {
+            this.device = device;
+            this.block = block;
+            this.overdue = overdue;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Wire format of the thingsboard gateway API messages, selected with tb.payload_format.
+ * Must match the transport payload type of the gateway device profile in thingsboard.
+ *
+ * @author Ex-Machina
+ *
+ */
+public interface PayloadCodec
+{
+    /**
+     * Gateway telemetry of the first rows of a series, for v1/gateway/telemetry
+     */
+    byte[] telemetry(TelemetrySeries series, int rows);
+
+    /**
+     * Device connect message, for v1/gateway/connect
+     */
+    byte[] connect(String deviceName);
+
+    /**
+     * Device disconnect message, for v1/gateway/disconnect
+     */
+    byte[] disconnect(String deviceName);
+
+    /**
+     * Attributes of several devices, for v1/gateway/attributes
+     * @param batch Values (Number or String) by device and key
+     */
+    byte[] attributes(Map<String, Map<String, Object>> batch);
+
+    /**
+     * Response of a server side RPC request, for v1/gateway/rpc
+     * @param data Response data
+     */
+    byte[] rpcResponse(String deviceName, Object id, JSONObject data);
+
+    /**
+     * Decode a server side RPC request received on v1/gateway/rpc into its JSON form:
+     * {"device": .., "data": {"id": .., "method": .., "params": ..}}
+     * @throws IllegalArgumentException if the request cannot be decoded
+     */
+    JSONObject rpcRequest(byte[] payload);
+}
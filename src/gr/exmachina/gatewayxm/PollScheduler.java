@@ -0,0 +1,214 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides which channels are read on each poll cycle, for both acquisition engines.
+ * With adaptive polling every channel has its own interval between the configured bounds: it is
+ * halved whenever the value moved by more than the deadband since the previous read and grows by a
+ * quarter while the value stays put, so volatile registers are read often and stable ones rarely.
+ * Without it every channel is due on every cycle of modbus.poll_interval.
+ * Independently, each bus (modbus TCP endpoint or Kura driver) may be given a transaction budget
+ * per second; when more reads are due than the budget allows, the most overdue ones go first.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class PollScheduler
+{
+    /** Per channel state, by device + "/" + channel */
+    private final Map<String, ChannelRate> _channels = new ConcurrentHashMap<>();
+
+    /** Per bus budget, by bus id */
+    private final Map<String, BusBudget> _buses = new ConcurrentHashMap<>();
+
+    /** Adaptive polling enabled */
+    private volatile boolean _adaptive = false;
+
+    /** Poll cycle interval */
+    private volatile long _tickNanos = 2000 * 1000000L;
+
+    /** Shortest channel interval */
+    private volatile long _minNanos = 2000 * 1000000L;
+
+    /** Longest channel interval */
+    private volatile long _maxNanos = 2000 * 1000000L;
+
+    /** Relative change, as a fraction, below which a value counts as unchanged */
+    private volatile double _deadband = 0.01;
+
+    /** Transactions per second per bus, 0 for no limit */
+    private volatile int _busBudget = 0;
+
+    /**
+     * Constructor
+     */
+    public PollScheduler() {}
+
+    /**
+     * Apply settings
+     * @param adaptive Adapt channel intervals to how fast values change
+     * @param pollIntervalMs Fixed poll interval, used when not adaptive
+     * @param minIntervalMs Shortest channel interval, also the cycle interval when adaptive
+     * @param maxIntervalMs Longest channel interval
+     * @param deadbandPercent Relative change below which a value counts as unchanged
+     * @param busBudget Transactions per second per bus, 0 for no limit
+     */
+    public void configure(boolean adaptive, int pollIntervalMs, int minIntervalMs, int maxIntervalMs,
+            double deadbandPercent, int busBudget)
+    {
+        _adaptive = adaptive;
+        _minNanos = Math.max(1, minIntervalMs) * 1000000L;
+        _maxNanos = Math.max(_minNanos, maxIntervalMs * 1000000L);
+        _tickNanos = (adaptive ? _minNanos : Math.max(1, pollIntervalMs) * 1000000L);
+        _deadband = Math.max(0, deadbandPercent) / 100;
+        _busBudget = Math.max(0, busBudget);
+        _buses.clear();
+    }
+
+    /**
+     * Time between poll cycles
+     */
+    public long getTickMs()
+    {
+        return _tickNanos / 1000000L;
+    }
+
+    /**
+     * How long the channel is overdue, negative if not due this cycle
+     * @param now System.nanoTime()
+     */
+    public long overdue(String device, String channel, long now)
+    {
+        if (!_adaptive)
+            return 0;
+
+        ChannelRate rate = _channels.get(device + "/" + channel);
+        if (rate == null)
+            return _maxNanos;
+
+        // Half a cycle of slack, so a channel due just after this cycle is not pushed a whole cycle late
+        return rate.overdue(now) + _tickNanos / 2;
+    }
+
+    /**
+     * Record a successful read, adapting the channel interval
+     * @param value Value read, compared numerically when possible
+     */
+    public void polled(String device, String channel, String value, long now)
+    {
+        if (_adaptive)
+            rate(device, channel).polled(value, now, _minNanos, _maxNanos, _deadband);
+    }
+
+    /**
+     * Record a failed read, the channel keeps its interval
+     */
+    public void failed(String device, String channel, long now)
+    {
+        if (_adaptive)
+            rate(device, channel).failed(now);
+    }
+
+    /**
+     * Take transactions from the budget of a bus
+     * @param bus Bus id, eg. modbus TCP endpoint or Kura driver pid
+     * @param wanted Transactions due this cycle
+     * @return Transactions allowed, at most wanted
+     */
+    public int acquire(String bus, int wanted, long now)
+    {
+        int budget = _busBudget;
+        if (budget <= 0)
+            return wanted;
+
+        // Allow a burst of one second, or of one cycle when cycles are longer
+        double capacity = budget * Math.max(1.0, _tickNanos / 1e9);
+        return _buses.computeIfAbsent(bus, b -> new BusBudget(capacity, now)).acquire(wanted, budget, capacity, now);
+    }
+
+    private ChannelRate rate(String device, String channel)
+    {
+        return _channels.computeIfAbsent(device + "/" + channel, k -> new ChannelRate(_minNanos));
+    }
+
+    /**
+     * Interval and last value of one channel
+     */
+    private static class ChannelRate
+    {
+        private long _intervalNanos;
+        private long _nextDue;
+        private String _lastValue;
+
+        ChannelRate(long intervalNanos)
+        {
+            _intervalNanos = intervalNanos;
+        }
+
+        synchronized long overdue(long now)
+        {
+            return now - _nextDue;
+        }
+
+        synchronized void polled(String value, long now, long minNanos, long maxNanos, double deadband)
+        {
+            if (_lastValue != null)
+            {
+                if (changed(_lastValue, value, deadband))
+                    _intervalNanos = _intervalNanos / 2;
+                else
+                    _intervalNanos = _intervalNanos + _intervalNanos / 4;
+            }
+
+            _intervalNanos = Math.max(minNanos, Math.min(maxNanos, _intervalNanos));
+            _lastValue = value;
+            _nextDue = now + _intervalNanos;
+        }
+
+        synchronized void failed(long now)
+        {
+            _nextDue = now + _intervalNanos;
+        }
+
+        private static boolean changed(String last, String value, double deadband)
+        {
+            try
+            {
+                double a = Double.parseDouble(last);
+                double b = Double.parseDouble(value);
+                return Math.abs(b - a) > deadband * Math.max(Math.abs(a), Math.abs(b));
+            }
+            catch (NumberFormatException e)
+            {
+                return !last.equals(value);
+            }
+        }
+    }
+
+    /**
+     * Token bucket of one bus
+     */
+    private static class BusBudget
+    {
+        private double _tokens;
+        private long _last;
+
+        BusBudget(double capacity, long now)
+        {
+            _tokens = capacity;
+            _last = now;
+        }
+
+        synchronized int acquire(int wanted, int perSecond, double capacity, long now)
+        {
+            _tokens = Math.min(capacity, _tokens + (now - _last) / 1e9 * perSecond);
+            _last = now;
+
+            int allowed = (int) Math.min(wanted, Math.floor(_tokens));
+            _tokens -= allowed;
+            return allowed;
+        }
+    }
+}
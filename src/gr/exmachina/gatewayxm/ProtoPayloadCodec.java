@@ -0,0 +1,239 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Protobuf gateway API messages, as defined in thingsboard's transport.proto, for gateway device
+ * profiles with the Protobuf transport payload type. Integral values are sent as int64 and decimals
+ * as double, as typed by TelemetrySeries, timestamps as int64. Messages are encoded by a ProtoWriter kept per thread.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class ProtoPayloadCodec implements PayloadCodec
+{
+    /** KeyValueType.LONG_V */
+    private static final int LONG_V = 1;
+
+    /** KeyValueType.DOUBLE_V */
+    private static final int DOUBLE_V = 2;
+
+    /** KeyValueType.STRING_V */
+    private static final int STRING_V = 3;
+
+    /** Encoder per publishing thread */
+    private final ThreadLocal<ProtoWriter> _writer = ThreadLocal.withInitial(ProtoWriter::new);
+
+    /**
+     * GatewayTelemetryMsg { repeated TelemetryMsg msg = 1 }
+     * TelemetryMsg { string deviceName = 1; PostTelemetryMsg msg = 3 }
+     * PostTelemetryMsg { repeated TsKvListProto tsKvList = 1 }
+     * TsKvListProto { int64 ts = 1; repeated KeyValueProto kv = 2 }
+     */
+    @Override
+    public byte[] telemetry(TelemetrySeries series, int rows)
+    {
+        ProtoWriter writer = _writer.get().reset();
+
+        int telemetryMsg = writer.begin(1);
+        writer.string(1, series.getDeviceName());
+
+        int postTelemetryMsg = writer.begin(3);
+        for (int row = 0; row < rows; row++)
+        {
+            int tsKvList = writer.begin(1);
+            writer.int64(1, series.getTimestamp(row));
+
+            for (int column = 0; column < series.getColumns(); column++)
+            {
+                if (!series.hasValue(row, column))
+                    continue;
+
+                if (series.isIntegral(row, column))
+                    keyValue(writer, 2, series.getKey(column), series.getLong(row, column));
+                else if (series.isNumeric(row, column))
+                    keyValue(writer, 2, series.getKey(column), series.getNumber(row, column));
+                else
+                    keyValue(writer, 2, series.getKey(column), series.getText(row, column));
+            }
+            writer.end(tsKvList);
+        }
+        writer.end(postTelemetryMsg);
+        writer.end(telemetryMsg);
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * ConnectMsg { string deviceName = 1; string deviceType = 2 }
+     */
+    @Override
+    public byte[] connect(String deviceName)
+    {
+        ProtoWriter writer = _writer.get().reset();
+        writer.string(1, deviceName);
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * DisconnectMsg { string deviceName = 1 }
+     */
+    @Override
+    public byte[] disconnect(String deviceName)
+    {
+        return connect(deviceName);
+    }
+
+    /**
+     * GatewayAttributesMsg { repeated AttributesMsg msg = 1 }
+     * AttributesMsg { string deviceName = 1; PostAttributeMsg msg = 2 }
+     * PostAttributeMsg { repeated KeyValueProto kv = 1 }
+     */
+    @Override
+    public byte[] attributes(Map<String, Map<String, Object>> batch)
+    {
+        ProtoWriter writer = _writer.get().reset();
+
+        for (Map.Entry<String, Map<String, Object>> device : batch.entrySet())
+        {
+            int attributesMsg = writer.begin(1);
+            writer.string(1, device.getKey());
+
+            int postAttributeMsg = writer.begin(2);
+            for (Map.Entry<String, Object> value : device.getValue().entrySet())
+            {
+                if (value.getValue() instanceof Double || value.getValue() instanceof Float)
+                    keyValue(writer, 1, value.getKey(), ((Number) value.getValue()).doubleValue());
+                else if (value.getValue() instanceof Long || value.getValue() instanceof Integer)
+                    keyValue(writer, 1, value.getKey(), ((Number) value.getValue()).longValue());
+                else
+                    keyValue(writer, 1, value.getKey(), String.valueOf(value.getValue()));
+            }
+            writer.end(postAttributeMsg);
+            writer.end(attributesMsg);
+        }
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * GatewayRpcResponseMsg { string deviceName = 1; int32 id = 2; string data = 3 }
+     */
+    @Override
+    public byte[] rpcResponse(String deviceName, Object id, JSONObject data)
+    {
+        ProtoWriter writer = _writer.get().reset();
+        writer.string(1, deviceName);
+        writer.int64(2, id instanceof Number ? ((Number) id).intValue() : Integer.parseInt(id.toString()));
+        writer.string(3, data.toString());
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * GatewayDeviceRpcRequestMsg { string deviceName = 1; ToDeviceRpcRequestMsg rpcRequestMsg = 2 }
+     * ToDeviceRpcRequestMsg { int32 requestId = 1; string methodName = 2; string params = 3 }
+     */
+    @Override
+    public JSONObject rpcRequest(byte[] payload)
+    {
+        JSONObject request = new JSONObject();
+        JSONObject data = new JSONObject();
+
+        // Defaults of fields proto3 leaves out
+        data.put("id", 0);
+        data.put("method", "");
+        request.put("data", data);
+
+        ProtoReader reader = new ProtoReader(payload);
+        while (reader.next())
+        {
+            if (reader.getField() == 1)
+            {
+                request.put("device", reader.string());
+            }
+            else if (reader.getField() == 2)
+            {
+                ProtoReader rpc = reader.message();
+                while (rpc.next())
+                {
+                    switch (rpc.getField())
+                    {
+                        case 1:
+                            data.put("id", (int) rpc.varint());
+                            break;
+                        case 2:
+                            data.put("method", rpc.string());
+                            break;
+                        case 3:
+                            data.put("params", params(rpc.string()));
+                            break;
+                        default:
+                            rpc.skip();
+                    }
+                }
+            }
+            else
+            {
+                reader.skip();
+            }
+        }
+
+        return request;
+    }
+
+    /**
+     * Params are sent as a JSON string, decoded when they hold an object
+     */
+    private static Object params(String params)
+    {
+        try
+        {
+            return new JSONObject(params);
+        }
+        catch (JSONException e)
+        {
+            return params;
+        }
+    }
+
+    /**
+     * KeyValueProto { string key = 1; KeyValueType type = 2; int64 long_v = 4 }
+     */
+    private static void keyValue(ProtoWriter writer, int field, String key, long value)
+    {
+        int keyValue = writer.begin(field);
+        writer.string(1, key);
+        writer.int64(2, LONG_V);
+        writer.int64(4, value);
+        writer.end(keyValue);
+    }
+
+    /**
+     * KeyValueProto { string key = 1; KeyValueType type = 2; double double_v = 5 }
+     */
+    private static void keyValue(ProtoWriter writer, int field, String key, double value)
+    {
+        int keyValue = writer.begin(field);
+        writer.string(1, key);
+        writer.int64(2, DOUBLE_V);
+        writer.float64(5, value);
+        writer.end(keyValue);
+    }
+
+    /**
+     * KeyValueProto { string key = 1; KeyValueType type = 2; string string_v = 6 }
+     */
+    private static void keyValue(ProtoWriter writer, int field, String key, String value)
+    {
+        int keyValue = writer.begin(field);
+        writer.string(1, key);
+        writer.int64(2, STRING_V);
+        writer.string(6, value);
+        writer.end(keyValue);
+    }
+}
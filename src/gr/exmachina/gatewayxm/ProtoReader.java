@@ -0,0 +1,184 @@
+package gr.exmachina.gatewayxm;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal protocol buffers decoder over a byte array, for the few messages the gateway receives.
+ * Usage: while (reader.next()) switch (reader.getField()) { .. reader.varint() .. default: reader.skip(); }
+ *
+ * @author Ex-Machina
+ *
+ */
+public class ProtoReader
+{
+    /** 32 bit wire type */
+    public static final int WIRE_FIXED32 = 5;
+
+    /** Encoded message */
+    private final byte[] _data;
+
+    /** Read position */
+    private int _position;
+
+    /** End of the message */
+    private final int _end;
+
+    /** Field number of the current field */
+    private int _field;
+
+    /** Wire type of the current field */
+    private int _wireType;
+
+    /**
+     * Constructor
+     * @param data Encoded message
+     */
+    public ProtoReader(byte[] data)
+    {
+        this(data, 0, data.length);
+    }
+
+    private ProtoReader(byte[] data, int offset, int length)
+    {
+        _data = data;
+        _position = offset;
+        _end = offset + length;
+    }
+
+    /**
+     * Move to the next field
+     * @return False at the end of the message
+     * @throws IllegalArgumentException if the message is malformed
+     */
+    public boolean next()
+    {
+        if (_position >= _end)
+            return false;
+
+        long tag = varint();
+        _field = (int) (tag >>> 3);
+        _wireType = (int) (tag & 7);
+        return true;
+    }
+
+    /** Field number of the current field */
+    public int getField()
+    {
+        return _field;
+    }
+
+    /**
+     * Value of a varint field
+     */
+    public long varint()
+    {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            byte b = read();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Value of a double or fixed64 field, as raw bits
+     */
+    public long fixed64()
+    {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value |= (long) (read() & 0xFF) << (8 * i);
+
+        return value;
+    }
+
+    /**
+     * Value of a float or fixed32 field, as raw bits
+     */
+    public int fixed32()
+    {
+        int value = 0;
+        for (int i = 0; i < 4; i++)
+            value |= (read() & 0xFF) << (8 * i);
+
+        return value;
+    }
+
+    /**
+     * Value of a string field
+     */
+    public String string()
+    {
+        int length = length();
+        String value = new String(_data, _position, length, StandardCharsets.UTF_8);
+        _position += length;
+        return value;
+    }
+
+    /**
+     * Reader over a nested message field
+     */
+    public ProtoReader message()
+    {
+        int length = length();
+        ProtoReader reader = new ProtoReader(_data, _position, length);
+        _position += length;
+        return reader;
+    }
+
+    /**
+     * Skip the value of the current field
+     */
+    public void skip()
+    {
+        switch (_wireType)
+        {
+            case ProtoWriter.WIRE_VARINT:
+                varint();
+                break;
+            case ProtoWriter.WIRE_FIXED64:
+                advance(8);
+                break;
+            case ProtoWriter.WIRE_LENGTH:
+                advance(length());
+                break;
+            case WIRE_FIXED32:
+                advance(4);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported wire type " + _wireType);
+        }
+    }
+
+    /** Length prefix of a length delimited field, checked against the message end */
+    private int length()
+    {
+        long length = varint();
+        if (length < 0 || length > _end - _position)
+            throw new IllegalArgumentException("Malformed length " + length);
+
+        return (int) length;
+    }
+
+    /** Skip bytes */
+    private void advance(int count)
+    {
+        if (count > _end - _position)
+            throw new IllegalArgumentException("Truncated message");
+
+        _position += count;
+    }
+
+    /** Read one byte */
+    private byte read()
+    {
+        if (_position >= _end)
+            throw new IllegalArgumentException("Truncated message");
+
+        return _data[_position++];
+    }
+}
@@ -0,0 +1,189 @@
+package gr.exmachina.gatewayxm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal protocol buffers encoder writing straight into a reusable, growing buffer.
+ * Nested messages are written in place: begin() returns the start of the message content and end()
+ * shifts the content to make room for its length prefix, so no per message buffers are allocated.
+ * Not thread safe, meant to be kept per thread and reset() for every message.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class ProtoWriter
+{
+    /** Varint wire type */
+    public static final int WIRE_VARINT = 0;
+
+    /** 64 bit wire type */
+    public static final int WIRE_FIXED64 = 1;
+
+    /** Length delimited wire type */
+    public static final int WIRE_LENGTH = 2;
+
+    /** Encoded message */
+    private byte[] _buffer = new byte[512];
+
+    /** Write position */
+    private int _position = 0;
+
+    /**
+     * Start a new message, keeping the buffer
+     */
+    public ProtoWriter reset()
+    {
+        _position = 0;
+        return this;
+    }
+
+    /**
+     * Write an int64, int32 or enum field
+     */
+    public void int64(int field, long value)
+    {
+        tag(field, WIRE_VARINT);
+        varint(value);
+    }
+
+    /**
+     * Write a bool field
+     */
+    public void bool(int field, boolean value)
+    {
+        int64(field, value ? 1 : 0);
+    }
+
+    /**
+     * Write a double field
+     */
+    public void float64(int field, double value)
+    {
+        tag(field, WIRE_FIXED64);
+        ensure(8);
+
+        long bits = Double.doubleToRawLongBits(value);
+        for (int i = 0; i < 8; i++)
+        {
+            _buffer[_position++] = (byte) bits;
+            bits >>>= 8;
+        }
+    }
+
+    /**
+     * Write a string field, ASCII without allocating
+     */
+    public void string(int field, String value)
+    {
+        int length = value.length();
+        for (int i = 0; i < length; i++)
+        {
+            if (value.charAt(i) >= 0x80)
+            {
+                bytes(field, value.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        }
+
+        tag(field, WIRE_LENGTH);
+        varint(length);
+        ensure(length);
+        for (int i = 0; i < length; i++)
+            _buffer[_position++] = (byte) value.charAt(i);
+    }
+
+    /**
+     * Write a bytes field
+     */
+    public void bytes(int field, byte[] value)
+    {
+        tag(field, WIRE_LENGTH);
+        varint(value.length);
+        ensure(value.length);
+        System.arraycopy(value, 0, _buffer, _position, value.length);
+        _position += value.length;
+    }
+
+    /**
+     * Start a nested message field
+     * @return Start of the nested message, to pass to end()
+     */
+    public int begin(int field)
+    {
+        tag(field, WIRE_LENGTH);
+        return _position;
+    }
+
+    /**
+     * End a nested message field, inserting its length before its content
+     * @param start Value returned by begin()
+     */
+    public void end(int start)
+    {
+        int length = _position - start;
+        int prefix = varintSize(length);
+
+        ensure(prefix);
+        System.arraycopy(_buffer, start, _buffer, start + prefix, length);
+
+        int end = _position + prefix;
+        _position = start;
+        varint(length);
+        _position = end;
+    }
+
+    /**
+     * Encoded message
+     */
+    public byte[] toByteArray()
+    {
+        return Arrays.copyOf(_buffer, _position);
+    }
+
+    /**
+     * Encoded size so far
+     */
+    public int size()
+    {
+        return _position;
+    }
+
+    /** Write field tag */
+    private void tag(int field, int wireType)
+    {
+        varint((field << 3) | wireType);
+    }
+
+    /** Write unsigned varint, negative values take 10 bytes */
+    private void varint(long value)
+    {
+        ensure(10);
+        while ((value & ~0x7FL) != 0)
+        {
+            _buffer[_position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        _buffer[_position++] = (byte) value;
+    }
+
+    /** Bytes taken by a non negative varint */
+    private static int varintSize(int value)
+    {
+        int size = 1;
+        while ((value & ~0x7F) != 0)
+        {
+            size++;
+            value >>>= 7;
+        }
+
+        return size;
+    }
+
+    /** Grow buffer to fit more bytes */
+    private void ensure(int more)
+    {
+        if (_position + more > _buffer.length)
+            _buffer = Arrays.copyOf(_buffer, Math.max(_buffer.length * 2, _position + more));
+    }
+}
@@ -0,0 +1,392 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Multi-lane publish queue in front of ThingsboardMqtt. Producers (poller, sensor nodes, backlog
+ * replay) enqueue and return; one worker per gateway session publishes, taking CRITICAL before
+ * NORMAL before BULK. A lower lane whose oldest job waited longer than its max wait is starving and
+ * gets one turn every STARVING_TURN picks, so bulk uploads slow down but never stall.
+ * Live producers never block: a job that finds its lane full is dropped back to its owner. Only
+ * backlog replay waits for space (submitWaiting), so it is paced by the uplink.
+ * Devices always map to the same session, so each lane keeps the order of a device's messages.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class PublishScheduler
+{
+    /**
+     * Publish lane, in priority order
+     */
+    public enum Lane
+    {
+        /** Alarm relevant values */
+        CRITICAL,
+        /** Regular telemetry */
+        NORMAL,
+        /** History, backlog replay and other bulk data */
+        BULK
+    }
+
+    /**
+     * Queued publish
+     */
+    public interface Job
+    {
+        /** Publish, on the worker thread */
+        void send();
+
+        /** Not sent (queue full or scheduler stopped), keep for later */
+        void drop();
+    }
+
+    /** Max jobs per lane per worker */
+    private static final int LANE_CAPACITY = 1000;
+
+    /** Wait after which a job of a lower lane is starving, by lane ordinal */
+    private static final long[] MAX_WAIT_NANOS = { 0, TimeUnit.MILLISECONDS.toNanos(200),
+            TimeUnit.MILLISECONDS.toNanos(1000) };
+
+    /** A starving lane is served once every this many picks */
+    private static final int STARVING_TURN = 8;
+
+    /** Interval of the empty-queue check while draining */
+    private static final long DRAIN_CHECK_MS = 20;
+
+    /** Max wait for the workers to exit on stop */
+    private static final long STOP_TIMEOUT_MS = 2000;
+
+    /** One worker per session */
+    private volatile Worker[] _workers = new Worker[0];
+
+    /**
+     * Constructor
+     */
+    public PublishScheduler() {}
+
+    /**
+     * Start workers, stopping any previous ones
+     * @param shards Number of gateway sessions
+     */
+    public synchronized void start(int shards)
+    {
+        stop();
+
+        Worker[] workers = new Worker[Math.max(1, shards)];
+        for (int i = 0; i < workers.length; i++)
+        {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+        _workers = workers;
+    }
+
+    /**
+     * Wait for the queued jobs to be sent
+     * @param timeoutMs Max wait
+     * @return True if all lanes are empty
+     */
+    public boolean drain(long timeoutMs)
+    {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (getQueued() > 0)
+        {
+            if (System.currentTimeMillis() >= deadline)
+                return false;
+
+            try
+            {
+                Thread.sleep(DRAIN_CHECK_MS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Stop workers, dropping queued jobs back to their owners. Returns once the workers exited, or
+     * after STOP_TIMEOUT_MS if one is stuck in a publish.
+     */
+    public synchronized void stop()
+    {
+        Worker[] workers = _workers;
+        _workers = new Worker[0];
+
+        for (Worker worker : workers)
+            worker.shutdown();
+
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MS;
+        for (Worker worker : workers)
+        {
+            try
+            {
+                worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (worker.isAlive())
+                GatewayXM.logger.info(worker.getName() + " did not stop in time.");
+        }
+    }
+
+    /**
+     * Queue a job without blocking, dropping it if the lane is full
+     * @param shard Session index of the device
+     * @return True if queued
+     */
+    public boolean submit(int shard, Lane lane, Job job)
+    {
+        return submit(shard, lane, job, false);
+    }
+
+    /**
+     * Queue a job, waiting while the lane is full. For backlog replay only, never for live producers
+     * (poller, sensor node callbacks), which must not stall behind an upload.
+     * @param shard Session index of the device
+     * @return True if queued
+     */
+    public boolean submitWaiting(int shard, Lane lane, Job job)
+    {
+        return submit(shard, lane, job, true);
+    }
+
+    private boolean submit(int shard, Lane lane, Job job, boolean wait)
+    {
+        Worker[] workers = _workers;
+        if (workers.length == 0)
+        {
+            job.drop();
+            return false;
+        }
+
+        return workers[shard % workers.length].enqueue(lane, job, wait);
+    }
+
+    /**
+     * Jobs queued over all workers and lanes
+     */
+    public int getQueued()
+    {
+        int queued = 0;
+        for (Worker worker : _workers)
+            queued += worker.size();
+
+        return queued;
+    }
+
+    /**
+     * Publisher of one session
+     */
+    private static class Worker extends Thread
+    {
+        private final ReentrantLock _lock = new ReentrantLock();
+        private final Condition _notEmpty = _lock.newCondition();
+        private final Condition _notFull = _lock.newCondition();
+
+        /** Queue per lane, by lane ordinal */
+        private final List<ArrayDeque<Queued>> _lanes = new ArrayList<>(Lane.values().length);
+
+        /** Picks since each lane was last served while starving */
+        private final int[] _passedOver = new int[Lane.values().length];
+
+        private volatile boolean _running = true;
+
+        Worker(int index)
+        {
+            super(PublishScheduler.class.getName() + "-" + index);
+            setDaemon(true);
+
+            for (int i = 0; i < Lane.values().length; i++)
+                _lanes.add(new ArrayDeque<>());
+        }
+
+        /**
+         * Queue a job. A rejected job is dropped after the lock is released, since dropping may
+         * spill to disk and must not hold up the worker or other producers.
+         */
+        boolean enqueue(Lane lane, Job job, boolean wait)
+        {
+            boolean queued = false;
+            _lock.lock();
+            try
+            {
+                ArrayDeque<Queued> queue = _lanes.get(lane.ordinal());
+                while (_running && queue.size() >= LANE_CAPACITY && wait)
+                    _notFull.await();
+
+                if (_running && queue.size() < LANE_CAPACITY)
+                {
+                    queue.add(new Queued(job, System.nanoTime()));
+                    _notEmpty.signal();
+                    queued = true;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+
+            if (!queued)
+                job.drop();
+
+            return queued;
+        }
+
+        int size()
+        {
+            _lock.lock();
+            try
+            {
+                int size = 0;
+                for (ArrayDeque<Queued> queue : _lanes)
+                    size += queue.size();
+                return size;
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+
+        void shutdown()
+        {
+            _running = false;
+            interrupt();
+        }
+
+        /**
+         * Next job by lane priority, giving starving lanes their turn
+         * @return Job, null once stopped
+         */
+        private Job next() throws InterruptedException
+        {
+            _lock.lock();
+            try
+            {
+                while (true)
+                {
+                    if (!_running)
+                        return null;
+
+                    long now = System.nanoTime();
+                    int pick = -1;
+
+                    for (int lane = 0; lane < _lanes.size(); lane++)
+                    {
+                        Queued head = _lanes.get(lane).peek();
+                        if (head == null)
+                            continue;
+
+                        if (pick < 0)
+                        {
+                            pick = lane;
+                        }
+                        else if (now - head.queuedAt > MAX_WAIT_NANOS[lane] && ++_passedOver[lane] >= STARVING_TURN)
+                        {
+                            pick = lane;
+                            break;
+                        }
+                    }
+
+                    if (pick >= 0)
+                    {
+                        _passedOver[pick] = 0;
+                        Queued queued = _lanes.get(pick).poll();
+                        _notFull.signalAll();
+                        return queued.job;
+                    }
+
+                    _notEmpty.await();
+                }
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            while (_running)
+            {
+                Job job;
+                try
+                {
+                    job = next();
+                }
+                catch (InterruptedException e)
+                {
+                    break;
+                }
+
+                if (job == null)
+                    break;
+
+                try
+                {
+                    job.send();
+                }
+                catch (RuntimeException e)
+                {
+                    GatewayXM.logger.info("Publish failed: " + e);
+                }
+            }
+
+            // Hand back whatever is left, eg. to the telemetry buffer, outside the lock
+            ArrayDeque<Queued> left = new ArrayDeque<>();
+            _lock.lock();
+            try
+            {
+                _running = false;
+                for (ArrayDeque<Queued> queue : _lanes)
+                {
+                    left.addAll(queue);
+                    queue.clear();
+                }
+                _notFull.signalAll();
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+
+            for (Queued queued : left)
+                queued.job.drop();
+        }
+    }
+
+    /**
+     * Job with its queueing time
+     */
+    private static class Queued
+    {
+        final Job job;
+        final long queuedAt;
+
+        Queued(Job job, long queuedAt)
+        {
+            this.job = job;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shapes publishing toward thingsboard to stay within its rate limits, in messages and bytes per
+ * second. Live telemetry and backlog replay have separate budgets, and backlog replay also holds
+ * back while live messages wait for their budget, so replay after an outage never delays live data.
+ * Live messages that cannot be sent within MAX_LIVE_WAIT_MS are buffered instead.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class PublishShaper
+{
+    /**
+     * Traffic class of a message
+     */
+    public enum Traffic
+    {
+        LIVE, BACKLOG
+    }
+
+    /** Max time a live message waits for budget */
+    public static final long MAX_LIVE_WAIT_MS = 2000;
+
+    /** Burst allowed, in seconds of rate */
+    private static final double BURST_SEC = 1.0;
+
+    /** Live budget */
+    private volatile Budget _live = new Budget(0, 0);
+
+    /** Backlog budget */
+    private volatile Budget _backlog = new Budget(0, 0);
+
+    /** Live messages waiting for budget */
+    private final AtomicInteger _liveWaiting = new AtomicInteger();
+
+    /**
+     * Constructor
+     */
+    public PublishShaper() {}
+
+    /**
+     * Set budgets, 0 for no limit
+     */
+    public void configure(int liveMsgRate, int liveByteRate, int backlogMsgRate, int backlogByteRate)
+    {
+        _live = new Budget(liveMsgRate, liveByteRate);
+        _backlog = new Budget(backlogMsgRate, backlogByteRate);
+    }
+
+    /**
+     * Wait for budget to publish a message
+     * @param traffic Traffic class
+     * @param bytes Message size
+     * @return True if the message may be sent, false if a live message ran out of time or the thread was interrupted
+     */
+    public boolean acquire(Traffic traffic, int bytes)
+    {
+        if (traffic == Traffic.LIVE)
+        {
+            _liveWaiting.incrementAndGet();
+            try
+            {
+                return _live.acquire(bytes, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_LIVE_WAIT_MS), null);
+            }
+            finally
+            {
+                _liveWaiting.decrementAndGet();
+            }
+        }
+
+        return _backlog.acquire(bytes, Long.MAX_VALUE, _liveWaiting);
+    }
+
+    /**
+     * Message and byte buckets of one traffic class
+     */
+    private static class Budget
+    {
+        /** Poll interval while yielding to live traffic */
+        private static final long YIELD_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+        private final TokenBucket _messages;
+        private final TokenBucket _bytes;
+
+        Budget(int msgRate, int byteRate)
+        {
+            _messages = msgRate > 0 ? new TokenBucket(msgRate, BURST_SEC) : null;
+            _bytes = byteRate > 0 ? new TokenBucket(byteRate, BURST_SEC) : null;
+        }
+
+        /**
+         * @param deadline Give up at this time (System.nanoTime)
+         * @param yieldTo Wait while this is above 0, may be null
+         */
+        boolean acquire(int bytes, long deadline, AtomicInteger yieldTo)
+        {
+            while (true)
+            {
+                long now = System.nanoTime();
+                long wait;
+
+                if (yieldTo != null && yieldTo.get() > 0)
+                {
+                    wait = YIELD_NANOS;
+                }
+                else
+                {
+                    synchronized (this)
+                    {
+                        wait = Math.max(_messages == null ? 0 : _messages.waitNanos(1, now),
+                                _bytes == null ? 0 : _bytes.waitNanos(bytes, now));
+
+                        if (wait == 0)
+                        {
+                            if (_messages != null)
+                                _messages.take(1, now);
+                            if (_bytes != null)
+                                _bytes.take(bytes, now);
+                            return true;
+                        }
+                    }
+                }
+
+                if (deadline != Long.MAX_VALUE && now + wait - deadline > 0)
+                    return false;
+
+                try
+                {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+    }
+}
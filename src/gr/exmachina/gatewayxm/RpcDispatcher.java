@@ -0,0 +1,196 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Executes server side RPC requests received on v1/gateway/rpc as modbus channel writes, queued on
+ * WriteScheduler outside the poller's read loop, and publishes the response with the request id
+ * once the write is acknowledged. Requests are decoded and answered on a dedicated high priority thread.
+ * Request: {"device": "meter1", "data": {"id": 1, "method": "write", "params": {"channel": "setpoint", "value": 21.5}}}
+ * or with params {"setpoint": 21.5, "mode": 2} to write several channels at once.
+ * Response: {"device": "meter1", "id": 1, "data": {"success": true}} or {.., "data": {"success": false, "error": ".."}}.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class RpcDispatcher
+{
+    /** Channel write method */
+    public static final String METHOD_WRITE = "write";
+
+    /** Request executor */
+    private ExecutorService _executor;
+
+    /** Session requests arrive on and responses are published on */
+    private final ThingsboardMqtt _thingsboard;
+
+    /** Channel writes */
+    private final WriteScheduler _writeScheduler;
+
+    /** Gateway self-telemetry */
+    private final GatewayMetrics _metrics;
+
+    /** Rate limited hot path logging */
+    private final HotLog _log;
+
+    /**
+     * Constructor
+     * @param thingsboard Session requests arrive on and responses are published on
+     * @param writeScheduler Channel writes
+     * @param metrics Gateway self-telemetry
+     * @param log Rate limited hot path logging
+     */
+    public RpcDispatcher(ThingsboardMqtt thingsboard, WriteScheduler writeScheduler, GatewayMetrics metrics, HotLog log)
+    {
+        _thingsboard = thingsboard;
+        _writeScheduler = writeScheduler;
+        _metrics = metrics;
+        _log = log;
+    }
+
+    /**
+     * Start the request executor
+     */
+    public synchronized void start()
+    {
+        stop();
+
+        _executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, RpcDispatcher.class.toString());
+            t.setDaemon(true);
+            t.setPriority(Thread.MAX_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Stop the request executor, requests not yet executed are dropped
+     */
+    public synchronized void stop()
+    {
+        if (_executor != null)
+        {
+            _executor.shutdownNow();
+            _executor = null;
+        }
+    }
+
+    /**
+     * Queue a request for execution, called on the mqtt callback thread
+     * @param payload Gateway RPC request, in the gateway API payload format
+     */
+    public synchronized void dispatch(byte[] payload)
+    {
+        if (_executor == null)
+            return;
+
+        ExecutorService executor = _executor;
+        long received = System.nanoTime();
+        try
+        {
+            executor.execute(() -> execute(payload, received, executor));
+        }
+        catch (RejectedExecutionException e)
+        {
+            _metrics.rpcFailures.increment();
+        }
+    }
+
+    /**
+     * Decode a request and queue its writes, on the executor thread
+     * @param executor Executor the response is published on
+     */
+    private void execute(byte[] payload, long received, ExecutorService executor)
+    {
+        String deviceName;
+        Object id;
+        JSONObject data;
+        try
+        {
+            JSONObject request = _thingsboard.getCodec().rpcRequest(payload);
+            deviceName = request.getString("device");
+            data = request.getJSONObject("data");
+            id = data.get("id");
+        }
+        catch (IllegalArgumentException | JSONException e)
+        {
+            _metrics.rpcFailures.increment();
+            _log.warn(HotLog.Category.RPC_FAILURE, "Invalid RPC request of {} bytes: {}", payload.length,
+                    e.getMessage());
+            return;
+        }
+
+        try
+        {
+            String method = data.optString("method");
+            if (!METHOD_WRITE.equals(method))
+                throw new IllegalArgumentException("Unsupported method " + method);
+
+            _writeScheduler.write(deviceName, values(data.optJSONObject("params")))
+                    .whenCompleteAsync((v, e) -> respond(deviceName, id, received, e), executor);
+        }
+        catch (IllegalArgumentException | IllegalStateException | JSONException | RejectedExecutionException e)
+        {
+            respond(deviceName, id, received, e);
+        }
+    }
+
+    /**
+     * Publish the response of a request
+     * @param e Failure, null on success
+     */
+    private void respond(String deviceName, Object id, long received, Throwable e)
+    {
+        if (e instanceof CompletionException && e.getCause() != null)
+            e = e.getCause();
+
+        JSONObject response = new JSONObject();
+        if (e == null)
+        {
+            response.put("success", true);
+            _metrics.rpcLatency.recordNanos(System.nanoTime() - received);
+        }
+        else
+        {
+            _metrics.rpcFailures.increment();
+            _log.warn(HotLog.Category.RPC_FAILURE, "RPC {} failed: {}", deviceName + "/" + id, e.getMessage());
+            response.put("success", false);
+            response.put("error", String.valueOf(e.getMessage()));
+        }
+
+        _thingsboard.publishRpcResponse(deviceName, id, response);
+    }
+
+    /**
+     * Values to write by channel, from {"channel": .., "value": ..} or {channel: value, ..}
+     */
+    private static Map<String, Object> values(JSONObject params)
+    {
+        if (params == null)
+            throw new IllegalArgumentException("No params");
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        if (params.has("channel"))
+        {
+            values.put(params.getString("channel"), params.get("value"));
+        }
+        else
+        {
+            for (String channel : params.keySet())
+                values.put(channel, params.get(channel));
+        }
+
+        if (values.isEmpty())
+            throw new IllegalArgumentException("No channels to write");
+
+        return values;
+    }
+}
@@ -2,8 +2,14 @@ package gr.exmachina.gatewayxm;
 
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import gr.exmachina.gatewayxm.jfr.Flight;
+import gr.exmachina.gatewayxm.jfr.Recorder;
+
+import java.io.File;
 import java.util.Iterator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -11,66 +17,97 @@ import java.util.regex.Pattern;
 /**
  * Listens on local Artemis MQTT broker for telemetry coming from mesh sensor nodes 
  * and publishes to Thingsboard.
+ * The session is persistent (stable client id, clean session off), so the broker queues QoS 1/2
+ * messages while the gateway is away and delivers them on reconnect. Messages are acked only once
+ * handed to the sinks.
  *
  * @author Ex-Machina
  *
  */
-public class SensorNodes implements MqttCallback
+public class SensorNodes implements MqttCallbackExtended
 {
-    /** Singleton instance */
-    private static SensorNodes _inst = null;
-
     /** Sensor node telementry topic */
     public static final String SENSOR_TOPIC = "sensor_node_out/+/telemetry/";
 
     /** Regex to obtain sensor node device name from topic */
     public static final String DEVICE_NAME_REGEX = "sensor_node_out/(.*?)/telemetry/";
 
+    /** Compiled DEVICE_NAME_REGEX */
+    private static final Pattern DEVICE_NAME_PATTERN = Pattern.compile(DEVICE_NAME_REGEX);
+
     /** Mqtt broker - Connects only to local broker */
     public static final String MQTT_BROKER_URL = "localhost";
 
-    /** MQTT client id */
-    final String MQTT_CLIENT_ID = "GatewayXM";
+    /** Suffix of the default client id, appended to the gateway client id */
+    public static final String CLIENT_ID_SUFFIX = "-sensors";
+
+    /** Optional payload field holding the node's sampling time, in ms since epoch */
+    public static final String TIMESTAMP_KEY = "ts";
 
     /** Message QOS */
     public static final int MQTT_QOS = 2;
 
+    /** Persistence dir setting that keeps in-flight message state in memory */
+    public static final String MEMORY_PERSISTENCE = "memory";
+
+    /** Default in-flight message state directory, under the Kura data directory */
+    public static final String DEFAULT_PERSISTENCE_DIR = "gatewayxm/artemis";
+
+    /** System property of the Kura data directory */
+    public static final String KURA_DATA_PROPERTY = "kura.data";
+
+    /** Kura data directory if KURA_DATA_PROPERTY is not set */
+    public static final String KURA_DATA_DEFAULT = "/opt/eclipse/kura/data";
+
+    /** Time given to the message being handled when disconnecting */
+    public static final long DISCONNECT_QUIESCE_MS = 2000;
+
     /** Paho mqtt client object */
     MqttClient _mqttClient;
 
     /** Sensor broker MQTT username */
     String _mqttUsername = "";
 
-    /** MQTT data persistence */
-    MemoryPersistence _persistence;
+    /** MQTT client id, must be stable for the broker to keep the session */
+    String _clientId = "GatewayXM" + CLIENT_ID_SUFFIX;
+
+    /** In-flight message state directory, null keeps it in memory */
+    String _persistenceDir = defaultPersistenceDir();
 
     /** MQTT broker port */
     int _mqttBrokerPort;
 
-    /** Thingsboard MQTT object */
+    /** Routes sensor node telemetry to the sinks */
+    private final SinkDispatcher _dispatcher;
 
-    /**
-     * Private constructor
-     */
-    private SensorNodes(){}
+    /** Gateway self-telemetry */
+    private final GatewayMetrics _metrics;
+
+    /** Rate limited hot path logging */
+    private final HotLog _log;
 
     /**
-     * Get singleton instance
+     * Constructor
+     * @param dispatcher Routes sensor node telemetry to the sinks
+     * @param metrics Gateway self-telemetry
+     * @param log Rate limited hot path logging
      */
-    public static SensorNodes inst()
+    public SensorNodes(SinkDispatcher dispatcher, GatewayMetrics metrics, HotLog log)
     {
-        if(_inst == null)
-            _inst = new SensorNodes();
-
-        return _inst;
+        _dispatcher = dispatcher;
+        _metrics = metrics;
+        _log = log;
     }
 
     /**
      * Try to connect to broker with the credentials provided
      * @return True if successful
      */
-    public boolean connectMqtt()
+    public synchronized boolean connectMqtt()
     {
+        // Client of a previous failed attempt
+        disconnectMqtt();
+
         // Connect to broker
         try
         {
@@ -78,18 +115,24 @@ public class SensorNodes implements MqttCallback
 
             GatewayXM.logger.info("Connecting to sensor node broker: " + broker);
 
-            _persistence = new MemoryPersistence();
-            _mqttClient = new MqttClient(broker, MQTT_BROKER_URL, _persistence);
+            MqttClientPersistence persistence = _persistenceDir == null ? new MemoryPersistence()
+                    : new MqttDefaultFilePersistence(_persistenceDir);
+            _mqttClient = new MqttClient(broker, _clientId, persistence);
+
+            // Set before connecting, the broker delivers the queued backlog right away
+            _mqttClient.setCallback(this);
+            _mqttClient.setManualAcks(true);
 
             MqttConnectOptions connOpts = new MqttConnectOptions();
-            connOpts.setCleanSession(true);
+            connOpts.setCleanSession(false);
+            connOpts.setAutomaticReconnect(true);
 
             if(_mqttUsername.length() > 0)
                 connOpts.setUserName(_mqttUsername);
 
             _mqttClient.connect(connOpts);
 
-            GatewayXM.logger.info("Connected to sensor node MQTT!");
+            GatewayXM.logger.info("Connected to sensor node MQTT as " + _clientId);
         }
         catch (MqttException e)
         {
@@ -102,16 +145,26 @@ public class SensorNodes implements MqttCallback
             return false;
         }
 
-        // Subscribe to sensor node telemetry topic
-        _mqttClient.setCallback(this);
+        return subscribe();
+    }
+
+    /**
+     * Subscribe to sensor node telemetry topic. Kept by the broker with the session, repeated in
+     * case the broker lost it.
+     */
+    private boolean subscribe()
+    {
+        MqttClient client = _mqttClient;
+        if (client == null)
+            return false;
 
         try
         {
-            _mqttClient.subscribe(SENSOR_TOPIC);
+            client.subscribe(SENSOR_TOPIC, MQTT_QOS);
         }
         catch (MqttException e)
         {
-            System.out.printf(String.format("Could not subscribe to topic '%s' : %s", SENSOR_TOPIC, e.getMessage()));
+            GatewayXM.logger.info(String.format("Could not subscribe to topic '%s' : %s", SENSOR_TOPIC, e.getMessage()));
             return false;
         }
 
@@ -121,13 +174,14 @@ public class SensorNodes implements MqttCallback
     /**
      * Disconnect from mqtt broker
      */
-    public void disconnectMqtt()
+    public synchronized void disconnectMqtt()
     {
         if (_mqttClient != null && _mqttClient.isConnected())
         {
             try
             {
-                _mqttClient.disconnect();
+                // Bounded wait for the message being handled
+                _mqttClient.disconnect(DISCONNECT_QUIESCE_MS);
                 GatewayXM.logger.info("Disconnected from sensor node MQTT.");
             }
             catch (MqttException e)
@@ -135,6 +189,19 @@ public class SensorNodes implements MqttCallback
                 e.printStackTrace();
             }
         }
+
+        if (_mqttClient != null)
+        {
+            try
+            {
+                _mqttClient.close();
+            }
+            catch (MqttException e)
+            {
+                // Nothing to do
+            }
+            _mqttClient = null;
+        }
     }
 
     /**
@@ -154,9 +221,56 @@ public class SensorNodes implements MqttCallback
         _mqttBrokerPort = port;
     }
 
+    /**
+     * Set sensor node MQTT client id
+     */
+    public void setClientId(String clientId)
+    {
+        _clientId = clientId;
+    }
+
+    /**
+     * Set in-flight message state directory
+     * @param dir Directory, empty for DEFAULT_PERSISTENCE_DIR, MEMORY_PERSISTENCE keeps the state in memory
+     */
+    public void setPersistenceDir(String dir)
+    {
+        dir = dir == null ? "" : dir.trim();
+        if (dir.isEmpty())
+            _persistenceDir = defaultPersistenceDir();
+        else
+            _persistenceDir = MEMORY_PERSISTENCE.equalsIgnoreCase(dir) ? null : dir;
+    }
+
+    /**
+     * DEFAULT_PERSISTENCE_DIR under the Kura data directory
+     */
+    private static String defaultPersistenceDir()
+    {
+        return new File(System.getProperty(KURA_DATA_PROPERTY, KURA_DATA_DEFAULT), DEFAULT_PERSISTENCE_DIR).getPath();
+    }
 
+    /**
+     * Connection lost (callback), the client reconnects by itself and resumes the session
+     */
     @Override
-    public void connectionLost(Throwable throwable){}
+    public void connectionLost(Throwable throwable)
+    {
+        GatewayXM.logger.info("Sensor node MQTT connection lost, reconnecting: " + throwable.getMessage());
+    }
+
+    /**
+     * Connected (callback), resubscribe after an automatic reconnect
+     */
+    @Override
+    public void connectComplete(boolean reconnect, String serverURI)
+    {
+        if (reconnect)
+        {
+            GatewayXM.logger.info("Reconnected to sensor node MQTT.");
+            subscribe();
+        }
+    }
 
     /**
      * Message arrived on sensor node telemetry topic (callback)
@@ -169,11 +283,37 @@ public class SensorNodes implements MqttCallback
     @Override
     public void messageArrived(String s, MqttMessage mqttMessage) throws Exception
     {
+        try
+        {
+            handleMessage(s, mqttMessage);
+        }
+        catch (JSONException e)
+        {
+            // Dropped, a redelivery would fail the same way
+            _log.warn(HotLog.Category.SENSOR_MESSAGE_FAILURE, "Malformed sensor node message on {}: {}", s,
+                    e.getMessage());
+        }
+        finally
+        {
+            MqttClient client = _mqttClient;
+            if (client != null)
+                client.messageArrivedComplete(mqttMessage.getId(), mqttMessage.getQos());
+        }
+    }
+
+    /**
+     * Scan the topic for the device name, if found build a telemetry packet and pass it to the sinks
+     */
+    private void handleMessage(String s, MqttMessage mqttMessage)
+    {
+        _metrics.messagesIn.increment();
+        Recorder.SensorMessage event = Flight.RECORDER.sensorMessage(s, mqttMessage.getPayload().length);
+
         // Obtain device name from topic
-        Matcher matcher = Pattern.compile(DEVICE_NAME_REGEX).matcher(s);
+        Matcher matcher = DEVICE_NAME_PATTERN.matcher(s);
         String deviceName = "";
 
-        System.out.println(mqttMessage.toString());
+        HotLog.debug("Sensor node message on {}: {}", s, mqttMessage);
 
         if(matcher.find())
             deviceName = matcher.group(1);
@@ -183,20 +323,30 @@ public class SensorNodes implements MqttCallback
         {
             TelemetryPacket packet = new TelemetryPacket();
 
-            packet.setTimestamp(System.currentTimeMillis());
             packet.setDeviceName(deviceName);
 
             // Add all keys from root object
             JSONObject jsonData = new JSONObject(mqttMessage.toString());
             Iterator<String> iteratorKeys = jsonData.keys();
 
+            // Node's own sampling time if sent, else arrival time
+            long timestamp = jsonData.optLong(TIMESTAMP_KEY, 0);
+            packet.setTimestamp(timestamp > 0 ? timestamp : GatewayClock.now());
+
             while(iteratorKeys.hasNext())
             {
                 String key = iteratorKeys.next();
-                packet.addData(key, jsonData.get(key).toString());
+                if (!TIMESTAMP_KEY.equals(key))
+                    packet.addData(key, jsonData.get(key).toString());
             }
 
-            ThingsboardMqtt.inst().publishTelemetry(packet);
+            event.parsed(deviceName, packet.getData().size(), true);
+
+            _dispatcher.publishTelemetry(packet);
+        }
+        else
+        {
+            event.parsed(deviceName, 0, false);
         }
     }
 
@@ -0,0 +1,281 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fans the telemetry stream out to the primary sink and any secondary sinks. The primary sink
+ * (thingsboard or sparkplug) is called directly, as before. Each secondary sink has its own bounded
+ * queue and worker thread, which publishes in batches and retries a failed batch with backoff; the
+ * acquisition thread only offers packets to the queues, so a slow or failed secondary sink never
+ * delays the primary path. When a queue is full its newest packets are dropped.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class SinkDispatcher
+{
+    /** Max packets per secondary sink batch */
+    public static final int BATCH_SIZE = 500;
+
+    /** Retry delay of a failed batch, doubled up to RETRY_MAX_MS */
+    private static final long RETRY_MIN_MS = 1000;
+
+    /** Max retry delay */
+    private static final long RETRY_MAX_MS = 30000;
+
+    /** Max wait for a worker to flush its queue when removed */
+    private static final long STOP_TIMEOUT_MS = 2000;
+
+    /** Primary sink, set by the runtime from the output mode */
+    private volatile TelemetrySink _primary;
+
+    /** Secondary sink workers, replaced as a whole */
+    private volatile List<Worker> _workers = Collections.emptyList();
+
+    /** Gateway self-telemetry */
+    private final GatewayMetrics _metrics;
+
+    /**
+     * Constructor
+     * @param metrics Gateway self-telemetry
+     */
+    public SinkDispatcher(GatewayMetrics metrics)
+    {
+        _metrics = metrics;
+    }
+
+    /**
+     * Set the primary sink
+     */
+    public void setPrimary(TelemetrySink sink)
+    {
+        _primary = sink;
+    }
+
+    /**
+     * Add a secondary sink and start its worker
+     * @param queueSize Max packets queued for the sink
+     */
+    public synchronized void addSink(TelemetrySink sink, int queueSize)
+    {
+        Worker worker = new Worker(sink, Math.max(BATCH_SIZE, queueSize));
+        List<Worker> workers = new ArrayList<>(_workers);
+        workers.add(worker);
+        _workers = Collections.unmodifiableList(workers);
+
+        worker.start();
+        GatewayXM.logger.info("Telemetry sink " + sink.getName() + " added.");
+    }
+
+    /**
+     * Remove all secondary sinks, giving each a short time to flush its queue
+     */
+    public synchronized void removeSinks()
+    {
+        List<Worker> workers = _workers;
+        _workers = Collections.emptyList();
+
+        for (Worker worker : workers)
+            worker.shutdown();
+        for (Worker worker : workers)
+            worker.await();
+    }
+
+    /**
+     * Publish a single packet
+     */
+    public boolean publishTelemetry(TelemetryPacket packet)
+    {
+        return publishTelemetry(Collections.singletonList(packet));
+    }
+
+    /**
+     * Publish packets of one device to the primary sink, and queue them for the secondary sinks
+     * @return True if published to the primary sink
+     */
+    public boolean publishTelemetry(List<TelemetryPacket> packets)
+    {
+        boolean success = _primary.publishTelemetry(packets);
+
+        for (Worker worker : _workers)
+            worker.offer(packets);
+
+        return success;
+    }
+
+    /**
+     * Report a device offline to the primary sink
+     */
+    public void disconnectDevice(String deviceName)
+    {
+        _primary.disconnectDevice(deviceName);
+    }
+
+    /**
+     * Packets queued over all secondary sinks
+     */
+    public int getQueued()
+    {
+        int queued = 0;
+        for (Worker worker : _workers)
+            queued += worker.queue.size();
+
+        return queued;
+    }
+
+    /**
+     * Queue and thread of a secondary sink
+     */
+    private class Worker implements Runnable
+    {
+        final TelemetrySink sink;
+        final BlockingQueue<TelemetryPacket> queue;
+        final Thread thread;
+        volatile boolean stopping = false;
+        volatile boolean abandoned = false;
+
+        Worker(TelemetrySink sink, int queueSize)
+        {
+            this.sink = sink;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            this.thread = new Thread(this, SinkDispatcher.class.toString() + " " + sink.getName());
+            this.thread.setDaemon(true);
+        }
+
+        void start()
+        {
+            thread.start();
+        }
+
+        /** Queue packets without blocking, dropping them if full */
+        void offer(List<TelemetryPacket> packets)
+        {
+            for (TelemetryPacket packet : packets)
+            {
+                if (!queue.offer(packet))
+                    _metrics.sinkDropped.increment();
+            }
+        }
+
+        /** Stop taking new batches once the queue is empty, interrupting retry waits */
+        void shutdown()
+        {
+            stopping = true;
+            thread.interrupt();
+        }
+
+        /** Wait for the worker to exit, it closes the sink itself */
+        void await()
+        {
+            try
+            {
+                thread.join(STOP_TIMEOUT_MS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            if (thread.isAlive())
+            {
+                // Drop the rest of the queue, the sink is closed once the current publish returns
+                abandoned = true;
+                thread.interrupt();
+                GatewayXM.logger.info("Telemetry sink " + sink.getName() + " did not stop in time.");
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                publish();
+            }
+            finally
+            {
+                // Only this thread uses the sink, so it is never closed during a publish
+                sink.close();
+                _metrics.sinkDropped.add(queue.size());
+                queue.clear();
+            }
+        }
+
+        /** Publish batches until stopped and the queue is empty */
+        private void publish()
+        {
+            List<TelemetryPacket> batch = new ArrayList<>(BATCH_SIZE);
+            long retryMs = RETRY_MIN_MS;
+
+            while (true)
+            {
+                if (batch.isEmpty())
+                {
+                    if (abandoned || (stopping && queue.isEmpty()))
+                        return;
+
+                    try
+                    {
+                        TelemetryPacket first = queue.poll(1, TimeUnit.SECONDS);
+                        if (first == null)
+                            continue;
+                        batch.add(first);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // Flush what is queued before exiting
+                        continue;
+                    }
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                }
+
+                boolean success;
+                try
+                {
+                    success = sink.publishTelemetry(batch);
+                }
+                catch (RuntimeException e)
+                {
+                    success = false;
+                    GatewayXM.logger.info("Telemetry sink " + sink.getName() + " failed: " + e);
+                }
+
+                if (abandoned)
+                {
+                    if (!success)
+                        _metrics.sinkDropped.add(batch.size());
+                    return;
+                }
+
+                if (success)
+                {
+                    batch.clear();
+                    retryMs = RETRY_MIN_MS;
+                    continue;
+                }
+
+                _metrics.sinkFailures.increment();
+                if (stopping)
+                {
+                    _metrics.sinkDropped.add(batch.size());
+                    return;
+                }
+
+                try
+                {
+                    Thread.sleep(retryMs);
+                }
+                catch (InterruptedException e)
+                {
+                    // Stopping, try once more
+                }
+                retryMs = Math.min(retryMs * 2, RETRY_MAX_MS);
+            }
+        }
+    }
+}
@@ -0,0 +1,697 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * Sparkplug B output, an alternative to ThingsboardMqtt for SCADA hosts. The gateway is the edge
+ * node, each asset/sensor node a device. Every metric gets a numeric alias in its DBIRTH; DDATA
+ * messages then carry only the aliases of the values that changed since the last message. The
+ * NDEATH is registered as will message with the bdSeq of the session, which is incremented on every
+ * (re)connect; on reconnect NBIRTH and the DBIRTHs of all known devices are sent again with their
+ * last values. A "Node Control/Rebirth" NCMD triggers the same, DCMD metrics are written to the
+ * device's channels through WriteScheduler.
+ * Topics: spBv1.0/{group}/{NBIRTH|NDEATH|NCMD}/{edge node}, spBv1.0/{group}/{DBIRTH|DDATA|DDEATH|DCMD}/{edge node}/{device}
+ *
+ * @author Ex-Machina
+ *
+ */
+public class SparkplugPublisher implements MqttCallback, TelemetrySink
+{
+    /** Sparkplug B topic namespace */
+    public static final String NAMESPACE = "spBv1.0";
+
+    /** Node metric holding the birth/death sequence number */
+    public static final String BDSEQ_METRIC = "bdSeq";
+
+    /** Node control metric a host sets to request births */
+    public static final String REBIRTH_METRIC = "Node Control/Rebirth";
+
+    /** DataType enum values of sparkplug_b.proto */
+    private static final int TYPE_INT64 = 4;
+    private static final int TYPE_DOUBLE = 10;
+    private static final int TYPE_BOOLEAN = 11;
+    private static final int TYPE_STRING = 12;
+
+    /** QOS of births and data, as required by the spec */
+    private static final int MQTT_QOS = 0;
+
+    /** QOS of the death certificate */
+    private static final int DEATH_QOS = 1;
+
+    /** First reconnect delay, doubled on every failed attempt */
+    private static final long RECONNECT_MIN_MS = 1000;
+
+    /** Max reconnect delay */
+    private static final long RECONNECT_MAX_MS = 60000;
+
+    /** Connect timeout, publishers wait on it while reconnecting */
+    private static final int CONNECT_TIMEOUT_S = 5;
+
+    /** Broker uri, eg. tcp://host:1883, empty when disabled */
+    private String _brokerUrl = "";
+
+    /** Broker username, empty for none */
+    private String _username = "";
+
+    /** Sparkplug group id */
+    private String _groupId = "GatewayXM";
+
+    /** Edge node id, also the mqtt client id */
+    private String _edgeNodeId = "GatewayXM";
+
+    /** Paho mqtt client object */
+    private MqttClient _mqttClient;
+
+    /** Birth/death sequence number of the current session */
+    private long _bdSeq = -1;
+
+    /** Message sequence number, 0-255 */
+    private int _seq = 0;
+
+    /** Next metric alias, unique over all devices */
+    private long _nextAlias = 1;
+
+    /** Metric state per device */
+    private final Map<String, Device> _devices = new LinkedHashMap<>();
+
+    /** Reconnects after connection loss, null when stopped */
+    private ScheduledExecutorService _reconnector;
+
+    /** Current reconnect delay */
+    private long _reconnectDelayMs = RECONNECT_MIN_MS;
+
+    /** Payload encoder, used under the instance lock */
+    private final ProtoWriter _writer = new ProtoWriter();
+
+    /** Channel writes requested by device commands */
+    private final WriteScheduler _writeScheduler;
+
+    /** Gateway self-telemetry */
+    private final GatewayMetrics _metrics;
+
+    /** Rate limited hot path logging */
+    private final HotLog _log;
+
+    /**
+     * Constructor
+     * @param writeScheduler Channel writes requested by device commands
+     * @param metrics Gateway self-telemetry
+     * @param log Rate limited hot path logging
+     */
+    public SparkplugPublisher(WriteScheduler writeScheduler, GatewayMetrics metrics, HotLog log)
+    {
+        _writeScheduler = writeScheduler;
+        _metrics = metrics;
+        _log = log;
+    }
+
+    /**
+     * Set broker and node identity, applied on the next connect
+     * @param brokerUrl Broker uri, eg. tcp://host:1883
+     * @param username Broker username, empty for none
+     * @param groupId Sparkplug group id
+     * @param edgeNodeId Edge node id
+     */
+    public synchronized void configure(String brokerUrl, String username, String groupId, String edgeNodeId)
+    {
+        _brokerUrl = brokerUrl == null ? "" : brokerUrl.trim();
+        _username = username == null ? "" : username.trim();
+        _groupId = groupId;
+        _edgeNodeId = edgeNodeId;
+    }
+
+    /**
+     * True while started
+     */
+    public synchronized boolean isEnabled()
+    {
+        return _reconnector != null;
+    }
+
+    /**
+     * Connect and publish births, reconnecting in the background from then on
+     * @return True if connected
+     */
+    public synchronized boolean connect()
+    {
+        disconnect();
+
+        _reconnector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, SparkplugPublisher.class.toString());
+            t.setDaemon(true);
+            return t;
+        });
+        _reconnectDelayMs = RECONNECT_MIN_MS;
+
+        return doConnect();
+    }
+
+    /**
+     * Publish the NDEATH and disconnect
+     */
+    public synchronized void disconnect()
+    {
+        if (_reconnector != null)
+        {
+            _reconnector.shutdownNow();
+            _reconnector = null;
+        }
+
+        if (_mqttClient != null)
+        {
+            try
+            {
+                if (_mqttClient.isConnected())
+                {
+                    // A clean disconnect does not fire the will
+                    _mqttClient.publish(topic("NDEATH", null), death(), DEATH_QOS, false);
+                    _mqttClient.disconnect(ThingsboardMqtt.DISCONNECT_QUIESCE_MS);
+                }
+                _mqttClient.close();
+            }
+            catch (MqttException e)
+            {
+                // Nothing to do
+            }
+            _mqttClient = null;
+        }
+
+        for (Device device : _devices.values())
+            device.born = false;
+    }
+
+    @Override
+    public String getName()
+    {
+        return "sparkplug";
+    }
+
+    /**
+     * Publish a single packet
+     */
+    public boolean publishTelemetry(TelemetryPacket packet)
+    {
+        return publishTelemetry(Collections.singletonList(packet));
+    }
+
+    /**
+     * Publish packets, a DBIRTH for devices not yet born or with new metrics, else a DDATA with
+     * the changed values only. While disconnected only the device state is updated, the next births
+     * carry the latest values.
+     * @return True if published
+     */
+    @Override
+    public synchronized boolean publishTelemetry(List<TelemetryPacket> packets)
+    {
+        Map<Device, List<Metric>> changes = new LinkedHashMap<>();
+        for (TelemetryPacket packet : packets)
+        {
+            Device device = _devices.computeIfAbsent(packet.getDeviceName(), Device::new);
+            List<Metric> changed = changes.computeIfAbsent(device, d -> new ArrayList<>());
+
+            for (Map.Entry<String, String> entry : packet.getData().entrySet())
+            {
+                Object value = parse(entry.getValue());
+                int datatype = datatype(value);
+
+                Metric metric = device.metrics.get(entry.getKey());
+                if (metric == null || metric.datatype != datatype)
+                {
+                    // New metric or type change, the device must be born again
+                    metric = new Metric(entry.getKey(), metric == null ? _nextAlias++ : metric.alias, datatype);
+                    device.metrics.put(entry.getKey(), metric);
+                    device.born = false;
+                }
+                else if (Objects.equals(metric.value, value))
+                {
+                    continue;
+                }
+
+                metric.value = value;
+                metric.timestamp = packet.getTimestamp();
+                changed.add(new Metric(metric));
+            }
+        }
+
+        if (!isConnected())
+            return false;
+
+        boolean success = true;
+        for (Map.Entry<Device, List<Metric>> change : changes.entrySet())
+        {
+            Device device = change.getKey();
+            if (!device.born)
+                success &= publishDeviceBirth(device);
+            else if (!change.getValue().isEmpty())
+                success &= publish(topic("DDATA", device.name), payload(change.getValue(), false), device.name);
+        }
+
+        return success;
+    }
+
+    /**
+     * Publish a DDEATH for a device, eg. one gone offline; its next values are sent as a new DBIRTH
+     */
+    @Override
+    public synchronized void disconnectDevice(String deviceName)
+    {
+        Device device = _devices.get(deviceName);
+        if (device == null || !device.born)
+            return;
+
+        device.born = false;
+        if (isConnected())
+            publish(topic("DDEATH", deviceName), payload(Collections.emptyList(), false), deviceName);
+    }
+
+    /**
+     * True if the session is up
+     */
+    public synchronized boolean isConnected()
+    {
+        return _mqttClient != null && _mqttClient.isConnected();
+    }
+
+    /**
+     * Connect with a new bdSeq and publish all births
+     */
+    private boolean doConnect()
+    {
+        if (_brokerUrl.isEmpty())
+        {
+            GatewayXM.logger.info("No sparkplug broker set.");
+            return false;
+        }
+
+        _bdSeq = (_bdSeq + 1) % 256;
+
+        try
+        {
+            GatewayXM.logger.info("Connecting to sparkplug MQTT: " + _brokerUrl + " as " + _edgeNodeId);
+
+            if (_mqttClient != null)
+                _mqttClient.close();
+            _mqttClient = new MqttClient(_brokerUrl, _edgeNodeId, new MemoryPersistence());
+
+            MqttConnectOptions connOpts = new MqttConnectOptions();
+            connOpts.setCleanSession(true);
+            connOpts.setConnectionTimeout(CONNECT_TIMEOUT_S);
+            if (!_username.isEmpty())
+                connOpts.setUserName(_username);
+            connOpts.setWill(topic("NDEATH", null), death(), DEATH_QOS, false);
+
+            _mqttClient.setCallback(this);
+            _mqttClient.connect(connOpts);
+            _mqttClient.subscribe(topic("NCMD", null), DEATH_QOS);
+            _mqttClient.subscribe(topic("DCMD", "+"), DEATH_QOS);
+        }
+        catch (MqttException | IllegalArgumentException e)
+        {
+            GatewayXM.logger.info("Could not connect to sparkplug MQTT: " + e.getMessage());
+            return false;
+        }
+
+        GatewayXM.logger.info("Connected to sparkplug MQTT, bdSeq " + _bdSeq);
+        birth();
+        return true;
+    }
+
+    /**
+     * Publish the NBIRTH, restarting the sequence, and the DBIRTH of every known device
+     */
+    private void birth()
+    {
+        _seq = 0;
+
+        ProtoWriter writer = _writer.reset();
+        writer.int64(1, System.currentTimeMillis());
+        metric(writer, BDSEQ_METRIC, -1, TYPE_INT64, _bdSeq, 0);
+        metric(writer, REBIRTH_METRIC, -1, TYPE_BOOLEAN, false, 0);
+        writer.int64(3, nextSeq());
+
+        if (!publish(topic("NBIRTH", null), writer.toByteArray(), _edgeNodeId))
+            return;
+
+        for (Device device : _devices.values())
+        {
+            device.born = false;
+            if (!device.metrics.isEmpty())
+                publishDeviceBirth(device);
+        }
+    }
+
+    /**
+     * Publish a DBIRTH with names, aliases, types and last values of all metrics of a device
+     */
+    private boolean publishDeviceBirth(Device device)
+    {
+        boolean success = publish(topic("DBIRTH", device.name), payload(device.metrics.values(), true), device.name);
+        device.born = success;
+        return success;
+    }
+
+    /**
+     * Payload { uint64 timestamp = 1; repeated Metric metrics = 2; uint64 seq = 3 }
+     * @param birth Include names and types, else metrics are referred to by alias only
+     */
+    private byte[] payload(Iterable<Metric> metrics, boolean birth)
+    {
+        ProtoWriter writer = _writer.reset();
+        writer.int64(1, System.currentTimeMillis());
+        for (Metric metric : metrics)
+        {
+            metric(writer, birth ? metric.name : null, metric.alias, birth ? metric.datatype : 0, metric.value,
+                    metric.timestamp);
+        }
+        writer.int64(3, nextSeq());
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * NDEATH payload, just the bdSeq of the session
+     */
+    private byte[] death()
+    {
+        ProtoWriter writer = _writer.reset();
+        writer.int64(1, System.currentTimeMillis());
+        metric(writer, BDSEQ_METRIC, -1, TYPE_INT64, _bdSeq, 0);
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * Metric { string name = 1; uint64 alias = 2; uint64 timestamp = 3; uint32 datatype = 4;
+     * uint64 long_value = 11; double double_value = 13; bool boolean_value = 14; string string_value = 15 }
+     * @param name Left out if null
+     * @param alias Left out if negative
+     * @param datatype Left out if 0
+     * @param timestamp Left out if 0
+     */
+    private static void metric(ProtoWriter writer, String name, long alias, int datatype, Object value, long timestamp)
+    {
+        int metric = writer.begin(2);
+        if (name != null)
+            writer.string(1, name);
+        if (alias >= 0)
+            writer.int64(2, alias);
+        if (timestamp != 0)
+            writer.int64(3, timestamp);
+        if (datatype != 0)
+            writer.int64(4, datatype);
+
+        if (value instanceof Double)
+            writer.float64(13, (Double) value);
+        else if (value instanceof Long)
+            writer.int64(11, (Long) value);
+        else if (value instanceof Boolean)
+            writer.bool(14, (Boolean) value);
+        else
+            writer.string(15, String.valueOf(value));
+        writer.end(metric);
+    }
+
+    /**
+     * Publish a message, counted like thingsboard messages
+     */
+    private boolean publish(String topic, byte[] payload, String deviceName)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            _mqttClient.publish(topic, payload, MQTT_QOS, false);
+            _metrics.messagesOut.increment();
+            HotLog.debug("Published {} bytes to {}", payload.length, topic);
+            return true;
+        }
+        catch (MqttException e)
+        {
+            _metrics.publishFailures.increment();
+            _log.warn(HotLog.Category.PUBLISH_FAILURE, "Could not publish {} to sparkplug: {}", deviceName,
+                    e.getMessage());
+            return false;
+        }
+        finally
+        {
+            _metrics.publishLatency.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    /** Next message sequence number */
+    private int nextSeq()
+    {
+        int seq = _seq;
+        _seq = (_seq + 1) % 256;
+        return seq;
+    }
+
+    /** Topic of a node (device null) or device message */
+    private String topic(String type, String device)
+    {
+        String topic = NAMESPACE + "/" + _groupId + "/" + type + "/" + _edgeNodeId;
+        return device == null ? topic : topic + "/" + device;
+    }
+
+    /**
+     * Telemetry values are strings, typed here: booleans, numbers as doubles, else strings
+     */
+    private static Object parse(String value)
+    {
+        if ("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value))
+            return Boolean.valueOf(value);
+
+        try
+        {
+            return Double.valueOf(value);
+        }
+        catch (NumberFormatException | NullPointerException e)
+        {
+            return value;
+        }
+    }
+
+    /** Sparkplug datatype of a parsed value */
+    private static int datatype(Object value)
+    {
+        if (value instanceof Double)
+            return TYPE_DOUBLE;
+        if (value instanceof Boolean)
+            return TYPE_BOOLEAN;
+
+        return TYPE_STRING;
+    }
+
+    /**
+     * Schedule a reconnect attempt, backing off after failures
+     */
+    private synchronized void scheduleReconnect()
+    {
+        if (_reconnector == null)
+            return;
+
+        try
+        {
+            _reconnector.schedule(() -> {
+                synchronized (this)
+                {
+                    if (_reconnector == null || isConnected())
+                        return;
+
+                    if (doConnect())
+                    {
+                        _metrics.reconnects.increment();
+                        _reconnectDelayMs = RECONNECT_MIN_MS;
+                        return;
+                    }
+
+                    _reconnectDelayMs = Math.min(_reconnectDelayMs * 2, RECONNECT_MAX_MS);
+                }
+                scheduleReconnect();
+            }, _reconnectDelayMs, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Stopped
+        }
+    }
+
+    /**
+     * Rebirth request or device write
+     */
+    private void command(String topic, byte[] payload)
+    {
+        String[] parts = topic.split("/");
+        Map<String, Object> values = new LinkedHashMap<>();
+        Map<Long, Object> aliased = new LinkedHashMap<>();
+        ProtoReader reader = new ProtoReader(payload);
+        while (reader.next())
+        {
+            if (reader.getField() != 2)
+            {
+                reader.skip();
+                continue;
+            }
+
+            String name = null;
+            long alias = -1;
+            Object value = null;
+            ProtoReader metric = reader.message();
+            while (metric.next())
+            {
+                switch (metric.getField())
+                {
+                    case 1:
+                        name = metric.string();
+                        break;
+                    case 2:
+                        alias = metric.varint();
+                        break;
+                    case 10:
+                    case 11:
+                        value = metric.varint();
+                        break;
+                    case 12:
+                        value = (double) Float.intBitsToFloat(metric.fixed32());
+                        break;
+                    case 13:
+                        value = Double.longBitsToDouble(metric.fixed64());
+                        break;
+                    case 14:
+                        value = metric.varint() != 0;
+                        break;
+                    case 15:
+                        value = metric.string();
+                        break;
+                    default:
+                        metric.skip();
+                }
+            }
+
+            if (name != null)
+                values.put(name, value);
+            else if (alias >= 0)
+                aliased.put(alias, value);
+        }
+
+        if (parts[2].equals("NCMD"))
+        {
+            if (Boolean.TRUE.equals(values.get(REBIRTH_METRIC)))
+            {
+                GatewayXM.logger.info("Sparkplug rebirth requested.");
+                synchronized (this)
+                {
+                    if (isConnected())
+                        birth();
+                }
+            }
+            return;
+        }
+
+        String deviceName = parts[4];
+        synchronized (this)
+        {
+            Device device = _devices.get(deviceName);
+            if (device != null)
+            {
+                for (Metric metric : device.metrics.values())
+                {
+                    if (aliased.containsKey(metric.alias))
+                        values.put(metric.name, aliased.get(metric.alias));
+                }
+            }
+        }
+
+        _writeScheduler.write(deviceName, values).whenComplete((v, e) -> {
+            if (e != null)
+            {
+                _metrics.rpcFailures.increment();
+                _log.warn(HotLog.Category.RPC_FAILURE, "Sparkplug DCMD {} failed: {}", deviceName, e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public void connectionLost(Throwable cause)
+    {
+        GatewayXM.logger.info("Sparkplug MQTT connection lost: " + cause.getMessage());
+        scheduleReconnect();
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message)
+    {
+        try
+        {
+            command(topic, message.getPayload());
+        }
+        catch (IllegalArgumentException | IllegalStateException | ArrayIndexOutOfBoundsException e)
+        {
+            _metrics.rpcFailures.increment();
+            _log.warn(HotLog.Category.RPC_FAILURE, "Invalid sparkplug command on {}: {}", topic, e.getMessage());
+        }
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token)
+    {
+    }
+
+    /**
+     * Metric state of a device
+     */
+    private static class Device
+    {
+        final String name;
+        final Map<String, Metric> metrics = new LinkedHashMap<>();
+        boolean born = false;
+
+        Device(String name)
+        {
+            this.name = name;
+        }
+    }
+
+    /**
+     * A metric with its last value
+     */
+    private static class Metric
+    {
+        final String name;
+        final long alias;
+        final int datatype;
+        Object value;
+        long timestamp;
+
+        Metric(String name, long alias, int datatype)
+        {
+            this.name = name;
+            this.alias = alias;
+            this.datatype = datatype;
+        }
+
+        /** Snapshot of another metric's current value */
+        Metric(Metric other)
+        {
+            this(other.name, other.alias, other.datatype);
+            value = other.value;
+            timestamp = other.timestamp;
+        }
+    }
+}
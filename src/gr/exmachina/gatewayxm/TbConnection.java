@@ -0,0 +1,321 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import gr.exmachina.gatewayxm.jfr.Flight;
+import gr.exmachina.gatewayxm.jfr.Recorder;
+
+/**
+ * A single gateway session to the thingsboard broker, along with the devices connected through it.
+ * ThingsboardMqtt shards devices over one or more of these.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class TbConnection implements MqttCallback
+{
+    /** MQTT client id of this session */
+    private final String _clientId;
+
+    /** Paho mqtt client object */
+    private volatile MqttClient _mqttClient;
+
+    /** MQTT data persistence */
+    private MemoryPersistence _persistence;
+
+    /** Names of all devices connected on this session */
+    private final Set<String> _connectedDevices = ConcurrentHashMap.newKeySet();
+
+    /** Set after the first successful connection, later connections count as reconnects */
+    private boolean _hasConnected = false;
+
+    /** Connection this session is a shard of */
+    private final ThingsboardMqtt _owner;
+
+    /** Publish rate limits */
+    private final PublishShaper _shaper;
+
+    /** Gateway self-telemetry */
+    private final GatewayMetrics _metrics;
+
+    /** Rate limited hot path logging */
+    private final HotLog _log;
+
+    /**
+     * Constructor
+     * @param clientId MQTT client id, must be unique per session
+     * @param owner Connection this session is a shard of
+     * @param shaper Publish rate limits
+     * @param metrics Gateway self-telemetry
+     * @param log Rate limited hot path logging
+     */
+    public TbConnection(String clientId, ThingsboardMqtt owner, PublishShaper shaper, GatewayMetrics metrics,
+            HotLog log)
+    {
+        _clientId = clientId;
+        _owner = owner;
+        _shaper = shaper;
+        _metrics = metrics;
+        _log = log;
+    }
+
+    /**
+     * Connect to broker, closing the client of a previous attempt
+     * @param broker Broker uri, eg. tcp://host:port
+     * @param gatewayDeviceToken Gateway access token, used as username
+     * @return True if successful
+     */
+    public boolean connect(String broker, String gatewayDeviceToken)
+    {
+        disconnect(ThingsboardMqtt.DISCONNECT_QUIESCE_MS);
+
+        try
+        {
+            GatewayXM.logger.info("Connecting to thingsboard MQTT: " + broker + " as " + _clientId);
+
+            _persistence = new MemoryPersistence();
+            _mqttClient = new MqttClient(broker, _clientId, _persistence);
+
+            MqttConnectOptions connOpts = new MqttConnectOptions();
+            connOpts.setCleanSession(true);
+            connOpts.setConnectionTimeout(ThingsboardMqtt.CONNECT_TIMEOUT_S);
+            connOpts.setUserName(gatewayDeviceToken);
+
+            _mqttClient.setCallback(this);
+            _mqttClient.connect(connOpts);
+            _mqttClient.subscribe(ThingsboardMqtt.RPC_TOPIC, ThingsboardMqtt.MQTT_QOS);
+
+            if (_hasConnected)
+                _metrics.reconnects.increment();
+            _hasConnected = true;
+
+            GatewayXM.logger.info("Connected to Thingsboard MQTT!");
+        }
+        catch (MqttException e)
+        {
+            GatewayXM.logger.info("Could not connect mqtt: " + e.getMessage());
+            return false;
+        }
+        catch (IllegalArgumentException e)
+        {
+            GatewayXM.logger.info("Invalid MQTT address/port: " + e.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Disconnect from mqtt broker
+     * @param quiesceMs Time given to in-flight messages to complete
+     */
+    public void disconnect(long quiesceMs)
+    {
+        if (_mqttClient != null && _mqttClient.isConnected())
+        {
+            try
+            {
+                // Waits (quiesce) for in-flight messages to be delivered before disconnecting
+                _mqttClient.disconnect(quiesceMs);
+                GatewayXM.logger.info("Disconnected " + _clientId + " from thingsboard MQTT.");
+            }
+            catch (MqttException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        if (_mqttClient != null)
+        {
+            try
+            {
+                _mqttClient.close();
+            }
+            catch (MqttException e)
+            {
+                // Nothing to do
+            }
+            _mqttClient = null;
+        }
+
+        // Devices must be connected again on the next session
+        _connectedDevices.clear();
+    }
+
+    /**
+     * True if the session is up
+     */
+    public boolean isConnected()
+    {
+        MqttClient client = _mqttClient;
+        return client != null && client.isConnected();
+    }
+
+    /**
+     * If device is not connected on this session, publish "connect" message, else ignore
+     */
+    public void connectDevice(String deviceName)
+    {
+        if (_connectedDevices.contains(deviceName))
+            return;
+
+        GatewayXM.logger.info("Connecting device " + deviceName);
+
+        // Send "connect" message
+        Recorder.Outcome event = Flight.RECORDER.deviceConnect(deviceName);
+        event.complete(publish(_owner.getCodec().connect(deviceName), ThingsboardMqtt.DEVICE_CONNECT_TOPIC,
+                deviceName));
+
+        _connectedDevices.add(deviceName);
+    }
+
+    /**
+     * If device connected on this session, send disconnect message, else ignore
+     */
+    public void disconnectDevice(String deviceName)
+    {
+        if (!_connectedDevices.contains(deviceName))
+            return;
+
+        GatewayXM.logger.info("Disconnecting device " + deviceName);
+
+        // Send "disconnect" message
+        publish(_owner.getCodec().disconnect(deviceName), ThingsboardMqtt.DEVICE_DISCONNECT_TOPIC,
+                deviceName);
+
+        _connectedDevices.remove(deviceName);
+    }
+
+    /**
+     * Send disconnect message for all devices of this session
+     */
+    public void disconnectAllDevices()
+    {
+        for (String name : new ArrayList<>(_connectedDevices))
+            disconnectDevice(name);
+    }
+
+    /**
+     * Publish a live message on this session
+     * @param payload Message payload
+     * @param topic Topic to publish to
+     * @param deviceName Device the message refers to, for diagnostics only
+     * @return True when successfull
+     */
+    public boolean publish(byte[] payload, String topic, String deviceName)
+    {
+        return publish(payload, topic, deviceName, PublishShaper.Traffic.LIVE);
+    }
+
+    /**
+     * Publish a message on this session, once PublishShaper allows it
+     * @param payload Message payload
+     * @param topic Topic to publish to
+     * @param deviceName Device the message refers to, for diagnostics only
+     * @param traffic Live or backlog replay, for shaping
+     * @return True when successfull
+     */
+    public boolean publish(byte[] payload, String topic, String deviceName, PublishShaper.Traffic traffic)
+    {
+        // Read once, a reconnect replaces the client while waiting for budget
+        MqttClient client = _mqttClient;
+        if (client == null || client.isConnected() == false)
+            return false;
+
+        MqttMessage message = new MqttMessage(payload);
+
+        if (!_shaper.acquire(traffic, message.getPayload().length))
+        {
+            _metrics.publishDeferred.increment();
+            return false;
+        }
+
+        if (client != _mqttClient || !client.isConnected())
+            return false;
+
+        message.setQos(ThingsboardMqtt.MQTT_QOS);
+
+        long start = System.nanoTime();
+        _metrics.inFlight.increment();
+        Recorder.Outcome event = Flight.RECORDER.publish(topic, deviceName, message.getPayload().length);
+        boolean success = false;
+
+        try
+        {
+            client.publish(topic, message);
+
+            _metrics.messagesOut.increment();
+            success = true;
+            HotLog.debug("Published {} bytes to {}", payload.length, topic);
+        }
+        catch (MqttException e)
+        {
+            _metrics.publishFailures.increment();
+            _log.warn(HotLog.Category.PUBLISH_FAILURE, "Could not publish to {}: {}", topic, e.getMessage());
+            return false;
+        }
+        finally
+        {
+            _metrics.inFlight.decrement();
+            _metrics.publishLatency.recordNanos(System.nanoTime() - start);
+            event.complete(success);
+        }
+
+        return true;
+    }
+
+    /**
+     * Number of messages handed to the mqtt client that are not yet delivered
+     */
+    public int getPendingDeliveries()
+    {
+        MqttClient client = _mqttClient;
+        if (client == null)
+            return 0;
+
+        IMqttDeliveryToken[] tokens = client.getPendingDeliveryTokens();
+        return tokens == null ? 0 : tokens.length;
+    }
+
+    /**
+     * Get MQTT client id
+     */
+    public String getClientId()
+    {
+        return _clientId;
+    }
+
+    /**
+     * Connection lost (callback), ThingsboardMqtt has the session reconnected
+     */
+    @Override
+    public void connectionLost(Throwable throwable)
+    {
+        _metrics.connectionsLost.increment();
+        GatewayXM.logger.info("Lost connection " + _clientId + " to thingsboard MQTT: " + throwable.getMessage());
+        _owner.connectionLost(this);
+    }
+
+    /**
+     * Server side RPC request arrived, hand it to RpcDispatcher without blocking the mqtt client
+     */
+    @Override
+    public void messageArrived(String topic, MqttMessage mqttMessage)
+    {
+        if (ThingsboardMqtt.RPC_TOPIC.equals(topic))
+            _owner.rpcArrived(mqttMessage.getPayload());
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {}
+}
@@ -0,0 +1,156 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory store and forward buffer for telemetry that could not be published, kept as one
+ * TelemetrySeries per device so it drains in a few multi-sample messages once thingsboard is back.
+ * Bounded by a total number of rows; when full the largest backlog is moved to BacklogStore on disk,
+ * or, without a disk backlog, its oldest rows are dropped.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class TelemetryBuffer
+{
+    /** Backlog per device, in order of first failure */
+    private final Map<String, TelemetrySeries> _backlog = new LinkedHashMap<>();
+
+    /** Rows over all backlogs */
+    private int _rows = 0;
+
+    /** Max rows over all backlogs, 0 disables buffering */
+    private int _maxRows = 10000;
+
+    /** Disk backlog */
+    private final BacklogStore _store;
+
+    /** Gateway self-telemetry */
+    private final GatewayMetrics _metrics;
+
+    /**
+     * Constructor
+     * @param store Disk backlog
+     * @param metrics Gateway self-telemetry
+     */
+    public TelemetryBuffer(BacklogStore store, GatewayMetrics metrics)
+    {
+        _store = store;
+        _metrics = metrics;
+    }
+
+    /**
+     * Set max buffered rows, 0 disables buffering
+     */
+    public synchronized void setMaxRows(int maxRows)
+    {
+        _maxRows = Math.max(0, maxRows);
+        trim();
+    }
+
+    /**
+     * Buffer telemetry that could not be published
+     */
+    public synchronized void store(TelemetrySeries series)
+    {
+        if (series.getRows() == 0)
+            return;
+
+        TelemetrySeries backlog = _backlog.get(series.getDeviceName());
+        if (backlog == null)
+        {
+            backlog = new TelemetrySeries(series.getDeviceName());
+            _backlog.put(series.getDeviceName(), backlog);
+        }
+
+        backlog.add(series);
+        _rows += series.getRows();
+        trim();
+    }
+
+    /**
+     * Remove and return the backlog of a device
+     * @return Backlog, null if none
+     */
+    public synchronized TelemetrySeries take(String deviceName)
+    {
+        TelemetrySeries backlog = _backlog.remove(deviceName);
+        if (backlog != null)
+            _rows -= backlog.getRows();
+
+        return backlog;
+    }
+
+    /**
+     * Devices with a backlog
+     */
+    public synchronized List<String> getDevices()
+    {
+        return new ArrayList<>(_backlog.keySet());
+    }
+
+    /**
+     * Rows over all backlogs
+     */
+    public synchronized int getRows()
+    {
+        return _rows;
+    }
+
+    /**
+     * Move all backlogs to BacklogStore, so they survive a bundle restart
+     * @return Rows moved, 0 without a disk backlog
+     */
+    public synchronized int persist()
+    {
+        int persisted = 0;
+        Iterator<TelemetrySeries> it = _backlog.values().iterator();
+        while (it.hasNext())
+        {
+            TelemetrySeries backlog = it.next();
+            if (!_store.store(backlog))
+                break;
+
+            persisted += backlog.getRows();
+            _rows -= backlog.getRows();
+            it.remove();
+        }
+
+        return persisted;
+    }
+
+    /**
+     * Spill or drop the largest backlogs until within bounds
+     */
+    private void trim()
+    {
+        while (_rows > _maxRows)
+        {
+            TelemetrySeries largest = null;
+            for (TelemetrySeries backlog : _backlog.values())
+            {
+                if (largest == null || backlog.getRows() > largest.getRows())
+                    largest = backlog;
+            }
+
+            if (_store.store(largest))
+            {
+                _backlog.remove(largest.getDeviceName());
+                _rows -= largest.getRows();
+                continue;
+            }
+
+            int drop = Math.min(largest.getRows(), _rows - _maxRows);
+            largest.dropFirst(drop);
+            _rows -= drop;
+            _metrics.bufferDropped.add(drop);
+
+            if (largest.getRows() == 0)
+                _backlog.remove(largest.getDeviceName());
+        }
+    }
+}
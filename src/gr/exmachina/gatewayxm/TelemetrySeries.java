@@ -0,0 +1,401 @@
+package gr.exmachina.gatewayxm;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Time series telemetry of one device: rows of (ts, values), stored column-wise in primitive arrays.
+ * Integral values are kept as longs and decimals as doubles. Anything else stays text, and so do
+ * numbers that would not read back the same, eg. "00123" or "1.10". Consecutive values with the
+ * same timestamp share a row. Published by ThingsboardMqtt as a multi-entry gateway telemetry message,
+ * so buffered or high rate data does not cost one message per sample.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class TelemetrySeries
+{
+    /** Initial row capacity */
+    private static final int INITIAL_CAPACITY = 8;
+
+    /** Value kinds */
+    private static final byte LONG = 0, DOUBLE = 1, TEXT = 2;
+
+    /** Plain decimal without leading or trailing zeros */
+    private static final Pattern DECIMAL = Pattern.compile("-?(0|[1-9][0-9]*)\\.[0-9]*[1-9]");
+
+    /** Device name */
+    private final String _deviceName;
+
+    /** Row timestamps (ms) */
+    private long[] _timestamps = new long[INITIAL_CAPACITY];
+
+    /** Number of rows */
+    private int _rows = 0;
+
+    /** Columns, in order of first appearance */
+    private final List<Column> _columns = new ArrayList<>();
+
+    /** Column index by key */
+    private final Map<String, Integer> _columnIndex = new HashMap<>();
+
+    /**
+     * Constructor
+     */
+    public TelemetrySeries(String deviceName)
+    {
+        _deviceName = deviceName;
+    }
+
+    /**
+     * Add a value, on the last row if it has the same timestamp, else on a new row
+     */
+    public void add(long timestamp, String key, String value)
+    {
+        if (_rows == 0 || _timestamps[_rows - 1] != timestamp)
+            newRow(timestamp);
+
+        column(key).set(_rows - 1, value);
+    }
+
+    /**
+     * Add all values of a packet
+     */
+    public void add(TelemetryPacket packet)
+    {
+        for (Map.Entry<String, String> data : packet.getData().entrySet())
+            add(packet.getTimestamp(), data.getKey(), data.getValue());
+    }
+
+    /**
+     * Append rows of another series, keeping their order
+     */
+    public void add(TelemetrySeries other)
+    {
+        for (int row = 0; row < other._rows; row++)
+        {
+            newRow(other._timestamps[row]);
+            for (Column column : other._columns)
+            {
+                if (column.present.get(row))
+                    column(column.key).copy(_rows - 1, column, row);
+            }
+        }
+    }
+
+    /**
+     * Split columns into separate series, keeping rows and their order
+     * @param classifier Class of a column key
+     * @return Series by class, only classes with values
+     */
+    public <K> Map<K, TelemetrySeries> partition(Function<String, K> classifier)
+    {
+        Map<K, TelemetrySeries> parts = new LinkedHashMap<>();
+        Map<K, Integer> lastRow = new HashMap<>();
+
+        for (int row = 0; row < _rows; row++)
+        {
+            for (Column column : _columns)
+            {
+                if (!column.present.get(row))
+                    continue;
+
+                K key = classifier.apply(column.key);
+                TelemetrySeries part = parts.computeIfAbsent(key, k -> new TelemetrySeries(_deviceName));
+
+                // One row in the part per source row with values of this class
+                if (!Integer.valueOf(row).equals(lastRow.put(key, row)))
+                    part.newRow(_timestamps[row]);
+
+                part.column(column.key).copy(part._rows - 1, column, row);
+            }
+        }
+
+        return parts;
+    }
+
+    /**
+     * Latest value of each key, Long for integral values, Double for decimals, else String
+     */
+    public Map<String, Object> getLatestValues()
+    {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Column column : _columns)
+        {
+            int row = column.present.previousSetBit(_rows - 1);
+            if (row < 0)
+                continue;
+
+            if (column.kinds[row] == LONG)
+                values.put(column.key, column.numbers[row]);
+            else if (column.kinds[row] == DOUBLE)
+                values.put(column.key, Double.longBitsToDouble(column.numbers[row]));
+            else
+                values.put(column.key, column.text[row]);
+        }
+
+        return values;
+    }
+
+    /**
+     * Drop the oldest rows
+     */
+    public void dropFirst(int rows)
+    {
+        rows = Math.min(rows, _rows);
+        if (rows <= 0)
+            return;
+
+        System.arraycopy(_timestamps, rows, _timestamps, 0, _rows - rows);
+        for (Column column : _columns)
+            column.shift(rows, _rows);
+        _rows -= rows;
+    }
+
+    /** Get device name */
+    public String getDeviceName()
+    {
+        return _deviceName;
+    }
+
+    /** Number of rows */
+    public int getRows()
+    {
+        return _rows;
+    }
+
+    /** Timestamp of row */
+    public long getTimestamp(int row)
+    {
+        return _timestamps[row];
+    }
+
+    /** Number of columns */
+    public int getColumns()
+    {
+        return _columns.size();
+    }
+
+    /** Key of column */
+    public String getKey(int column)
+    {
+        return _columns.get(column).key;
+    }
+
+    /** True if the row has a value in the column */
+    public boolean hasValue(int row, int column)
+    {
+        return _columns.get(column).present.get(row);
+    }
+
+    /** True if the value is numeric, read it with getLong if integral, else with getNumber */
+    public boolean isNumeric(int row, int column)
+    {
+        return _columns.get(column).kinds[row] != TEXT;
+    }
+
+    /** True if the value is integral, read it with getLong */
+    public boolean isIntegral(int row, int column)
+    {
+        return _columns.get(column).kinds[row] == LONG;
+    }
+
+    /** Integral value */
+    public long getLong(int row, int column)
+    {
+        return _columns.get(column).numbers[row];
+    }
+
+    /** Numeric value */
+    public double getNumber(int row, int column)
+    {
+        Column c = _columns.get(column);
+        return c.kinds[row] == LONG ? c.numbers[row] : Double.longBitsToDouble(c.numbers[row]);
+    }
+
+    /** Text value */
+    public String getText(int row, int column)
+    {
+        Column c = _columns.get(column);
+        switch (c.kinds[row])
+        {
+            case LONG:
+                return Long.toString(c.numbers[row]);
+            case DOUBLE:
+                return Double.toString(Double.longBitsToDouble(c.numbers[row]));
+            default:
+                return c.text[row];
+        }
+    }
+
+    private void newRow(long timestamp)
+    {
+        if (_rows == _timestamps.length)
+        {
+            _timestamps = Arrays.copyOf(_timestamps, _rows * 2);
+            for (Column column : _columns)
+                column.grow(_timestamps.length);
+        }
+
+        _timestamps[_rows++] = timestamp;
+    }
+
+    private Column column(String key)
+    {
+        Integer index = _columnIndex.get(key);
+        if (index != null)
+            return _columns.get(index);
+
+        Column column = new Column(key, _timestamps.length);
+        _columnIndex.put(key, _columns.size());
+        _columns.add(column);
+        return column;
+    }
+
+    /**
+     * True if the text is an integer that reads back the same: no leading zeros, no sign on zero
+     */
+    private static boolean isIntegral(String value)
+    {
+        int start = value.startsWith("-") ? 1 : 0;
+        int length = value.length();
+        if (length == start || length - start > 19)
+            return false;
+        if (value.charAt(start) == '0')
+            return length == 1;
+
+        for (int i = start; i < length; i++)
+        {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9')
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * True if the text is a decimal that the double holds without loss, and that reads back the
+     * same or only differs in notation
+     */
+    private static boolean isExactDecimal(String value, double number)
+    {
+        if (Double.isNaN(number) || Double.isInfinite(number))
+            return false;
+
+        // Java's own rendering, eg. of Kura float and double values
+        String canonical = Double.toString(number);
+        if (value.equals(canonical))
+            return true;
+
+        return DECIMAL.matcher(value).matches() && new BigDecimal(value).compareTo(new BigDecimal(canonical)) == 0;
+    }
+
+    /**
+     * Values of one key. Integral values are stored as longs, decimals as their raw double bits.
+     * Text values are only allocated once a non numeric value shows up.
+     */
+    private static class Column
+    {
+        final String key;
+        long[] numbers;
+        byte[] kinds;
+        String[] text;
+        final BitSet present = new BitSet();
+
+        Column(String key, int capacity)
+        {
+            this.key = key;
+            numbers = new long[capacity];
+            kinds = new byte[capacity];
+        }
+
+        void set(int row, String value)
+        {
+            present.set(row);
+            if (value != null)
+            {
+                try
+                {
+                    if (isIntegral(value))
+                    {
+                        setNumber(row, LONG, Long.parseLong(value));
+                        return;
+                    }
+
+                    double number = Double.parseDouble(value);
+                    if (isExactDecimal(value, number))
+                    {
+                        setNumber(row, DOUBLE, Double.doubleToRawLongBits(number));
+                        return;
+                    }
+                }
+                catch (NumberFormatException e)
+                {
+                    // Stored as text
+                }
+            }
+
+            if (text == null)
+                text = new String[numbers.length];
+            text[row] = value;
+            kinds[row] = TEXT;
+        }
+
+        private void setNumber(int row, byte kind, long number)
+        {
+            numbers[row] = number;
+            kinds[row] = kind;
+            if (text != null)
+                text[row] = null;
+        }
+
+        void copy(int row, Column from, int fromRow)
+        {
+            present.set(row);
+            numbers[row] = from.numbers[fromRow];
+            kinds[row] = from.kinds[fromRow];
+            if (from.kinds[fromRow] == TEXT)
+            {
+                if (text == null)
+                    text = new String[numbers.length];
+                text[row] = from.text[fromRow];
+            }
+            else if (text != null)
+            {
+                text[row] = null;
+            }
+        }
+
+        void grow(int capacity)
+        {
+            numbers = Arrays.copyOf(numbers, capacity);
+            kinds = Arrays.copyOf(kinds, capacity);
+            if (text != null)
+                text = Arrays.copyOf(text, capacity);
+        }
+
+        void shift(int rows, int size)
+        {
+            System.arraycopy(numbers, rows, numbers, 0, size - rows);
+            System.arraycopy(kinds, rows, kinds, 0, size - rows);
+            if (text != null)
+            {
+                System.arraycopy(text, rows, text, 0, size - rows);
+                Arrays.fill(text, size - rows, size, null);
+            }
+
+            BitSet shifted = present.get(rows, size);
+            present.clear();
+            present.or(shifted);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.List;
+
+/**
+ * A destination of the telemetry stream. The primary sink (thingsboard or sparkplug) is called on the
+ * acquisition thread, secondary sinks on their own SinkDispatcher worker with batches of any devices.
+ *
+ * @author Ex-Machina
+ *
+ */
+public interface TelemetrySink
+{
+    /**
+     * Name, for logs
+     */
+    String getName();
+
+    /**
+     * Publish packets
+     * @return True if published, a secondary sink is given the same batch again later otherwise
+     */
+    boolean publishTelemetry(List<TelemetryPacket> packets);
+
+    /**
+     * A device went offline
+     */
+    default void disconnectDevice(String deviceName) {}
+
+    /**
+     * Release connections/files, called once the sink is removed
+     */
+    default void close() {}
+}
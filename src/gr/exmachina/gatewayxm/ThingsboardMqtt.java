@@ -1,28 +1,26 @@
 package gr.exmachina.gatewayxm;
 
-import org.eclipse.paho.client.mqttv3.MqttClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
-import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
-import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Connects to thingsboard MQTT gateway, manages connection of devices 
- * and publishing of telemetry
+ * and publishing of telemetry.
+ * Devices can be sharded over several gateway sessions (tb.connections), each device always
+ * going through the same session so its messages stay in order.
  *
  * @author Ex-Machina
  *
  */
-public class ThingsboardMqtt
+public class ThingsboardMqtt implements TelemetrySink
 {
-    /** Singleton instance */
-    private static ThingsboardMqtt _inst = null;
-
     /** Thingsboard gateway mqtt telemetry topic */
     public static final String TELEMETRY_TOPIC = "v1/gateway/telemetry";
 
@@ -32,14 +30,32 @@ public class ThingsboardMqtt
     /** Thingsboard gateway device disconnect topic */
     public static final String DEVICE_DISCONNECT_TOPIC = "v1/gateway/disconnect";
 
+    /** Telemetry topic of the gateway device itself */
+    public static final String GATEWAY_TELEMETRY_TOPIC = "v1/devices/me/telemetry";
+
+    /** Attributes topic */
+    public static final String ATTRIBUTES_TOPIC = "v1/gateway/attributes";
+
+    /** Server side RPC topic, requests are received and responses published on it */
+    public static final String RPC_TOPIC = "v1/gateway/rpc";
+
+    /** Max rows per gateway telemetry message, keeps messages within broker payload limits */
+    public static final int MAX_ROWS_PER_MESSAGE = 200;
+
     /** Message QOS */
     public static final int MQTT_QOS = 2;
 
-    /** Paho mqtt client object */
-    private MqttClient _mqttClient;
+    /** tb.payload_format value selecting protobuf messages */
+    public static final String FORMAT_PROTOBUF = "protobuf";
+
+    /** Time given to in-flight messages to complete when disconnecting, shared by all sessions */
+    public static final long DISCONNECT_QUIESCE_MS = 10000;
 
-    /** MQTT data persistence */
-    private MemoryPersistence _persistence;
+    /** Connect timeout per session, bounds a connection attempt and a stop during one */
+    public static final int CONNECT_TIMEOUT_S = 10;
+
+    /** Max wait for queued telemetry to be sent before disconnecting */
+    public static final long DRAIN_TIMEOUT_MS = 5000;
 
     /** Thingsboard broker url - must contain protocol (eg. tcp://) */
     private String _brokerUrl = "";
@@ -53,30 +69,82 @@ public class ThingsboardMqtt
     /** MQTT broker port */
     private int _brokerPort;
 
-    /** Names of all connected devices */
-    ArrayList<String> _listConnectedDevices = new ArrayList<>();
+    /** Number of gateway sessions devices are sharded over */
+    private int _connectionCount = 1;
 
-    /**
-     * Private constructor
-     */
-    public ThingsboardMqtt(){}
+    /** Wire format of gateway API messages */
+    private volatile PayloadCodec _codec = new JsonPayloadCodec();
+
+    /** Gateway sessions, one per shard */
+    private volatile TbConnection[] _connections = new TbConnection[0];
+
+    /** Maps device names to sessions */
+    private volatile ConsistentHashRing _ring = new ConsistentHashRing(1);
+
+    /** Broker, credentials and shard count the sessions were created for, null when there are none */
+    private String _sessionKey = null;
+
+    /** Notified when a session drops, reconnects it */
+    private volatile Runnable _connectionLostListener = null;
+
+    /** Telemetry held while thingsboard is unreachable */
+    private final TelemetryBuffer _buffer;
+
+    /** Key lanes and attributes */
+    private final KeyClassifier _classifier;
+
+    /** Publish rate limits, shared by the sessions */
+    private final PublishShaper _shaper;
+
+    /** Gateway self-telemetry */
+    private final GatewayMetrics _metrics;
+
+    /** Publish queues, one worker per session */
+    private final PublishScheduler _publishScheduler = new PublishScheduler();
+
+    /** Batches attribute changes */
+    private final AttributePublisher _attributePublisher;
+
+    /** Executes server side RPC requests */
+    private final RpcDispatcher _rpcDispatcher;
+
+    /** Replays the buffered and disk backlog */
+    private final BacklogReplay _backlogReplay;
+
+    /** Rate limited hot path logging */
+    private final HotLog _log;
 
     /**
-     * Get singleton instance
+     * Constructor
+     * @param buffer Telemetry held while thingsboard is unreachable
+     * @param store Disk backlog, replayed once connected
+     * @param uploader Bulk backlog uploads, used for the disk backlog when enabled
+     * @param shaper Publish rate limits
+     * @param classifier Key lanes and attributes
+     * @param writeScheduler Channel writes requested by RPC
+     * @param metrics Gateway self-telemetry
+     * @param log Rate limited hot path logging
      */
-    public static ThingsboardMqtt inst()
+    public ThingsboardMqtt(TelemetryBuffer buffer, BacklogStore store, BatchUploader uploader, PublishShaper shaper,
+            KeyClassifier classifier, WriteScheduler writeScheduler, GatewayMetrics metrics, HotLog log)
     {
-        if(_inst == null)
-            _inst = new ThingsboardMqtt();
-
-        return _inst;
+        _buffer = buffer;
+        _classifier = classifier;
+        _shaper = shaper;
+        _metrics = metrics;
+        _log = log;
+        _attributePublisher = new AttributePublisher(this);
+        _rpcDispatcher = new RpcDispatcher(this, writeScheduler, metrics, log);
+        _backlogReplay = new BacklogReplay(this, buffer, store, uploader);
     }
 
     /**
-     * Try to connect to broker with the credentials provided
-     * @return True if successful
+     * Try to connect to broker with the credentials provided. May be retried from a background
+     * thread while telemetry is published: sessions and publish workers are created once per
+     * configuration, a retry only reconnects the sessions that are down.
+     * @return True if all sessions are up
      */
-    public boolean connect()
+    public synchronized boolean connect()
     {
         if(_gatewayDeviceToken.length() < 1)
         {
@@ -94,181 +162,454 @@ public class ThingsboardMqtt
             return false;
         }
 
-        try
+        String broker = String.format("tcp://%s:%d", _brokerUrl, _brokerPort);
+        String sessionKey = broker + "|" + _gatewayDeviceToken + "|" + _clientId + "|" + _connectionCount;
+
+        if (!sessionKey.equals(_sessionKey))
         {
-            String broker = String.format("tcp://%s:%d", _brokerUrl, _brokerPort);
+            // Settings changed without a disconnect, start over
+            if (_sessionKey != null)
+                disconnect();
 
-            GatewayXM.logger.info("Connecting to thingsboard MQTT: " + broker);
+            // Single session keeps the configured client id, shards get a numbered suffix
+            TbConnection[] connections = new TbConnection[Math.max(1, _connectionCount)];
+            for (int i = 0; i < connections.length; i++)
+            {
+                String clientId = connections.length == 1 ? _clientId : _clientId + "-" + i;
+                connections[i] = new TbConnection(clientId, this, _shaper, _metrics, _log);
+            }
 
-            _persistence = new MemoryPersistence();
-            _mqttClient = new MqttClient(broker, _clientId, _persistence);
+            _ring = new ConsistentHashRing(connections.length);
+            _connections = connections;
+            _sessionKey = sessionKey;
+            _publishScheduler.start(connections.length);
+            _attributePublisher.start();
+            _rpcDispatcher.start();
+        }
 
-            MqttConnectOptions connOpts = new MqttConnectOptions();
-            connOpts.setCleanSession(true);
-            connOpts.setUserName(_gatewayDeviceToken);
+        // Healthy shards stay connected and keep publishing
+        boolean connected = true;
+        for (TbConnection connection : _connections)
+        {
+            if (!connection.isConnected() && !connection.connect(broker, _gatewayDeviceToken))
+                connected = false;
+        }
 
-            _mqttClient.connect(connOpts);
+        // Send what was buffered while disconnected
+        if (connected)
+            drainBuffer();
 
-            GatewayXM.logger.info("Connected to Thingsboard MQTT!");
-        }
-        catch (MqttException e)
+        return connected;
+    }
+
+    /**
+     * Disconnect all sessions from mqtt broker, after giving queued telemetry DRAIN_TIMEOUT_MS to go out
+     */
+    public synchronized void disconnect()
+    {
+        _rpcDispatcher.stop();
+        _attributePublisher.stop();
+        if (isConnected())
+            _publishScheduler.drain(DRAIN_TIMEOUT_MS);
+
+        // What is still queued goes back to the buffer
+        _publishScheduler.stop();
+
+        // One quiesce period for all sessions, so stopping does not take longer with more shards
+        long deadline = System.currentTimeMillis() + DISCONNECT_QUIESCE_MS;
+        for (TbConnection connection : _connections)
+            connection.disconnect(Math.max(0, deadline - System.currentTimeMillis()));
+        _sessionKey = null;
+    }
+
+    /**
+     * Publish a telemetry packet to the broker, after transforming it to JSON for the tb gw telemetry api
+     * @param packet Telemetry packet
+     * @return
+     */
+    public boolean publishTelemetry(TelemetryPacket packet)
+    {
+        return publishTelemetry(Collections.singletonList(packet));
+    }
+
+    @Override
+    public String getName()
+    {
+        return "thingsboard";
+    }
+
+    /**
+     * Publish telemetry packets of one device, one "ts" entry each, in a single message
+     * @param packets Telemetry packets, all of the same device
+     * @return True when successfull
+     */
+    @Override
+    public boolean publishTelemetry(List<TelemetryPacket> packets)
+    {
+        if(packets.isEmpty())
+            return false;
+
+        TelemetrySeries series = new TelemetrySeries(packets.get(0).getDeviceName());
+        for (TelemetryPacket packet : packets)
+            series.add(packet);
+
+        return publishSeries(series);
+    }
+
+    /**
+     * Queue a device time series for publishing as multi-entry gateway telemetry. Keys are split over
+     * the PublishScheduler lanes by KeyClassifier. Whatever could not be sent is buffered in
+     * TelemetryBuffer and replayed later by BacklogReplay.
+     * @param series Device telemetry
+     * @return True when queued
+     */
+    public boolean publishSeries(TelemetrySeries series)
+    {
+        String deviceName = series.getDeviceName();
+        if(deviceName == null || deviceName.length() < 1)
+            return false;
+
+        if (!isConnected(deviceName))
         {
-            GatewayXM.logger.info("Could not connect mqtt: " + e.getMessage());
+            _buffer.store(series);
             return false;
         }
-        catch (IllegalArgumentException e)
+
+
+        // Attribute keys are published on change only, the rest stays telemetry
+        if (_classifier.hasAttributes())
         {
-            GatewayXM.logger.info("Invalid MQTT address/port: " + e.getMessage());
-            return false;
+            Map<Boolean, TelemetrySeries> parts = series.partition(key -> _classifier.isAttribute(deviceName, key));
+            if (parts.containsKey(true))
+                _attributePublisher.update(deviceName, parts.get(true).getLatestValues());
+
+            series = parts.get(false);
+            if (series == null)
+                return true;
         }
 
-        return true;
+        if (_classifier.isEmpty())
+            return submit(PublishScheduler.Lane.NORMAL, series, PublishShaper.Traffic.LIVE);
+
+        boolean queued = true;
+        for (Map.Entry<PublishScheduler.Lane, TelemetrySeries> part : series
+                .partition(key -> _classifier.classify(deviceName, key)).entrySet())
+            queued &= submit(part.getKey(), part.getValue(), PublishShaper.Traffic.LIVE);
+
+        return queued;
     }
 
     /**
-     * Disconnect from mqtt broker
+     * Queue attribute changes, one message per session with the changes of all its devices:
+     * {"device": {"key": value, ..}, ..}. Batches that could not be sent go back to AttributePublisher.
+     * @param changes Attribute values by device and key
      */
-    public void disconnect()
+    public void publishAttributes(Map<String, Map<String, Object>> changes)
     {
-        if (_mqttClient != null && _mqttClient.isConnected())
+        Map<Integer, Map<String, Map<String, Object>>> batches = new HashMap<>();
+        for (Map.Entry<String, Map<String, Object>> device : changes.entrySet())
+            batches.computeIfAbsent(_ring.shardOf(device.getKey()), s -> new LinkedHashMap<>()).put(device.getKey(),
+                    device.getValue());
+
+        for (Map.Entry<Integer, Map<String, Map<String, Object>>> batch : batches.entrySet())
         {
-            try
+            _publishScheduler.submit(batch.getKey(), PublishScheduler.Lane.NORMAL, new PublishScheduler.Job()
             {
-                _mqttClient.disconnect();
-                GatewayXM.logger.info("Disconnected from thingsboard MQTT.");
-            }
-            catch (MqttException e)
-            {
-                e.printStackTrace();
-            }
+                @Override
+                public void send()
+                {
+                    if (!sendAttributes(batch.getValue()))
+                        _attributePublisher.failed(batch.getValue());
+                }
+
+                @Override
+                public void drop()
+                {
+                    _attributePublisher.failed(batch.getValue());
+                }
+            });
         }
     }
 
     /**
-     * Publish a telemetry packet to the broker, after transforming it to JSON for the tb gw telemetry api
-     * @param packet Telemetry packet
-     * @return
+     * Publish a batch of attribute changes, all devices on the same session
      */
-    public boolean publishTelemetry(TelemetryPacket packet)
+    private boolean sendAttributes(Map<String, Map<String, Object>> batch)
     {
-        if(packet.getDeviceName().length() < 1)
+        String firstDevice = batch.keySet().iterator().next();
+        TbConnection connection = connectionFor(firstDevice);
+        if (connection == null || !connection.isConnected())
             return false;
 
-        // Connect device if its not connected
-        connectDevice(packet.getDeviceName());
+        for (String deviceName : batch.keySet())
+            connection.connectDevice(deviceName);
 
-        JSONObject jsonRoot = new JSONObject();
-        JSONArray jsonDeviceTelemetries = new JSONArray();
-        JSONObject jsonSingleTelemetry = new JSONObject();
-        JSONObject jsonTelemetryValues = new JSONObject();
+        return connection.publish(_codec.attributes(batch), ATTRIBUTES_TOPIC, firstDevice);
+    }
 
-        // Add delemetry data
-        for(Map.Entry<String, String> data : packet.getData().entrySet())
-        {
-            jsonTelemetryValues.put(data.getKey(), data.getValue());
-        }
+    /**
+     * Publish the response of a server side RPC request, right away on the device's session
+     * @return True when successfull
+     */
+    public boolean publishRpcResponse(String deviceName, Object id, JSONObject data)
+    {
+        TbConnection connection = connectionFor(deviceName);
+        if (connection == null)
+            return false;
+
+        return connection.publish(_codec.rpcResponse(deviceName, id, data), RPC_TOPIC, deviceName);
+    }
 
-        jsonSingleTelemetry.put("ts", String.valueOf(packet.getTimestamp()));
-        jsonSingleTelemetry.put("values", jsonTelemetryValues);
+    /**
+     * Queue buffered telemetry of a device for replay on the bulk lane, waiting while the lane is full
+     * @return True when queued
+     */
+    public boolean replay(String deviceName)
+    {
+        TelemetrySeries backlog = _buffer.take(deviceName);
+        return backlog != null && replay(backlog);
+    }
 
-        jsonDeviceTelemetries.put(jsonSingleTelemetry);
+    /**
+     * Queue buffered telemetry for replay on the bulk lane, waiting while the lane is full
+     * @return True when queued
+     */
+    public boolean replay(TelemetrySeries backlog)
+    {
+        return submit(PublishScheduler.Lane.BULK, backlog, PublishShaper.Traffic.BACKLOG);
+    }
 
-        // Add all to root element
-        jsonRoot.put(packet.getDeviceName(), jsonDeviceTelemetries);
+    /**
+     * Queue a disk backlog segment for replay on the bulk lane, waiting while the lane is full.
+     * Nothing goes back to the buffer, the segment stays on disk until sent.
+     * @param done Called with true once all rows are sent, false if the publish failed or was dropped
+     * @return True when queued
+     */
+    public boolean replay(TelemetrySeries backlog, Consumer<Boolean> done)
+    {
+        return _publishScheduler.submitWaiting(_ring.shardOf(backlog.getDeviceName()), PublishScheduler.Lane.BULK,
+                new PublishScheduler.Job()
+                {
+                    @Override
+                    public void send()
+                    {
+                        boolean sent = false;
+                        try
+                        {
+                            sent = publishChunks(backlog, PublishShaper.Traffic.BACKLOG);
+                        }
+                        finally
+                        {
+                            done.accept(sent);
+                        }
+                    }
+
+                    @Override
+                    public void drop()
+                    {
+                        done.accept(false);
+                    }
+                });
+    }
 
-        return publish(jsonRoot.toString(), TELEMETRY_TOPIC);
+    /**
+     * Trigger replay of buffered telemetry, eg. after reconnecting
+     */
+    public void drainBuffer()
+    {
+        _backlogReplay.wakeup();
     }
 
     /**
-     * If device is not connected, publish "connect" message to TB broker, else ignore
+     * Queue series on the worker of the device's session
      */
-    public void connectDevice(String deviceName)
+    private boolean submit(PublishScheduler.Lane lane, TelemetrySeries series, PublishShaper.Traffic traffic)
     {
-        if(_listConnectedDevices.contains(deviceName))
-            return;
+        PublishScheduler.Job job = new PublishScheduler.Job()
+        {
+            @Override
+            public void send()
+            {
+                ThingsboardMqtt.this.send(series, traffic);
+            }
 
-        // Send "connect" message
-        JSONObject jsonObject = new JSONObject();
-        jsonObject.put("device", deviceName);
+            @Override
+            public void drop()
+            {
+                _buffer.store(series);
+            }
+        };
 
-        System.out.println("Connecting device " + deviceName);
+        // Only replay waits for space, live telemetry goes to the buffer when its lane is full
+        int shard = _ring.shardOf(series.getDeviceName());
+        if (traffic == PublishShaper.Traffic.BACKLOG)
+            return _publishScheduler.submitWaiting(shard, lane, job);
+
+        return _publishScheduler.submit(shard, lane, job);
+    }
 
-        publish(jsonObject.toString(), DEVICE_CONNECT_TOPIC);
+    /**
+     * Send series in chunks, buffering the rest on failure. Called by the scheduler workers.
+     */
+    private boolean send(TelemetrySeries series, PublishShaper.Traffic traffic)
+    {
+        String deviceName = series.getDeviceName();
+        if(deviceName == null || deviceName.length() < 1)
+            return false;
 
-        synchronized (_listConnectedDevices)
+        // Rows not sent go back to the buffer, whatever stopped the publish
+        boolean sent = false;
+        try
+        {
+            sent = publishChunks(series, traffic);
+            return sent;
+        }
+        finally
         {
-            _listConnectedDevices.add(deviceName);
+            if (!sent)
+                _buffer.store(series);
         }
     }
 
     /**
-     * If device connected, send disconnect message, else ignore
-     * @param deviceName
+     * Publish series in chunks on the device's session, removing the rows sent from it
+     * @return False if the session is down or a publish failed
      */
-    public void disconnectDevice(String deviceName)
+    private boolean publishChunks(TelemetrySeries series, PublishShaper.Traffic traffic)
     {
-        if(_listConnectedDevices.contains(deviceName))
-            return;
+        String deviceName = series.getDeviceName();
+        TbConnection connection = deviceName == null ? null : connectionFor(deviceName);
+        if (connection == null || !connection.isConnected())
+            return false;
 
-        // Send "connect" message
-        JSONObject jsonObject = new JSONObject();
-        jsonObject.put("device", deviceName);
+        if (series.getRows() == 0)
+            return true;
 
-        System.out.println("Disconnecting device " + deviceName);
+        // Connect device if its not connected
+        connection.connectDevice(deviceName);
+
+        while (series.getRows() > 0)
+        {
+            int rows = Math.min(series.getRows(), MAX_ROWS_PER_MESSAGE);
+            if (!connection.publish(_codec.telemetry(series, rows), TELEMETRY_TOPIC, deviceName, traffic))
+                return false;
 
-        publish(jsonObject.toString(), DEVICE_DISCONNECT_TOPIC);
+            series.dropFirst(rows);
+        }
+
+        return true;
+    }
 
-        synchronized (_listConnectedDevices)
+    /**
+     * True if all sessions are up
+     */
+    public boolean isConnected()
+    {
+        TbConnection[] connections = _connections;
+        for (TbConnection connection : connections)
         {
-            _listConnectedDevices.remove(deviceName);
+            if (!connection.isConnected())
+                return false;
         }
+
+        return connections.length > 0;
     }
 
     /**
-     * Send disconnect message for all devices
+     * True if the session of the device is up
      */
-    public void disconnectAllDevices()
+    public boolean isConnected(String deviceName)
     {
-        for(String name : _listConnectedDevices)
-            disconnectDevice(name);
+        TbConnection connection = connectionFor(deviceName);
+        return connection != null && connection.isConnected();
     }
 
     /**
-     * Generic function for publishing messages to the thingsboard broker
-     * @param content Message content
-     * @param topic Topic to publish to
+     * Publish a telemetry packet as telemetry of the gateway device itself. Device name is ignored.
+     * Always JSON, the gateway API payload format does not apply to device telemetry.
+     * @param packet Telemetry packet
      * @return True when successfull
      */
-    private boolean publish(String content, String topic)
+    public boolean publishGatewayTelemetry(TelemetryPacket packet)
     {
-        if (_mqttClient.isConnected() == false)
+        JSONObject jsonRoot = new JSONObject();
+        JSONObject jsonTelemetryValues = new JSONObject();
+
+        for(Map.Entry<String, String> data : packet.getData().entrySet())
+        {
+            jsonTelemetryValues.put(data.getKey(), data.getValue());
+        }
+
+        jsonRoot.put("ts", packet.getTimestamp());
+        jsonRoot.put("values", jsonTelemetryValues);
+
+        TbConnection[] connections = _connections;
+        if (connections.length == 0)
             return false;
 
-        MqttMessage message = new MqttMessage(content.getBytes());
+        return connections[0].publish(jsonRoot.toString().getBytes(StandardCharsets.UTF_8), GATEWAY_TELEMETRY_TOPIC, "");
+    }
 
-        message.setQos(MQTT_QOS);
+    /**
+     * If device is not connected, publish "connect" message to TB broker, else ignore
+     */
+    public void connectDevice(String deviceName)
+    {
+        TbConnection connection = connectionFor(deviceName);
+        if (connection != null)
+            connection.connectDevice(deviceName);
+    }
 
-        try
-        {
-            _mqttClient.publish(topic, message);
+    /**
+     * If device connected, send disconnect message, else ignore
+     * @param deviceName
+     */
+    @Override
+    public void disconnectDevice(String deviceName)
+    {
+        TbConnection connection = connectionFor(deviceName);
+        if (connection != null)
+            connection.disconnectDevice(deviceName);
+    }
 
-            GatewayXM.logger.info(String.format("Publishing to %s: %s", topic, message) );
-        }
-        catch (MqttException e)
-        {
-            GatewayXM.logger.info("Could not publish: " + e.getMessage());
-            return false;
-        }
+    /**
+     * Send disconnect message for all devices
+     */
+    public void disconnectAllDevices()
+    {
+        for (TbConnection connection : _connections)
+            connection.disconnectAllDevices();
+    }
 
-        return true;
+    /**
+     * Get the session a device is sharded to, null when not connected
+     */
+    private TbConnection connectionFor(String deviceName)
+    {
+        TbConnection[] connections = _connections;
+        if (connections.length == 0)
+            return null;
+
+        return connections[_ring.shardOf(deviceName) % connections.length];
     }
 
+    /**
+     * Number of messages handed to the mqtt clients that are not yet delivered
+     */
+    public int getPendingDeliveries()
+    {
+        int pending = 0;
+        for (TbConnection connection : _connections)
+            pending += connection.getPendingDeliveries();
+
+        return pending;
+    }
 
     /**
      * Set thingsboard gateway device token - used as mqtt username
      * @param token
      */
-    public void setGatewayDeviceToken(String token)
+    public synchronized void setGatewayDeviceToken(String token)
     {
         _gatewayDeviceToken = token;
     }
@@ -277,7 +618,7 @@ public class ThingsboardMqtt
      * Mqtt client id
      * @param clientId
      */
-    public void setClientId(String clientId)
+    public synchronized void setClientId(String clientId)
     {
         _clientId = clientId;
     }
@@ -285,7 +626,7 @@ public class ThingsboardMqtt
     /**m
      * Thingsboard mqtt broker url
      */
-    public void setBrokerUrl(String url)
+    public synchronized void setBrokerUrl(String url)
     {
         _brokerUrl = url;
     }
@@ -294,8 +635,76 @@ public class ThingsboardMqtt
      * Mqtt broker port
      * @param port
      */
-    public void setBrokerPort(int port)
+    public synchronized void setBrokerPort(int port)
     {
         _brokerPort = port;
     }
+
+    /**
+     * Wire format of gateway API messages, "json" or "protobuf"
+     * @param format
+     */
+    public void setPayloadFormat(String format)
+    {
+        _codec = FORMAT_PROTOBUF.equals(format) ? new ProtoPayloadCodec() : new JsonPayloadCodec();
+    }
+
+    /**
+     * Wire format of gateway API messages
+     */
+    public PayloadCodec getCodec()
+    {
+        return _codec;
+    }
+
+    /**
+     * Set the callback run when a session drops, from the mqtt client thread, so it must not block
+     */
+    public void setConnectionLostListener(Runnable listener)
+    {
+        _connectionLostListener = listener;
+    }
+
+    /**
+     * Server side RPC request arrived on a session (TbConnection callback)
+     */
+    void rpcArrived(byte[] payload)
+    {
+        _rpcDispatcher.dispatch(payload);
+    }
+
+    /**
+     * A session dropped (TbConnection callback)
+     */
+    void connectionLost(TbConnection connection)
+    {
+        Runnable listener = _connectionLostListener;
+        if (listener != null)
+            listener.run();
+    }
+
+    /**
+     * Publish queues, for monitoring
+     */
+    public PublishScheduler getPublishScheduler()
+    {
+        return _publishScheduler;
+    }
+
+    /**
+     * Backlog replay, started and stopped with the gateway
+     */
+    public BacklogReplay getBacklogReplay()
+    {
+        return _backlogReplay;
+    }
+
+    /**
+     * Number of gateway sessions to shard devices over
+     * @param count
+     */
+    public synchronized void setConnectionCount(int count)
+    {
+        _connectionCount = count;
+    }
 }
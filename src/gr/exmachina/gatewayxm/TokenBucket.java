@@ -0,0 +1,64 @@
+package gr.exmachina.gatewayxm;
+
+/**
+ * Token bucket rate limiter. Tokens refill at a fixed rate up to a burst capacity.
+ * A request larger than the capacity is let through once the bucket is full, leaving it in debt,
+ * so a single oversized message is delayed rather than blocked forever.
+ * Not thread safe, callers synchronize.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class TokenBucket
+{
+    /** Tokens per second */
+    private final double _rate;
+
+    /** Max tokens */
+    private final double _capacity;
+
+    /** Available tokens, negative when in debt */
+    private double _tokens;
+
+    /** Last refill (System.nanoTime) */
+    private long _last;
+
+    /**
+     * Constructor, bucket starts full
+     * @param rate Tokens per second
+     * @param burstSec Capacity in seconds of rate
+     */
+    public TokenBucket(double rate, double burstSec)
+    {
+        _rate = rate;
+        _capacity = Math.max(1, rate * burstSec);
+        _tokens = _capacity;
+        _last = System.nanoTime();
+    }
+
+    /**
+     * Time until the tokens are available, 0 if available now
+     */
+    public long waitNanos(double tokens, long now)
+    {
+        refill(now);
+
+        double needed = Math.min(tokens, _capacity) - _tokens;
+        return needed <= 0 ? 0 : (long) Math.ceil(needed / _rate * 1e9);
+    }
+
+    /**
+     * Take tokens, available or not
+     */
+    public void take(double tokens, long now)
+    {
+        refill(now);
+        _tokens -= tokens;
+    }
+
+    private void refill(long now)
+    {
+        _tokens = Math.min(_capacity, _tokens + (now - _last) / 1e9 * _rate);
+        _last = now;
+    }
+}
@@ -0,0 +1,427 @@
+package gr.exmachina.gatewayxm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.kura.KuraException;
+import org.eclipse.kura.asset.Asset;
+import org.eclipse.kura.channel.Channel;
+import org.eclipse.kura.channel.ChannelFlag;
+import org.eclipse.kura.channel.ChannelRecord;
+import org.eclipse.kura.channel.ChannelType;
+import org.eclipse.kura.type.DataType;
+import org.eclipse.kura.type.TypedValue;
+import org.eclipse.kura.type.TypedValues;
+
+/**
+ * Coalesces channel writes per bus (modbus TCP endpoint, or Kura driver). Only the latest pending
+ * value of a channel is kept, and each bus gets at most one write, with all pending channels of one
+ * device, per slot: a write starts once the previous one on the bus completed and at least the
+ * write interval after it started. A burst of set-points for the same register therefore becomes
+ * one write per slot with the newest value, and telemetry polling keeps the rest of the bus time.
+ * The native engine merges channels on contiguous registers into one FC16 request.
+ * The futures of replaced values complete along with the value that replaced them.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class WriteScheduler
+{
+    /** Max time the poller waits for writes in progress before reading again */
+    private static final long MAX_YIELD_MS = 500;
+
+    /** Pending writes by bus */
+    private final Map<String, Bus> _buses = new HashMap<>();
+
+    /** Min time between the starts of two writes on one bus */
+    private long _intervalNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** Write thread */
+    private ScheduledExecutorService _executor;
+
+    /** Runs the native engine writes go through */
+    private final ModbusPoller _poller;
+
+    /** Gateway self-telemetry */
+    private final GatewayMetrics _metrics;
+
+    /**
+     * Constructor
+     * @param poller Runs the native engine writes go through
+     * @param metrics Gateway self-telemetry
+     */
+    public WriteScheduler(ModbusPoller poller, GatewayMetrics metrics)
+    {
+        _poller = poller;
+        _metrics = metrics;
+    }
+
+    /**
+     * Set write interval
+     * @param intervalMs Min time between the starts of two writes on one bus
+     */
+    public synchronized void configure(int intervalMs)
+    {
+        _intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, intervalMs));
+    }
+
+    /**
+     * Start the write thread
+     */
+    public synchronized void start()
+    {
+        stop();
+
+        _executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, WriteScheduler.class.toString());
+            t.setDaemon(true);
+            t.setPriority(Thread.MAX_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Stop the write thread, pending writes fail
+     */
+    public synchronized void stop()
+    {
+        if (_executor != null)
+        {
+            _executor.shutdownNow();
+            _executor = null;
+        }
+
+        IllegalStateException stopped = new IllegalStateException("Writes stopped");
+        for (Bus bus : _buses.values())
+        {
+            for (Map<String, PendingWrite> device : bus.pending.values())
+            {
+                for (PendingWrite write : device.values())
+                    write.complete(stopped);
+            }
+        }
+        _buses.clear();
+
+        notifyAll();
+    }
+
+    /**
+     * Queue channel values of a device, replacing pending values of the same channels
+     * @param deviceName Device (native device or Kura asset pid)
+     * @param values Values by channel name
+     * @return Completed once all values, or the ones that replaced them, are written
+     * @throws IllegalArgumentException if the device does not exist
+     */
+    public CompletableFuture<Void> write(String deviceName, Map<String, Object> values)
+    {
+        String busName = busOf(deviceName);
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+
+        synchronized (this)
+        {
+            if (_executor == null)
+                throw new IllegalStateException("Writes stopped");
+
+            Bus bus = _buses.computeIfAbsent(busName, b -> new Bus());
+            Map<String, PendingWrite> device = bus.pending.computeIfAbsent(deviceName, d -> new LinkedHashMap<>());
+            for (Map.Entry<String, Object> value : values.entrySet())
+            {
+                PendingWrite write = device.get(value.getKey());
+                if (write == null)
+                {
+                    write = new PendingWrite();
+                    device.put(value.getKey(), write);
+                }
+                else
+                {
+                    _metrics.writesCoalesced.increment();
+                }
+
+                write.value = value.getValue();
+                CompletableFuture<Void> result = new CompletableFuture<>();
+                write.waiters.add(result);
+                results.add(result);
+            }
+
+            schedule(bus);
+        }
+
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Wait, up to MAX_YIELD_MS, while writes are due or in progress. Called by the poller between assets.
+     */
+    public synchronized void yieldToWrites()
+    {
+        long deadline = System.currentTimeMillis() + MAX_YIELD_MS;
+        while (isWriting())
+        {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0)
+                return;
+
+            try
+            {
+                wait(wait);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * True if a write is in progress or due on any bus
+     */
+    private boolean isWriting()
+    {
+        long now = System.nanoTime();
+        for (Bus bus : _buses.values())
+        {
+            if (bus.writing || (!bus.pending.isEmpty() && now - bus.nextSlot >= 0))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Schedule the next write of a bus at its next slot, unless one is already scheduled or running
+     */
+    private void schedule(Bus bus)
+    {
+        if (bus.scheduled || bus.writing || bus.pending.isEmpty() || _executor == null)
+            return;
+
+        try
+        {
+            long delay = Math.max(0, bus.nextSlot - System.nanoTime());
+            _executor.schedule(() -> flush(bus), delay, TimeUnit.NANOSECONDS);
+            bus.scheduled = true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Stopping
+        }
+    }
+
+    /**
+     * Write the pending values of the next device of a bus, on the write thread
+     */
+    private void flush(Bus bus)
+    {
+        String deviceName;
+        Map<String, PendingWrite> writes;
+        synchronized (this)
+        {
+            bus.scheduled = false;
+
+            Iterator<Map.Entry<String, Map<String, PendingWrite>>> it = bus.pending.entrySet().iterator();
+            if (!it.hasNext())
+                return;
+
+            // Devices with newer writes queue behind the others of the bus
+            Map.Entry<String, Map<String, PendingWrite>> next = it.next();
+            it.remove();
+            deviceName = next.getKey();
+            writes = next.getValue();
+
+            bus.writing = true;
+            bus.nextSlot = System.nanoTime() + _intervalNanos;
+        }
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Map.Entry<String, PendingWrite> write : writes.entrySet())
+            values.put(write.getKey(), write.getValue().value);
+
+        CompletableFuture<Void> result;
+        try
+        {
+            result = send(deviceName, values);
+        }
+        catch (RuntimeException | KuraException e)
+        {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+
+        result.whenComplete((v, e) -> {
+            for (PendingWrite write : writes.values())
+                write.complete(e);
+
+            synchronized (this)
+            {
+                bus.writing = false;
+                notifyAll();
+                schedule(bus);
+            }
+        });
+    }
+
+    /**
+     * Bus of a device: its endpoint with the native engine, else its asset's driver
+     * @throws IllegalArgumentException if the device does not exist
+     */
+    private String busOf(String deviceName)
+    {
+        NativeModbusEngine engine = _poller.getEngine();
+        if (engine != null)
+            return engine.getEndpoint(deviceName);
+
+        return getAsset(deviceName).getAssetConfiguration().getDriverPid();
+    }
+
+    /**
+     * Write values of a device through the native engine if it runs, else through its Kura asset
+     */
+    private CompletableFuture<Void> send(String deviceName, Map<String, Object> values) throws KuraException
+    {
+        NativeModbusEngine engine = _poller.getEngine();
+        if (engine != null)
+        {
+            Map<String, Number> numbers = new LinkedHashMap<>();
+            for (Map.Entry<String, Object> value : values.entrySet())
+                numbers.put(value.getKey(), toNumber(value.getValue()));
+
+            return engine.write(deviceName, numbers);
+        }
+
+        writeAsset(deviceName, values);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Write through the asset's Kura driver, converting values to the channels' data types
+     */
+    private static void writeAsset(String deviceName, Map<String, Object> values) throws KuraException
+    {
+        Asset asset = getAsset(deviceName);
+        Map<String, Channel> channels = asset.getAssetConfiguration().getAssetChannels();
+        List<ChannelRecord> records = new ArrayList<>();
+        for (Map.Entry<String, Object> value : values.entrySet())
+        {
+            Channel channel = channels.get(value.getKey());
+            if (channel == null)
+                throw new IllegalArgumentException("Unknown channel " + value.getKey() + " of " + deviceName);
+            if (channel.getType() == ChannelType.READ)
+                throw new IllegalArgumentException("Channel " + value.getKey() + " of " + deviceName + " is not writable");
+
+            records.add(ChannelRecord.createWriteRecord(value.getKey(), toTypedValue(channel.getValueType(), value.getValue())));
+        }
+
+        asset.write(records);
+
+        for (ChannelRecord record : records)
+        {
+            if (record.getChannelStatus().getChannelFlag() != ChannelFlag.SUCCESS)
+                throw new IllegalArgumentException("Could not write " + record.getChannelName() + ": "
+                        + record.getChannelStatus().getExceptionMessage());
+        }
+    }
+
+    /**
+     * Get Kura asset by pid
+     * @throws IllegalArgumentException if there is no such asset
+     */
+    private static Asset getAsset(String deviceName)
+    {
+        if (GatewayXM.getAssetService() == null)
+            throw new IllegalArgumentException("Asset service not available");
+
+        Asset asset = GatewayXM.getAssetService().getAsset(deviceName);
+        if (asset == null)
+            throw new IllegalArgumentException("Unknown device " + deviceName);
+
+        return asset;
+    }
+
+    /**
+     * Convert a JSON value to the data type of a Kura channel
+     */
+    private static TypedValue<?> toTypedValue(DataType type, Object value)
+    {
+        switch (type)
+        {
+            case BOOLEAN:
+                return TypedValues.newBooleanValue(toNumber(value).doubleValue() != 0);
+            case INTEGER:
+                return TypedValues.newIntegerValue(toNumber(value).intValue());
+            case LONG:
+                return TypedValues.newLongValue(toNumber(value).longValue());
+            case FLOAT:
+                return TypedValues.newFloatValue(toNumber(value).floatValue());
+            case DOUBLE:
+                return TypedValues.newDoubleValue(toNumber(value).doubleValue());
+            case STRING:
+                return TypedValues.newStringValue(value.toString());
+            default:
+                throw new IllegalArgumentException("Unsupported channel type " + type);
+        }
+    }
+
+    /**
+     * Numeric value of a JSON value, booleans (also as text) as 1 or 0
+     * @throws IllegalArgumentException if not numeric
+     */
+    private static Number toNumber(Object value)
+    {
+        if (value instanceof Number)
+            return (Number) value;
+
+        String text = value.toString();
+        if ("true".equalsIgnoreCase(text) || "false".equalsIgnoreCase(text))
+            return Boolean.parseBoolean(text) ? 1 : 0;
+
+        return Double.valueOf(text);
+    }
+
+    /**
+     * Writes of one bus
+     */
+    private static class Bus
+    {
+        /** Pending values by device and channel, devices in order of their first pending write */
+        final Map<String, Map<String, PendingWrite>> pending = new LinkedHashMap<>();
+
+        /** Earliest start of the next write (System.nanoTime) */
+        long nextSlot = System.nanoTime();
+
+        /** Next write scheduled */
+        boolean scheduled;
+
+        /** Write in progress */
+        boolean writing;
+    }
+
+    /**
+     * Latest pending value of a channel, and the requests waiting for it
+     */
+    private static class PendingWrite
+    {
+        Object value;
+        final List<CompletableFuture<Void>> waiters = new ArrayList<>();
+
+        void complete(Throwable e)
+        {
+            for (CompletableFuture<Void> waiter : waiters)
+            {
+                if (e == null)
+                    waiter.complete(null);
+                else
+                    waiter.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package gr.exmachina.gatewayxm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Read of all channels of a single modbus asset
+ *
+ * @author Ex-Machina
+ *
+ */
+@Name("gr.exmachina.gatewayxm.AssetRead")
+@Label("Asset Read")
+@Category({ "GatewayXM", "Modbus" })
+@Description("Read of all channels of a modbus asset")
+public class AssetReadEvent extends Event implements Recorder.AssetRead
+{
+    @Label("Device Name")
+    public String deviceName;
+
+    @Label("Channels Read")
+    public int channels;
+
+    @Label("Channel Failures")
+    public int failures;
+
+    /**
+     * Create and begin event
+     */
+    public static AssetReadEvent start(String deviceName)
+    {
+        AssetReadEvent event = new AssetReadEvent();
+        event.deviceName = deviceName;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End and commit event
+     */
+    public void end(int channels, int failures)
+    {
+        this.channels = channels;
+        this.failures = failures;
+        commit();
+    }
+}
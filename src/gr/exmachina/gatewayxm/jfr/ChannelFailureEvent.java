@@ -0,0 +1,44 @@
+package gr.exmachina.gatewayxm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Failed read of a modbus channel
+ *
+ * @author Ex-Machina
+ *
+ */
+@Name("gr.exmachina.gatewayxm.ChannelFailure")
+@Label("Channel Failure")
+@Category({ "GatewayXM", "Modbus" })
+@Description("Modbus channel read returned a failure status")
+public class ChannelFailureEvent extends Event
+{
+    @Label("Device Name")
+    public String deviceName;
+
+    @Label("Channel Name")
+    public String channelName;
+
+    @Label("Message")
+    public String message;
+
+    /**
+     * Commit an instant event
+     */
+    public static void emit(String deviceName, String channelName, String message)
+    {
+        ChannelFailureEvent event = new ChannelFailureEvent();
+        if (!event.isEnabled())
+            return;
+
+        event.deviceName = deviceName;
+        event.channelName = channelName;
+        event.message = message;
+        event.commit();
+    }
+}
@@ -0,0 +1,46 @@
+package gr.exmachina.gatewayxm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Connect message sent to thingsboard for a device seen for the first time
+ *
+ * @author Ex-Machina
+ *
+ */
+@Name("gr.exmachina.gatewayxm.DeviceConnect")
+@Label("Device Connect")
+@Category({ "GatewayXM", "Thingsboard" })
+@Description("Device connect message sent to the thingsboard gateway api")
+public class DeviceConnectEvent extends Event implements Recorder.Outcome
+{
+    @Label("Device Name")
+    public String deviceName;
+
+    @Label("Success")
+    public boolean success;
+
+    /**
+     * Create and begin event
+     */
+    public static DeviceConnectEvent start(String deviceName)
+    {
+        DeviceConnectEvent event = new DeviceConnectEvent();
+        event.deviceName = deviceName;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End and commit event
+     */
+    public void complete(boolean success)
+    {
+        this.success = success;
+        commit();
+    }
+}
@@ -0,0 +1,90 @@
+package gr.exmachina.gatewayxm.jfr;
+
+/**
+ * Entry point for the gateway's JDK Flight Recorder events.
+ * jdk.jfr is an optional import: JfrRecorder, the only class linking the event classes, is loaded by
+ * name once the API is found, otherwise events go to a recorder that does nothing.
+ * Events cost next to nothing while no recording is running.
+ *
+ * @author Ex-Machina
+ *
+ */
+public final class Flight
+{
+    /** Recorder of the running JVM */
+    public static final Recorder RECORDER = load();
+
+    /**
+     * Private constructor
+     */
+    private Flight() {}
+
+    /**
+     * Flight recorder if the running JVM provides the jdk.jfr API, else the no-op recorder
+     */
+    private static Recorder load()
+    {
+        try
+        {
+            Class.forName("jdk.jfr.Event");
+            return (Recorder) Class.forName(Flight.class.getPackage().getName() + ".JfrRecorder")
+                    .getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | LinkageError e)
+        {
+            return new NoRecorder();
+        }
+    }
+
+    /**
+     * Recorder for runtimes without the flight recorder, one shared handle for all events
+     */
+    private static final class NoRecorder
+            implements Recorder, Recorder.PollCycle, Recorder.AssetRead, Recorder.SensorMessage, Recorder.Outcome
+    {
+        @Override
+        public PollCycle pollCycle()
+        {
+            return this;
+        }
+
+        @Override
+        public AssetRead assetRead(String deviceName)
+        {
+            return this;
+        }
+
+        @Override
+        public void channelFailure(String deviceName, String channelName, String message) {}
+
+        @Override
+        public SensorMessage sensorMessage(String topic, int bytes)
+        {
+            return this;
+        }
+
+        @Override
+        public Outcome deviceConnect(String deviceName)
+        {
+            return this;
+        }
+
+        @Override
+        public Outcome publish(String topic, String deviceName, int bytes)
+        {
+            return this;
+        }
+
+        @Override
+        public void end(int assets, int channels, int failures) {}
+
+        @Override
+        public void end(int channels, int failures) {}
+
+        @Override
+        public void parsed(String deviceName, int keys, boolean parsed) {}
+
+        @Override
+        public void complete(boolean success) {}
+    }
+}
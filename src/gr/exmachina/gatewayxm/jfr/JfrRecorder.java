@@ -0,0 +1,46 @@
+package gr.exmachina.gatewayxm.jfr;
+
+/**
+ * Recorder emitting JDK Flight Recorder events. Only loaded by Flight, once the jdk.jfr API is found.
+ *
+ * @author Ex-Machina
+ *
+ */
+public class JfrRecorder implements Recorder
+{
+    @Override
+    public PollCycle pollCycle()
+    {
+        return PollCycleEvent.start();
+    }
+
+    @Override
+    public AssetRead assetRead(String deviceName)
+    {
+        return AssetReadEvent.start(deviceName);
+    }
+
+    @Override
+    public void channelFailure(String deviceName, String channelName, String message)
+    {
+        ChannelFailureEvent.emit(deviceName, channelName, message);
+    }
+
+    @Override
+    public SensorMessage sensorMessage(String topic, int bytes)
+    {
+        return SensorMessageEvent.received(topic, bytes);
+    }
+
+    @Override
+    public Outcome deviceConnect(String deviceName)
+    {
+        return DeviceConnectEvent.start(deviceName);
+    }
+
+    @Override
+    public Outcome publish(String topic, String deviceName, int bytes)
+    {
+        return PublishEvent.start(topic, deviceName, bytes);
+    }
+}
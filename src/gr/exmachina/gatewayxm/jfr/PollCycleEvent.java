@@ -0,0 +1,50 @@
+package gr.exmachina.gatewayxm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One full modbus poll cycle, from the first asset read to the last
+ *
+ * @author Ex-Machina
+ *
+ */
+@Name("gr.exmachina.gatewayxm.PollCycle")
+@Label("Poll Cycle")
+@Category({ "GatewayXM", "Modbus" })
+@Description("Modbus poll cycle over all assets")
+public class PollCycleEvent extends Event implements Recorder.PollCycle
+{
+    @Label("Assets")
+    public int assets;
+
+    @Label("Channels Read")
+    public int channels;
+
+    @Label("Channel Failures")
+    public int failures;
+
+    /**
+     * Create and begin event
+     */
+    public static PollCycleEvent start()
+    {
+        PollCycleEvent event = new PollCycleEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End and commit event
+     */
+    public void end(int assets, int channels, int failures)
+    {
+        this.assets = assets;
+        this.channels = channels;
+        this.failures = failures;
+        commit();
+    }
+}
@@ -0,0 +1,56 @@
+package gr.exmachina.gatewayxm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Publish of a single message to thingsboard, from hand-off to the mqtt client until it returns
+ *
+ * @author Ex-Machina
+ *
+ */
+@Name("gr.exmachina.gatewayxm.Publish")
+@Label("Publish")
+@Category({ "GatewayXM", "Thingsboard" })
+@Description("Publish of a message to the thingsboard broker")
+public class PublishEvent extends Event implements Recorder.Outcome
+{
+    @Label("Topic")
+    public String topic;
+
+    @Label("Device Name")
+    public String deviceName;
+
+    @Label("Payload Size")
+    @DataAmount
+    public int bytes;
+
+    @Label("Success")
+    public boolean success;
+
+    /**
+     * Create and begin event
+     */
+    public static PublishEvent start(String topic, String deviceName, int bytes)
+    {
+        PublishEvent event = new PublishEvent();
+        event.topic = topic;
+        event.deviceName = deviceName;
+        event.bytes = bytes;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End and commit event
+     */
+    public void complete(boolean success)
+    {
+        this.success = success;
+        commit();
+    }
+}
@@ -0,0 +1,77 @@
+package gr.exmachina.gatewayxm.jfr;
+
+/**
+ * Flight recorder events of the gateway, as seen by the core classes. Free of jdk.jfr types, so the
+ * core classes link on runtimes without the flight recorder API; Flight picks the implementation.
+ *
+ * @author Ex-Machina
+ *
+ */
+public interface Recorder
+{
+    /**
+     * Begin a poll cycle event
+     */
+    PollCycle pollCycle();
+
+    /**
+     * Begin a read event of all due channels of an asset
+     */
+    AssetRead assetRead(String deviceName);
+
+    /**
+     * Record a failed channel read
+     */
+    void channelFailure(String deviceName, String channelName, String message);
+
+    /**
+     * Begin a sensor message event, on message arrival
+     */
+    SensorMessage sensorMessage(String topic, int bytes);
+
+    /**
+     * Begin a thingsboard device connect event
+     */
+    Outcome deviceConnect(String deviceName);
+
+    /**
+     * Begin a thingsboard publish event
+     */
+    Outcome publish(String topic, String deviceName, int bytes);
+
+    /**
+     * Poll cycle in progress
+     */
+    interface PollCycle
+    {
+        /** End and commit event */
+        void end(int assets, int channels, int failures);
+    }
+
+    /**
+     * Asset read in progress
+     */
+    interface AssetRead
+    {
+        /** End and commit event */
+        void end(int channels, int failures);
+    }
+
+    /**
+     * Sensor message in progress
+     */
+    interface SensorMessage
+    {
+        /** End and commit event, once the message was parsed (or rejected) */
+        void parsed(String deviceName, int keys, boolean parsed);
+    }
+
+    /**
+     * Operation that succeeds or fails
+     */
+    interface Outcome
+    {
+        /** End and commit event */
+        void complete(boolean success);
+    }
+}
@@ -0,0 +1,60 @@
+package gr.exmachina.gatewayxm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Sensor node message received from the local broker, lasting until it has been parsed
+ *
+ * @author Ex-Machina
+ *
+ */
+@Name("gr.exmachina.gatewayxm.SensorMessage")
+@Label("Sensor Message")
+@Category({ "GatewayXM", "Sensor Nodes" })
+@Description("Sensor node message, from arrival until parsed into a telemetry packet")
+public class SensorMessageEvent extends Event implements Recorder.SensorMessage
+{
+    @Label("Topic")
+    public String topic;
+
+    @Label("Device Name")
+    public String deviceName;
+
+    @Label("Payload Size")
+    @DataAmount
+    public int bytes;
+
+    @Label("Keys")
+    public int keys;
+
+    @Label("Parsed")
+    public boolean parsed;
+
+    /**
+     * Create and begin event, on message arrival
+     */
+    public static SensorMessageEvent received(String topic, int bytes)
+    {
+        SensorMessageEvent event = new SensorMessageEvent();
+        event.topic = topic;
+        event.bytes = bytes;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End and commit event, once the message was parsed (or rejected)
+     */
+    public void parsed(String deviceName, int keys, boolean parsed)
+    {
+        this.deviceName = deviceName;
+        this.keys = keys;
+        this.parsed = parsed;
+        commit();
+    }
+}